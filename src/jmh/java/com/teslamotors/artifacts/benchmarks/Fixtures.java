@@ -0,0 +1,203 @@
+package com.teslamotors.artifacts.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.io.Files;
+
+/**
+ * Generates synthetic directory trees and zip archives for the benchmarks.
+ * Content is pseudo-random but text-like, so that it deflates about as
+ * well as build logs do, and is the same from run to run.
+ *
+ * Also runnable on its own, to produce fixtures for manual testing:
+ *
+ * <pre>
+ * Fixtures &lt;directory&gt; &lt;entries&gt; [&lt;nesting&gt; [stored|deflated]]
+ * </pre>
+ */
+public final class Fixtures {
+
+	public static final int DEFAULT_FILE_BYTES = 1024;
+
+	/**
+	 * Members are spread over subdirectories of this many entries each.
+	 */
+	private static final int ENTRIES_PER_DIRECTORY = 100;
+
+	private static final String WORDS = "build test artifact release nightly firmware log debug module vehicle ";
+
+	private Fixtures() {
+	}
+
+	public static File createTemporaryDirectory() {
+		return Files.createTempDir();
+	}
+
+	/**
+	 * A flat directory of files with varied names, sizes and times.
+	 */
+	public static File createDirectory(File parent, String name, int files, int file_bytes) throws IOException {
+
+		File directory = new File(parent, name);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+
+		Random random = new Random(files);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < files; i++) {
+			File file = new File(directory, getName(random, i));
+			Files.write(getContent(random, random.nextInt(2 * file_bytes + 1)), file);
+			file.setLastModified(now - random.nextInt(Integer.MAX_VALUE));
+		}
+		return directory;
+	}
+
+	/**
+	 * An archive of files spread over subdirectories, optionally wrapped
+	 * in further archives: with a nesting of 2, the files are in
+	 * "inner-1.zip/inner-0.zip" within the archive. Every level has the
+	 * same compression.
+	 */
+	public static File createZip(File file, int entries, int nesting, boolean is_deflated) throws IOException {
+
+		byte[] content = createZipContent(entries, is_deflated);
+		for (int level = 0; level < nesting; level++)
+			content = wrapInZip(getNestedName(level), content, is_deflated);
+
+		Files.write(content, file);
+		return file;
+	}
+
+	/**
+	 * The path within an archive made by createZip() of the innermost archive's contents.
+	 */
+	public static String getNestedPath(int nesting) {
+		StringBuilder path = new StringBuilder();
+		for (int level = nesting - 1; level >= 0; level--)
+			path.append(getNestedName(level)).append('/');
+		return path.toString();
+	}
+
+	/**
+	 * The path within the innermost archive of the member numbered i.
+	 */
+	public static String getMemberPath(int i) {
+		return "dir-" + (i / ENTRIES_PER_DIRECTORY) + "/file-" + i + ".txt";
+	}
+
+	private static String getNestedName(int level) {
+		return "inner-" + level + ".zip";
+	}
+
+	private static byte[] createZipContent(int entries, boolean is_deflated) throws IOException {
+
+		Random random = new Random(entries);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		try {
+			for (int i = 0; i < entries; i++)
+				putEntry(zip, getMemberPath(i), getContent(random, random.nextInt(2 * DEFAULT_FILE_BYTES + 1)),
+						is_deflated);
+		} finally {
+			zip.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] wrapInZip(String name, byte[] content, boolean is_deflated) throws IOException {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		try {
+			putEntry(zip, name, content, is_deflated);
+		} finally {
+			zip.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void putEntry(ZipOutputStream zip, String name, byte[] content, boolean is_deflated)
+			throws IOException {
+
+		ZipEntry entry = new ZipEntry(name);
+		if (!is_deflated) {
+			// Stored entries need their sizes and CRC up front
+			CRC32 crc = new CRC32();
+			crc.update(content);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(content.length);
+			entry.setCompressedSize(content.length);
+			entry.setCrc(crc.getValue());
+		}
+		zip.putNextEntry(entry);
+		zip.write(content);
+		zip.closeEntry();
+	}
+
+	private static String getName(Random random, int i) {
+		return WORDS.substring(0, 1 + random.nextInt(WORDS.length() - 1)).trim().replace(' ', '-')
+				+ "-" + i + ".txt";
+	}
+
+	private static byte[] getContent(Random random, int length) {
+		byte[] content = new byte[length];
+		for (int i = 0; i < length; i++)
+			content[i] = (byte) WORDS.charAt(random.nextInt(WORDS.length()));
+		return content;
+	}
+
+	public static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				deleteRecursively(child);
+		file.delete();
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 2) {
+			System.err.println("Usage: Fixtures <directory> <entries> [<nesting> [stored|deflated]]");
+			System.exit(2);
+		}
+
+		File directory = new File(args[0]);
+		int entries = Integer.parseInt(args[1]);
+		int nesting = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		boolean is_deflated = args.length <= 3 || !"stored".equals(args[3]);
+
+		createDirectory(directory, "files-" + entries, entries, DEFAULT_FILE_BYTES);
+		File zip = createZip(new File(directory, "archive-" + entries + ".zip"), entries, nesting, is_deflated);
+		System.out.println("Created " + directory + "/files-" + entries + " and " + zip);
+	}
+
+	/**
+	 * Counts what is written to it, and otherwise discards it.
+	 */
+	public static class NullOutputStream extends OutputStream {
+
+		private long count = 0;
+
+		@Override
+		public void write(int b) {
+			this.count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			this.count += len;
+		}
+
+		public long getCount() {
+			return this.count;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.teslamotors.artifacts.benchmarks.Fixtures;
+
+/**
+ * Listing the children of a directory on disk, read afresh or from the
+ * DirectorySnapshotCache, and of directories within an archive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ListingBenchmark {
+
+	@Param({"1000", "20000"})
+	int entries;
+
+	private File directory;
+	private File listed_directory;
+	private ZipParentNavigableObject zip_parent;
+	private DirectorySnapshotCache directory_cache;
+	private ForkJoinPool stat_pool;
+	private DirectoryReader directory_reader;
+	private DirectoryReader cached_directory_reader;
+
+	@Setup
+	public void setUp() throws IOException {
+
+		this.directory = Fixtures.createTemporaryDirectory();
+		this.listed_directory = Fixtures.createDirectory(this.directory, "files", this.entries,
+				Fixtures.DEFAULT_FILE_BYTES);
+
+		File zip_file = Fixtures.createZip(new File(this.directory, "archive.zip"), this.entries, 0, true);
+		this.zip_parent = ZipParentNavigableObject.createNew(zip_file,
+				new ZipIndexCache(ZipIndexCache.DEFAULT_MAXIMUM_BYTES));
+
+		this.directory_cache = new DirectorySnapshotCache(DirectorySnapshotCache.DEFAULT_MAXIMUM_ENTRIES,
+				DirectorySnapshotCache.DEFAULT_MAXIMUM_BYTES, 0);
+
+		// As the servlet lists by default
+		this.stat_pool = new ForkJoinPool(FileSnapshot.DEFAULT_STAT_PARALLELISM);
+		this.directory_reader = new DirectoryReader(this.stat_pool, null);
+		this.cached_directory_reader = new DirectoryReader(this.stat_pool, this.directory_cache);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		this.directory_cache.close();
+		this.stat_pool.shutdownNow();
+		Fixtures.deleteRecursively(this.directory);
+	}
+
+	@Benchmark
+	public List<NavigableObject> listDirectory() throws IOException {
+		return new FileNavigableObject(this.listed_directory, this.directory_reader).listChildrenUnsorted();
+	}
+
+	@Benchmark
+	public List<NavigableObject> listCachedDirectory() throws IOException {
+		return new FileNavigableObject(this.listed_directory, this.cached_directory_reader).listChildrenUnsorted();
+	}
+
+	@Benchmark
+	public List<NavigableObject> listZipRoot() throws IOException {
+		return this.zip_parent.listChildrenUnsorted();
+	}
+
+	/**
+	 * A directory of the archive holding a hundred members.
+	 */
+	@Benchmark
+	public List<NavigableObject> listZipDirectory() throws IOException {
+		return new ZipMemberNavigableObject(this.zip_parent, "dir-0").listChildrenUnsorted();
+	}
+}
@@ -0,0 +1,90 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+import com.teslamotors.artifacts.benchmarks.Fixtures;
+import com.teslamotors.artifacts.files.SortUtils.SortCriteria;
+
+/**
+ * Sorting an already listed directory by each SortCriteria, in full and
+ * for the first page only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SortBenchmark {
+
+	@Param({"1000", "100000"})
+	int entries;
+
+	@Param({"NAME", "DATE", "SIZE"})
+	SortCriteria criteria;
+
+	private File directory;
+	private List<NavigableObject> children;
+	private List<SortCriteria> sorters;
+	private PageRequest first_page;
+	private ForkJoinPool sort_pool;
+
+	@Setup
+	public void setUp() throws IOException {
+
+		this.directory = Fixtures.createTemporaryDirectory();
+		File zip_file = Fixtures.createZip(new File(this.directory, "archive.zip"), this.entries, 0, true);
+
+		// Flattened, so that all the entries are siblings
+		ZipParentNavigableObject zip_parent = ZipParentNavigableObject.createNew(zip_file,
+				new ZipIndexCache(ZipIndexCache.DEFAULT_MAXIMUM_BYTES));
+		this.children = Lists.newArrayList();
+		for (NavigableObject child : zip_parent.listChildrenUnsorted())
+			this.children.addAll(child.listChildrenUnsorted());
+
+		// Entries arrive in no particular order
+		Collections.shuffle(this.children, new Random(this.entries));
+
+		this.sorters = Collections.singletonList(this.criteria);
+		this.first_page = new PageRequest(0, 1000, null);
+
+		// As the servlet sorts, on its search pool
+		this.sort_pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.sort_pool.shutdownNow();
+		Fixtures.deleteRecursively(this.directory);
+	}
+
+	@Benchmark
+	public List<NavigableObject> sortAll() {
+		return SortUtils.sortByCriteria(this.children, this.sorters, this.sort_pool);
+	}
+
+	@Benchmark
+	public ListingPage sortFirstPage() {
+		return SortUtils.sortPage(this.children, this.sorters, this.first_page, this.sort_pool);
+	}
+}
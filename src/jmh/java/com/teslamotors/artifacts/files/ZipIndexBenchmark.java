@@ -0,0 +1,72 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.teslamotors.artifacts.benchmarks.Fixtures;
+
+/**
+ * Reading an archive's central directory into a ZipIndex, as on a cache miss.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ZipIndexBenchmark {
+
+	@Param({"1000", "50000"})
+	int entries;
+
+	@Param({"true", "false"})
+	boolean deflated;
+
+	private File directory;
+	private File zip_file;
+	private File nested_zip_file;
+
+	@Setup
+	public void setUp() throws IOException {
+
+		this.directory = Fixtures.createTemporaryDirectory();
+		this.zip_file = Fixtures.createZip(new File(this.directory, "flat.zip"), this.entries, 0, this.deflated);
+		this.nested_zip_file = Fixtures.createZip(new File(this.directory, "nested.zip"), this.entries, 1, this.deflated);
+	}
+
+	@TearDown
+	public void tearDown() {
+		Fixtures.deleteRecursively(this.directory);
+	}
+
+	@Benchmark
+	public ZipIndex buildIndex() throws IOException {
+		return ZipIndex.build(this.zip_file);
+	}
+
+	/**
+	 * Indexes the outer archive and then the inner one, inflating a
+	 * deflated inner archive into memory first.
+	 */
+	@Benchmark
+	public ZipIndex buildNestedIndex() throws IOException {
+
+		ZipIndexCache cache = new ZipIndexCache(ZipIndexCache.DEFAULT_MAXIMUM_BYTES, Long.MAX_VALUE, null);
+		ZipIndex outer = cache.get(this.nested_zip_file);
+		return cache.getNested(outer, outer.lookup(Fixtures.getNestedPath(1)).getEntry());
+	}
+}
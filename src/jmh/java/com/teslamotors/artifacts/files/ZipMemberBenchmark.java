@@ -0,0 +1,84 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.ByteStreams;
+import com.teslamotors.artifacts.benchmarks.Fixtures;
+
+/**
+ * Resolving a request path to a member of a possibly nested archive, with
+ * its indexes cached as in the servlet, and streaming the member's content.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ZipMemberBenchmark {
+
+	@Param({"10000"})
+	int entries;
+
+	@Param({"0", "1", "2"})
+	int nesting;
+
+	@Param({"true", "false"})
+	boolean deflated;
+
+	private File directory;
+	private File zip_file;
+	private ZipIndexCache zip_index_cache;
+	private String member_path;
+
+	@Setup
+	public void setUp() throws IOException {
+
+		this.directory = Fixtures.createTemporaryDirectory();
+		this.zip_file = Fixtures.createZip(new File(this.directory, "archive.zip"),
+				this.entries, this.nesting, this.deflated);
+		this.zip_index_cache = new ZipIndexCache(ZipIndexCache.DEFAULT_MAXIMUM_BYTES, Long.MAX_VALUE, null);
+		this.member_path = Fixtures.getNestedPath(this.nesting) + Fixtures.getMemberPath(this.entries / 2);
+	}
+
+	@TearDown
+	public void tearDown() {
+		Fixtures.deleteRecursively(this.directory);
+	}
+
+	private NavigableObject resolve() throws IOException {
+		return ZipParentNavigableObject.createNew(this.zip_file, this.zip_index_cache)
+				.resolveMember(this.member_path, this.zip_index_cache);
+	}
+
+	@Benchmark
+	public long lookupMember() throws IOException {
+		return resolve().getSize();
+	}
+
+	@Benchmark
+	public long streamMember() throws IOException {
+		InputStream input = resolve().getInputStream();
+		try {
+			return ByteStreams.copy(input, ByteStreams.nullOutputStream());
+		} finally {
+			input.close();
+		}
+	}
+}
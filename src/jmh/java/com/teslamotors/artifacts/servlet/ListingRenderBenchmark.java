@@ -0,0 +1,165 @@
+package com.teslamotors.artifacts.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableMap;
+import com.teslamotors.artifacts.benchmarks.Fixtures;
+import com.teslamotors.artifacts.files.DirectorySizes;
+import com.teslamotors.artifacts.files.FileNavigableObject;
+import com.teslamotors.artifacts.files.ListingPage;
+import com.teslamotors.artifacts.files.NavigableObject;
+import com.teslamotors.artifacts.files.PageRequest;
+import com.teslamotors.artifacts.files.SortUtils;
+import com.teslamotors.artifacts.files.SortUtils.SortCriteria;
+
+/**
+ * Rendering an already sorted listing page, as the raw listing XML,
+ * through the stylesheet shipped in WEB-INF, and as JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ListingRenderBenchmark {
+
+	/**
+	 * Relative to the project directory, where the benchmarks are run from.
+	 */
+	private static final String STYLESHEET = "src/main/webapp/WEB-INF/tesla-styling.xslt";
+
+	@Param({"100", "1000"})
+	int entries;
+
+	private File directory;
+	private FileServlet servlet;
+	private NavigableObject listed_directory;
+	private ListingPage page;
+	private Map<NavigableObject, DirectorySizes.Summary> directory_sizes;
+	private Templates templates;
+
+	@Setup
+	public void setUp() throws IOException, ServletException, TransformerException {
+
+		this.directory = Fixtures.createTemporaryDirectory();
+		File listed = Fixtures.createDirectory(this.directory, "files", this.entries, Fixtures.DEFAULT_FILE_BYTES);
+
+		// Caches that would write to disk or hold on to the listing, and background walks, are disabled
+		this.servlet = new FileServlet();
+		this.servlet.init(createConfig(ImmutableMap.<String, String>builder()
+				.put("base-path", this.directory.getPath())
+				.put("nested-archive-spill-bytes", "0")
+				.put("compressed-cache-bytes", "0")
+				.put("directory-cache-entries", "0")
+				.put("directory-size-refresh-millis", "0")
+				.put("name-index-interval-seconds", "0")
+				.build()));
+
+		this.listed_directory = new FileNavigableObject(listed);
+		List<SortCriteria> sorters = Collections.singletonList(SortCriteria.NAME);
+		this.page = SortUtils.sortPage(this.listed_directory.listChildrenUnsorted(), sorters, PageRequest.ALL);
+		this.directory_sizes = this.servlet.getDirectorySizes(this.page);
+
+		this.templates = TransformerFactory.newInstance().newTemplates(new StreamSource(new File(STYLESHEET)));
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.servlet.destroy();
+		Fixtures.deleteRecursively(this.directory);
+	}
+
+	@Benchmark
+	public long renderXml() throws TransformerException {
+		Fixtures.NullOutputStream output = new Fixtures.NullOutputStream();
+		this.servlet.listDirectoryContents("/ctx", this.listed_directory, this.page, this.directory_sizes, null,
+				TransformerFactory.newInstance().newTransformer(), output);
+		return output.getCount();
+	}
+
+	@Benchmark
+	public long renderStylesheet() throws TransformerException {
+		Fixtures.NullOutputStream output = new Fixtures.NullOutputStream();
+		this.servlet.listDirectoryContents("/ctx", this.listed_directory, this.page, this.directory_sizes, null,
+				this.templates.newTransformer(), output);
+		return output.getCount();
+	}
+
+	@Benchmark
+	public long renderJson() throws IOException {
+		Fixtures.NullOutputStream output = new Fixtures.NullOutputStream();
+		this.servlet.writeJsonListing("/ctx", this.listed_directory, this.page, this.directory_sizes, null, output);
+		return output.getCount();
+	}
+
+	/**
+	 * Just enough of a container for init(): the given parameters, and
+	 * nulls, zeros and falses for everything else.
+	 */
+	private static ServletConfig createConfig(final Map<String, String> init_parameters) {
+
+		final ServletContext context = (ServletContext) Proxy.newProxyInstance(
+				ListingRenderBenchmark.class.getClassLoader(), new Class<?>[] { ServletContext.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return getDefaultValue(method.getReturnType());
+					}
+				});
+
+		return (ServletConfig) Proxy.newProxyInstance(
+				ListingRenderBenchmark.class.getClassLoader(), new Class<?>[] { ServletConfig.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("getInitParameter"))
+							return init_parameters.get(args[0]);
+						if (method.getName().equals("getServletContext"))
+							return context;
+						if (method.getName().equals("getServletName"))
+							return "benchmark";
+						return getDefaultValue(method.getReturnType());
+					}
+				});
+	}
+
+	private static Object getDefaultValue(Class<?> type) {
+		if (type == boolean.class)
+			return false;
+		if (type == int.class)
+			return 0;
+		if (type == long.class)
+			return 0L;
+		return null;
+	}
+}
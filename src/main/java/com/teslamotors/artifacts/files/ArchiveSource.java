@@ -0,0 +1,303 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * The bytes of a zip archive, wherever they happen to live: a file on
+ * disk, a stored member lying in place within another archive, or an
+ * inner archive that had to be inflated into memory or a spill file.
+ */
+public abstract class ArchiveSource {
+
+	public static ArchiveSource forFile(File file) {
+		return new FileRegion(file, 0, -1);
+	}
+
+	/**
+	 * A file that may be deleted while it is still being read, as an
+	 * inflated copy evicted from the InflatedArchiveCache. Each read and
+	 * each open stream holds a reference to the shared channel, which
+	 * keeps the file readable until they are done.
+	 */
+	static ArchiveSource forSharedChannel(SharedFileChannel shared) {
+		return new ChannelRegion(shared, 0, shared.length());
+	}
+
+	static ArchiveSource forBytes(byte[] bytes) {
+		return new ByteRegion(bytes, 0, bytes.length);
+	}
+
+	public abstract long length() throws IOException;
+
+	/**
+	 * Reads exactly the given range into a little-endian buffer.
+	 */
+	abstract ByteBuffer read(long position, int length) throws IOException;
+
+	abstract InputStream openStream(long position, long length) throws IOException;
+
+	/**
+	 * The given range of this source, without copying it.
+	 */
+	abstract ArchiveSource slice(long position, long length);
+
+	/**
+	 * Heap held by the source itself, counted against the ZipIndexCache.
+	 */
+	long getHeapBytes() {
+		return 0;
+	}
+
+	/**
+	 * False once the backing storage has gone away, as when a spill file
+	 * is evicted; the source must then be rebuilt for later requests.
+	 */
+	boolean isAvailable() {
+		return true;
+	}
+
+	private static class FileRegion extends ArchiveSource {
+
+		private final File file;
+		private final long base;
+
+		/**
+		 * Negative for "up to the end of the file", which may change.
+		 */
+		private final long length;
+
+		FileRegion(File file, long base, long length) {
+			this.file = file;
+			this.base = base;
+			this.length = length;
+		}
+
+		@Override
+		public long length() throws IOException {
+			return this.length >= 0 ? this.length : this.file.length() - this.base;
+		}
+
+		@Override
+		ByteBuffer read(long position, int length) throws IOException {
+
+			ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+			RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				while (buffer.hasRemaining()) {
+					int bytes_read = channel.read(buffer, this.base + position + buffer.position());
+					if (bytes_read < 0)
+						throw new EOFException("Unexpected end of zip file");
+				}
+			} finally {
+				raf.close();
+			}
+			buffer.flip();
+			return buffer;
+		}
+
+		@Override
+		InputStream openStream(long position, long length) throws IOException {
+
+			RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				channel.position(this.base + position);
+				return ByteStreams.limit(Channels.newInputStream(channel), Math.max(0, length));
+
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		@Override
+		ArchiveSource slice(long position, long length) {
+			return new FileRegion(this.file, this.base + position, length);
+		}
+
+		@Override
+		boolean isAvailable() {
+			return this.file.isFile();
+		}
+	}
+
+	private static class ChannelRegion extends ArchiveSource {
+
+		/**
+		 * Only read at explicit positions, which is safe from any thread.
+		 */
+		private final SharedFileChannel shared;
+		private final long base;
+		private final long length;
+
+		ChannelRegion(SharedFileChannel shared, long base, long length) {
+			this.shared = shared;
+			this.base = base;
+			this.length = length;
+		}
+
+		@Override
+		public long length() {
+			return this.length;
+		}
+
+		@Override
+		ByteBuffer read(long position, int length) throws IOException {
+
+			if (position < 0 || position + length > this.length)
+				throw new EOFException("Unexpected end of zip file");
+
+			ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+			this.shared.acquire();
+			try {
+				while (buffer.hasRemaining()) {
+					int bytes_read = this.shared.getChannel().read(buffer, this.base + position + buffer.position());
+					if (bytes_read < 0)
+						throw new EOFException("Unexpected end of zip file");
+				}
+			} finally {
+				this.shared.release();
+			}
+			buffer.flip();
+			return buffer;
+		}
+
+		@Override
+		InputStream openStream(long position, long length) throws IOException {
+
+			long start = Math.min(Math.max(0, position), this.length);
+			long count = Math.min(Math.max(0, length), this.length - start);
+			this.shared.acquire();
+			return new ChannelInputStream(this.shared, this.base + start, this.base + start + count);
+		}
+
+		@Override
+		ArchiveSource slice(long position, long length) {
+			return new ChannelRegion(this.shared, this.base + position, length);
+		}
+
+		@Override
+		boolean isAvailable() {
+			return !this.shared.isRetired();
+		}
+	}
+
+	/**
+	 * Reads a range of a shared channel, holding a reference to it until closed.
+	 */
+	private static class ChannelInputStream extends InputStream {
+
+		private final SharedFileChannel shared;
+		private long position;
+		private final long end;
+		private boolean closed = false;
+
+		ChannelInputStream(SharedFileChannel shared, long position, long end) {
+			this.shared = shared;
+			this.position = position;
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+
+			if (length == 0)
+				return 0;
+			if (this.position >= this.end)
+				return -1;
+
+			int wanted = (int) Math.min(length, this.end - this.position);
+			int bytes_read = this.shared.getChannel().read(ByteBuffer.wrap(bytes, offset, wanted), this.position);
+			if (bytes_read < 0)
+				throw new EOFException("Unexpected end of zip file");
+			this.position += bytes_read;
+			return bytes_read;
+		}
+
+		@Override
+		public long skip(long n) {
+			long skipped = Math.max(0, Math.min(n, this.end - this.position));
+			this.position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, this.end - this.position);
+		}
+
+		@Override
+		public void close() {
+			if (!this.closed) {
+				this.closed = true;
+				this.shared.release();
+			}
+		}
+	}
+
+	private static class ByteRegion extends ArchiveSource {
+
+		private final byte[] bytes;
+		private final int base;
+		private final int length;
+
+		ByteRegion(byte[] bytes, int base, int length) {
+			this.bytes = bytes;
+			this.base = base;
+			this.length = length;
+		}
+
+		@Override
+		public long length() {
+			return this.length;
+		}
+
+		@Override
+		ByteBuffer read(long position, int length) throws IOException {
+
+			if (position < 0 || position + length > this.length)
+				throw new EOFException("Unexpected end of zip file");
+
+			ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.put(this.bytes, this.base + (int) position, length);
+			buffer.flip();
+			return buffer;
+		}
+
+		@Override
+		InputStream openStream(long position, long length) {
+
+			int start = (int) Math.min(Math.max(0, position), this.length);
+			int count = (int) Math.min(Math.max(0, length), this.length - start);
+			return new ByteArrayInputStream(this.bytes, this.base + start, count);
+		}
+
+		@Override
+		ArchiveSource slice(long position, long length) {
+			return new ByteRegion(this.bytes, this.base + (int) position, (int) length);
+		}
+
+		@Override
+		long getHeapBytes() {
+			return this.bytes.length;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The visible children of a directory with their attributes, as read at
+ * one point in time. Never modified, so that it can be shared through
+ * DirectorySnapshotCache.
+ */
+final class DirectoryListing {
+
+	/**
+	 * A rough allowance for each child's File, path and snapshot objects,
+	 * besides the characters of its path.
+	 */
+	private static final int CHILD_OVERHEAD_BYTES = 160;
+
+	private final File[] children;
+	private final FileSnapshot[] snapshots;
+
+	private DirectoryListing(File[] children, FileSnapshot[] snapshots) {
+		this.children = children;
+		this.snapshots = snapshots;
+	}
+
+	/**
+	 * Hidden names are skipped before they cost a stat call.
+	 */
+	static DirectoryListing read(Path directory, ForkJoinPool stat_pool) throws IOException {
+
+		List<Path> paths = Lists.newArrayList();
+		try {
+			DirectoryStream<Path> directory_stream = Files.newDirectoryStream(directory);
+			try {
+				for (Path path : directory_stream)
+					if (!path.getFileName().toString().startsWith("."))
+						paths.add(path);
+			} finally {
+				directory_stream.close();
+			}
+		} catch (IOException e) {
+			throw new IOException( String.format("You probably don't have permission to access \"%s\"",
+					directory), e );
+		}
+
+		FileSnapshot[] snapshots = FileSnapshot.readAll(paths, stat_pool);
+
+		// Deleted since it was listed
+		int count = 0;
+		for (FileSnapshot snapshot : snapshots)
+			if (snapshot.exists())
+				count++;
+
+		File[] existing_children = new File[count];
+		FileSnapshot[] existing_snapshots = new FileSnapshot[count];
+		int index = 0;
+		for (int i = 0; i < snapshots.length; i++) {
+			if (snapshots[i].exists()) {
+				existing_children[index] = paths.get(i).toFile();
+				existing_snapshots[index] = snapshots[i];
+				index++;
+			}
+		}
+
+		return new DirectoryListing(existing_children, existing_snapshots);
+	}
+
+	int size() {
+		return this.children.length;
+	}
+
+	File getChild(int index) {
+		return this.children[index];
+	}
+
+	FileSnapshot getSnapshot(int index) {
+		return this.snapshots[index];
+	}
+
+	long estimateBytes() {
+		long bytes = 0;
+		for (File child : this.children)
+			bytes += CHILD_OVERHEAD_BYTES + 2 * child.getPath().length();
+		return bytes;
+	}
+}
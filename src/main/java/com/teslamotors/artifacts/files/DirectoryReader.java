@@ -0,0 +1,52 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * How FileNavigableObjects list directories on disk: large ones are
+ * stat'ed on a pool shared by all listings, so that the number of
+ * concurrent stat calls stays bounded however many requests there are,
+ * and popular ones are listed from a DirectorySnapshotCache. The pool
+ * and the cache belong to whoever made the reader, which closes them.
+ */
+public class DirectoryReader {
+
+	/**
+	 * Stats everything on the calling thread, and caches nothing.
+	 */
+	public static final DirectoryReader SERIAL = new DirectoryReader(null, null);
+
+	/**
+	 * Null to stat everything on the calling thread.
+	 */
+	private final ForkJoinPool stat_pool;
+
+	/**
+	 * Null when listings are always read afresh.
+	 */
+	private final DirectorySnapshotCache directory_cache;
+
+	public DirectoryReader(ForkJoinPool stat_pool, DirectorySnapshotCache directory_cache) {
+		this.stat_pool = stat_pool;
+		this.directory_cache = directory_cache;
+	}
+
+	DirectoryListing read(Path directory) throws IOException {
+		if (this.directory_cache != null)
+			return this.directory_cache.getListing(directory, this.stat_pool);
+		return DirectoryListing.read(directory, this.stat_pool);
+	}
+
+	/**
+	 * The file's attributes; a directory whose listing is cached is
+	 * answered as it was when it was listed.
+	 */
+	FileSnapshot readSnapshot(Path file) {
+		FileSnapshot snapshot = null;
+		if (this.directory_cache != null)
+			snapshot = this.directory_cache.getDirectorySnapshot(file);
+		return snapshot != null ? snapshot : FileSnapshot.readTraced(file);
+	}
+}
@@ -0,0 +1,328 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Recursive sizes and file counts of directories, computed in the
+ * background and cached, so that listings can show them at once.
+ *
+ * A directory's own files are summed from one listing, which stands for
+ * as long as the directory's modification time is unchanged, and its
+ * total adds those of its subdirectories. Refreshing a directory thus
+ * stats every directory beneath it, but lists and stats files only in
+ * those that have changed; subdirectories are refreshed in parallel, and
+ * the new total is bubbled up into the cached totals of its ancestors
+ * without reading them again. As with any such check, a file rewritten
+ * in place goes unnoticed until something changes its directory.
+ *
+ * Hidden files count, since they take up space all the same; symbolic
+ * links are neither counted nor followed. Folders within archives are
+ * summed once, from the archive's index.
+ *
+ * Every directory that has been summed stays cached, at the cost of a
+ * few hundred bytes each, until it is deleted.
+ */
+public class DirectorySizes implements Closeable {
+
+	public static final long DEFAULT_REFRESH_MILLIS = 5 * 60 * 1000;
+
+	/**
+	 * The totals of a directory, as last computed.
+	 */
+	public static class Summary {
+
+		private static final Summary UNKNOWN = new Summary(-1, -1, true);
+
+		private final long size;
+		private final long file_count;
+		private final boolean is_pending;
+
+		Summary(long size, long file_count, boolean is_pending) {
+			this.size = size;
+			this.file_count = file_count;
+			this.is_pending = is_pending;
+		}
+
+		/**
+		 * False until the directory has been summed once.
+		 */
+		public boolean isKnown() {
+			return this.size >= 0;
+		}
+
+		public long getSize() {
+			return this.size;
+		}
+
+		public long getFileCount() {
+			return this.file_count;
+		}
+
+		/**
+		 * Whether the totals are being recomputed, or are missing some
+		 * subdirectory still to be summed for the first time.
+		 */
+		public boolean isPending() {
+			return this.is_pending;
+		}
+	}
+
+	/**
+	 * One directory, never modified once cached.
+	 */
+	private static class Entry {
+
+		/**
+		 * The directory's time when its own files were summed.
+		 */
+		final long last_modified;
+		final long own_size;
+		final long own_file_count;
+		final List<String> subdirectories;
+
+		final long total_size;
+		final long total_file_count;
+
+		/**
+		 * Whether every subdirectory's total was known when these were summed.
+		 */
+		final boolean is_complete;
+
+		final long refreshed_at;
+
+		Entry(long last_modified, long own_size, long own_file_count, List<String> subdirectories,
+				long total_size, long total_file_count, boolean is_complete, long refreshed_at) {
+			this.last_modified = last_modified;
+			this.own_size = own_size;
+			this.own_file_count = own_file_count;
+			this.subdirectories = subdirectories;
+			this.total_size = total_size;
+			this.total_file_count = total_file_count;
+			this.is_complete = is_complete;
+			this.refreshed_at = refreshed_at;
+		}
+	}
+
+	private final Path base_path;
+	private final long refresh_millis;
+	private final ForkJoinPool pool;
+
+	private final ConcurrentMap<Path, Entry> entries = new ConcurrentHashMap<Path, Entry>();
+
+	/**
+	 * Directories whose refreshes are queued or running; each covers
+	 * everything beneath it.
+	 */
+	private final Set<Path> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+	/**
+	 * @param refresh_millis how old totals may be before a listing
+	 *  showing them has them refreshed
+	 */
+	public DirectorySizes(File base_path, long refresh_millis, int parallelism) {
+		this.base_path = base_path.getAbsoluteFile().toPath();
+		this.refresh_millis = refresh_millis;
+		this.pool = new ForkJoinPool(Math.max(1, parallelism));
+	}
+
+	/**
+	 * The totals of a directory or a folder within an archive, as far as
+	 * they are known; stale or missing ones start being computed, and
+	 * never on the calling thread.
+	 *
+	 * @return null for anything else, and for parent links
+	 */
+	public Summary get(NavigableObject nav) {
+
+		if (nav.getIsParentLink() || !nav.isDirectory())
+			return null;
+
+		if (nav instanceof ZipMemberNavigableObject) {
+			ZipIndex.Node node = ((ZipMemberNavigableObject) nav).getNode();
+			return node != null ? new Summary(node.getTotalSize(), node.getTotalFileCount(), false) : null;
+		}
+		if (nav instanceof ZipParentNavigableObject) {
+			ZipIndex.Node root = ((ZipParentNavigableObject) nav).getZipIndex().getRoot();
+			return new Summary(root.getTotalSize(), root.getTotalFileCount(), false);
+		}
+
+		Path directory = nav.asFile().getAbsoluteFile().toPath();
+		if (!directory.startsWith(this.base_path))
+			return null;
+
+		Entry entry = this.entries.get(directory);
+		boolean is_stale = entry == null || System.currentTimeMillis() - entry.refreshed_at >= this.refresh_millis;
+		boolean is_refreshing = isRefreshing(directory);
+		if (is_stale && !is_refreshing && this.refreshing.add(directory)) {
+			is_refreshing = true;
+			this.pool.execute(new RefreshTask(directory, true));
+		}
+
+		if (entry == null)
+			return Summary.UNKNOWN;
+		return new Summary(entry.total_size, entry.total_file_count, is_refreshing || !entry.is_complete);
+	}
+
+	/**
+	 * Whether the directory or one above it is being refreshed.
+	 */
+	private boolean isRefreshing(Path directory) {
+		for (Path path = directory; path != null && path.startsWith(this.base_path); path = path.getParent())
+			if (this.refreshing.contains(path))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Caches a directory's totals from its own files and the cached totals
+	 * of its subdirectories, which are summed first.
+	 */
+	private synchronized void sum(Path directory, long last_modified, long own_size, long own_file_count,
+			List<String> subdirectories, long refreshed_at) {
+
+		long total_size = own_size;
+		long total_file_count = own_file_count;
+		boolean is_complete = true;
+		for (String name : subdirectories) {
+			Entry subdirectory = this.entries.get(directory.resolve(name));
+			if (subdirectory == null) {
+				is_complete = false;
+				continue;
+			}
+			total_size += subdirectory.total_size;
+			total_file_count += subdirectory.total_file_count;
+			is_complete &= subdirectory.is_complete;
+		}
+
+		this.entries.put(directory, new Entry(last_modified, own_size, own_file_count, subdirectories,
+				total_size, total_file_count, is_complete, refreshed_at));
+	}
+
+	/**
+	 * Resums the cached ancestors of a directory whose total has changed.
+	 */
+	private synchronized void bubbleUp(Path directory) {
+		for (Path path = directory.getParent(); path != null && path.startsWith(this.base_path); path = path.getParent()) {
+			Entry entry = this.entries.get(path);
+			if (entry == null)
+				return;
+			sum(path, entry.last_modified, entry.own_size, entry.own_file_count, entry.subdirectories,
+					entry.refreshed_at);
+		}
+	}
+
+	private void forget(Path directory) {
+		Entry entry = this.entries.remove(directory);
+		if (entry != null)
+			for (String name : entry.subdirectories)
+				forget(directory.resolve(name));
+	}
+
+	@SuppressWarnings("serial")
+	private class RefreshTask extends RecursiveAction {
+
+		private final Path directory;
+
+		/**
+		 * Whether this is where the refresh started, rather than a subdirectory.
+		 */
+		private final boolean is_top;
+
+		RefreshTask(Path directory, boolean is_top) {
+			this.directory = directory;
+			this.is_top = is_top;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				refresh();
+			} finally {
+				if (this.is_top)
+					refreshing.remove(this.directory);
+			}
+		}
+
+		private void refresh() {
+
+			long refreshed_at = System.currentTimeMillis();
+			FileSnapshot snapshot = FileSnapshot.readUnlessLink(this.directory);
+			if (snapshot == null || !snapshot.isDirectory()) {
+				forget(this.directory);
+				if (this.is_top)
+					bubbleUp(this.directory);
+				return;
+			}
+
+			Entry previous = entries.get(this.directory);
+			long own_size = 0;
+			long own_file_count = 0;
+			List<String> subdirectories;
+			if (previous != null && previous.last_modified == snapshot.lastModified()) {
+				own_size = previous.own_size;
+				own_file_count = previous.own_file_count;
+				subdirectories = previous.subdirectories;
+
+			} else {
+				subdirectories = Lists.newArrayList();
+				try {
+					DirectoryStream<Path> directory_stream = Files.newDirectoryStream(this.directory);
+					try {
+						for (Path child : directory_stream) {
+							FileSnapshot child_snapshot = FileSnapshot.readUnlessLink(child);
+							if (child_snapshot == null || !child_snapshot.exists())
+								continue;
+							if (child_snapshot.isDirectory()) {
+								subdirectories.add(child.getFileName().toString());
+							} else {
+								own_size += child_snapshot.getSize();
+								own_file_count++;
+							}
+						}
+					} finally {
+						directory_stream.close();
+					}
+				} catch (IOException e) {
+					// Counted as empty until it can be read
+				}
+				subdirectories = Collections.unmodifiableList(subdirectories);
+
+				if (previous != null) {
+					Set<String> removed = Sets.newHashSet(previous.subdirectories);
+					removed.removeAll(subdirectories);
+					for (String name : removed)
+						forget(this.directory.resolve(name));
+				}
+			}
+
+			List<RefreshTask> subtasks = Lists.newArrayListWithCapacity(subdirectories.size());
+			for (String name : subdirectories)
+				subtasks.add(new RefreshTask(this.directory.resolve(name), false));
+			invokeAll(subtasks);
+
+			sum(this.directory, snapshot.lastModified(), own_size, own_file_count, subdirectories, refreshed_at);
+			if (this.is_top)
+				bubbleUp(this.directory);
+		}
+	}
+
+	@Override
+	public void close() {
+		this.pool.shutdownNow();
+	}
+}
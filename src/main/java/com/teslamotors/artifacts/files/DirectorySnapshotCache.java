@@ -0,0 +1,299 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Objects;
+
+/**
+ * Keeps the listings of recently listed directories, and their own
+ * attributes, so that a popular directory is listed from memory rather
+ * than read and stat'ed all over again.
+ *
+ * A listing is dropped as soon as the WatchService reports a change in
+ * its directory. Not every filesystem reports changes, NFS made by other
+ * clients in particular, so listings also expire after a fixed time.
+ * The number of listings and their estimated size are both bounded, and
+ * the least recently used are evicted first.
+ */
+public class DirectorySnapshotCache implements Closeable {
+
+	public static final int DEFAULT_MAXIMUM_ENTRIES = 1000;
+	public static final long DEFAULT_MAXIMUM_BYTES = 64L * 1024 * 1024;
+	public static final long DEFAULT_TIME_TO_LIVE_MILLIS = 10 * 1000;
+
+	private final int maximum_entries;
+	private final long maximum_bytes;
+	private final long time_to_live_nanos;
+
+	/**
+	 * Null if this filesystem can't be watched, leaving only expiry.
+	 */
+	private final WatchService watch_service;
+
+	/**
+	 * Least recently used first. An entry is put in before its directory
+	 * is read, so that changes made while reading it are not lost.
+	 */
+	private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+	private long total_bytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private static class Entry {
+
+		final long loaded_at = System.nanoTime();
+		volatile WatchKey watch_key;
+
+		/**
+		 * Both null until the directory has been read.
+		 */
+		volatile FileSnapshot directory;
+		volatile DirectoryListing listing;
+		long estimated_bytes;
+
+		volatile boolean is_valid = true;
+	}
+
+	/**
+	 * @param time_to_live_millis how long a listing may be used without
+	 *  change notifications; 0 or less to rely on them alone
+	 */
+	public DirectorySnapshotCache(int maximum_entries, long maximum_bytes, long time_to_live_millis) {
+
+		this.maximum_entries = maximum_entries;
+		this.maximum_bytes = maximum_bytes;
+		this.time_to_live_nanos = TimeUnit.MILLISECONDS.toNanos(time_to_live_millis);
+
+		WatchService watch_service = null;
+		try {
+			watch_service = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			// Expiry alone, then
+		} catch (UnsupportedOperationException e) {
+			// Likewise
+		}
+		this.watch_service = watch_service;
+
+		if (watch_service != null) {
+			Thread watcher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					watchForChanges();
+				}
+			}, "directory-snapshot-watcher");
+			watcher.setDaemon(true);
+			watcher.start();
+		}
+	}
+
+	private boolean isUsable(Entry entry) {
+		return entry.is_valid && entry.listing != null
+				&& (this.time_to_live_nanos <= 0 || System.nanoTime() - entry.loaded_at < this.time_to_live_nanos);
+	}
+
+	/**
+	 * The directory's listing, from the cache if it hasn't changed since.
+	 */
+	DirectoryListing getListing(Path directory, ForkJoinPool stat_pool) throws IOException {
+
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(directory);
+			if (entry != null && isUsable(entry)) {
+				this.hits.incrementAndGet();
+				return entry.listing;
+			}
+
+			this.misses.incrementAndGet();
+			if (entry != null && entry.listing == null && entry.is_valid) {
+				// Being read by another request; read it again rather than wait
+				entry = null;
+			} else {
+				if (entry != null) {
+					this.expirations.incrementAndGet();
+					remove(directory, entry);
+				}
+				entry = new Entry();
+				this.entries.put(directory, entry);
+			}
+		}
+
+		if (entry == null)
+			return DirectoryListing.read(directory, stat_pool);
+
+		// Watched before reading, so that no change goes unnoticed
+		if (this.watch_service != null) {
+			try {
+				entry.watch_key = directory.register(this.watch_service, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			} catch (IOException e) {
+				// Expiry alone, then
+			} catch (ClosedWatchServiceException e) {
+				// Likewise
+			}
+			synchronized (this) {
+				// Removed while registering; the key is cancelled unless a newer entry shares it
+				Entry current = this.entries.get(directory);
+				if (!entry.is_valid && entry.watch_key != null
+						&& (current == null || current.watch_key != entry.watch_key))
+					entry.watch_key.cancel();
+			}
+		}
+
+		DirectoryListing listing;
+		try {
+			entry.directory = FileSnapshot.readTraced(directory);
+			listing = DirectoryListing.read(directory, stat_pool);
+		} catch (IOException e) {
+			synchronized (this) {
+				if (this.entries.get(directory) == entry)
+					remove(directory, entry);
+			}
+			throw e;
+		}
+
+		synchronized (this) {
+			if (entry.is_valid && this.entries.get(directory) == entry) {
+				entry.estimated_bytes = listing.estimateBytes();
+				entry.listing = listing;
+				this.total_bytes += entry.estimated_bytes;
+				evict();
+			}
+		}
+		return listing;
+	}
+
+	/**
+	 * The attributes of a directory whose listing is cached, as they were
+	 * when it was listed.
+	 *
+	 * @return null unless the listing is cached and current
+	 */
+	FileSnapshot getDirectorySnapshot(Path directory) {
+
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(directory);
+		}
+		return entry != null && isUsable(entry) ? entry.directory : null;
+	}
+
+	/**
+	 * Drops the listing of the directory, if it is cached.
+	 */
+	public synchronized void invalidate(Path directory) {
+		Entry entry = this.entries.get(directory);
+		if (entry != null) {
+			remove(directory, entry);
+			this.invalidations.incrementAndGet();
+		}
+	}
+
+	/**
+	 * The watch key is cancelled along with the entry; a directory read
+	 * again is registered again.
+	 */
+	private void remove(Path directory, Entry entry) {
+		entry.is_valid = false;
+		this.entries.remove(directory);
+		if (entry.listing != null)
+			this.total_bytes -= entry.estimated_bytes;
+		if (entry.watch_key != null)
+			entry.watch_key.cancel();
+	}
+
+	private void evict() {
+
+		Iterator<Map.Entry<Path, Entry>> iterator = this.entries.entrySet().iterator();
+		while ((this.entries.size() > this.maximum_entries || this.total_bytes > this.maximum_bytes)
+				&& iterator.hasNext()) {
+			Entry eldest = iterator.next().getValue();
+			iterator.remove();
+			eldest.is_valid = false;
+			if (eldest.listing != null)
+				this.total_bytes -= eldest.estimated_bytes;
+			if (eldest.watch_key != null)
+				eldest.watch_key.cancel();
+			this.evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Any event in a directory, including an overflow, drops its listing.
+	 */
+	private void watchForChanges() {
+		try {
+			while (true) {
+				WatchKey watch_key = this.watch_service.take();
+				watch_key.pollEvents();
+				invalidate((Path) watch_key.watchable());
+				watch_key.reset();
+			}
+		} catch (InterruptedException e) {
+			// Closed
+		} catch (ClosedWatchServiceException e) {
+			// Closed
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.watch_service != null)
+			this.watch_service.close();
+	}
+
+	public synchronized int getDirectoryCount() {
+		return this.entries.size();
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	public long getExpirationCount() {
+		return this.expirations.get();
+	}
+
+	public long getInvalidationCount() {
+		return this.invalidations.get();
+	}
+
+	public long getEvictionCount() {
+		return this.evictions.get();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return Objects.toStringHelper(this)
+				.add("directories", this.entries.size())
+				.add("bytes", this.total_bytes)
+				.add("watched", this.watch_service != null)
+				.add("hits", this.hits.get())
+				.add("misses", this.misses.get())
+				.add("expirations", this.expirations.get())
+				.add("invalidations", this.invalidations.get())
+				.add("evictions", this.evictions.get())
+				.toString();
+	}
+}
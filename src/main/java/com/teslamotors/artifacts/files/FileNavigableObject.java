@@ -2,7 +2,6 @@ package com.teslamotors.artifacts.files;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
@@ -12,35 +11,63 @@ import com.google.common.collect.Lists;
 public class FileNavigableObject extends NavigableObject {
 
 	private final File file;
+
+	/**
+	 * Taken when the directory was listed, or at the first question
+	 * about the file; everything after that is answered from it.
+	 */
+	private FileSnapshot snapshot;
+
+	/**
+	 * Lists this directory, and is handed down to its children and parent.
+	 */
+	private final DirectoryReader reader;
+
+	/**
+	 * Listed serially, without a DirectoryReader of its own.
+	 */
 	public FileNavigableObject(File file) {
+		this(file, DirectoryReader.SERIAL);
+	}
+
+	public FileNavigableObject(File file, DirectoryReader reader) {
+		this.file = file;
+		this.reader = reader;
+	}
+
+	FileNavigableObject(File file, FileSnapshot snapshot, DirectoryReader reader) {
 		this.file = file;
+		this.snapshot = snapshot;
+		this.reader = reader;
+	}
+
+	private FileSnapshot getSnapshot() {
+		if (this.snapshot == null)
+			this.snapshot = this.reader.readSnapshot(this.file.toPath());
+		return this.snapshot;
 	}
 
 	@Override
 	protected List<NavigableObject> getIntermediateChildList() throws IOException {
 
-		List<NavigableObject> navigable_objects = Lists.newArrayList();
+		DirectoryListing listing = this.reader.read(this.file.toPath());
 
-		String[] file_list = this.file.list();
-		if (file_list == null)
-			throw new IOException( String.format("You probably don't have permission to access \"%s\"",
-					this.file.getPath()) );
-
-		for (String f : file_list)
-			navigable_objects.add(new FileNavigableObject(new File(this.file, f)));
+		List<NavigableObject> navigable_objects = Lists.newArrayListWithCapacity(listing.size());
+		for (int i = 0; i < listing.size(); i++)
+			navigable_objects.add(new FileNavigableObject(listing.getChild(i), listing.getSnapshot(i), this.reader));
 
 		return navigable_objects;
 	}
 
 	@Override
 	public NavigableObject getParent() {
-		return new FileNavigableObject(this.file.getParentFile());	
+		return new FileNavigableObject(this.file.getParentFile(), this.reader);
 	}
 
 	@Override
 	public
 	long lastModified() {
-		return this.file.lastModified();
+		return getSnapshot().lastModified();
 	}
 
 	@Override
@@ -51,7 +78,15 @@ public class FileNavigableObject extends NavigableObject {
 
 	@Override
 	public boolean isDirectory() {
-		return this.file.isDirectory();
+		return getSnapshot().isDirectory();
+	}
+
+	/**
+	 * Whether asFile() is the actual file on disk holding the content,
+	 * rather than just the path it would appear at.
+	 */
+	public boolean isOnFilesystem() {
+		return true;
 	}
 
 	@Override
@@ -62,16 +97,29 @@ public class FileNavigableObject extends NavigableObject {
 	
 	@Override
 	public long getSize() {
-		return this.file.length();
+		return getSnapshot().getSize();
 	}
 
 	@Override
 	public boolean exists() {
-		return this.file.exists();
+		return getSnapshot().exists();
 	}
 
 	@Override
-	public InputStream getInputStream() throws FileNotFoundException {
+	public InputStream getInputStream() throws IOException {
 		return new FileInputStream(this.file);
 	}
+
+	@Override
+	public InputStream getInputStream(long offset) throws IOException {
+
+		FileInputStream input = new FileInputStream(this.file);
+		try {
+			input.getChannel().position(offset);
+		} catch (IOException e) {
+			input.close();
+			throw e;
+		}
+		return input;
+	}
 }
\ No newline at end of file
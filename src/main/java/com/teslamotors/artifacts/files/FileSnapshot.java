@@ -0,0 +1,160 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.teslamotors.artifacts.metrics.RequestTrace;
+
+/**
+ * The attributes of one file, read with a single stat call and fixed from
+ * then on, so that listing, sorting and rendering a directory don't each
+ * go back to the filesystem; on NFS every one of those calls is a round trip.
+ *
+ * Large directories are stat'ed in parallel, since on high-latency
+ * filesystems the time goes into waiting rather than work.
+ */
+public final class FileSnapshot {
+
+	static final FileSnapshot MISSING = new FileSnapshot(false, false, 0, 0);
+
+	/**
+	 * Directories smaller than this are stat'ed on the request thread.
+	 */
+	static final int PARALLEL_STAT_THRESHOLD = 512;
+
+	private static final int STAT_BATCH_SIZE = 64;
+
+	public static final int DEFAULT_STAT_PARALLELISM = 8;
+
+	private final boolean exists;
+	private final boolean is_directory;
+	private final long size;
+	private final long last_modified;
+
+	private FileSnapshot(boolean exists, boolean is_directory, long size, long last_modified) {
+		this.exists = exists;
+		this.is_directory = is_directory;
+		this.size = size;
+		this.last_modified = last_modified;
+	}
+
+	/**
+	 * Like File, follows symbolic links; a file that can't be stat'ed is MISSING.
+	 */
+	static FileSnapshot read(Path path) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			return new FileSnapshot(true, attributes.isDirectory(),
+					attributes.size(), attributes.lastModifiedTime().toMillis());
+		} catch (IOException e) {
+			return MISSING;
+		}
+	}
+
+	/**
+	 * Like read(), but without following a symbolic link, for walks that
+	 * mustn't loop.
+	 *
+	 * @return null for a symbolic link
+	 */
+	static FileSnapshot readUnlessLink(Path path) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+			if (attributes.isSymbolicLink())
+				return null;
+			return new FileSnapshot(true, attributes.isDirectory(),
+					attributes.size(), attributes.lastModifiedTime().toMillis());
+		} catch (IOException e) {
+			return MISSING;
+		}
+	}
+
+	/**
+	 * Like read(), but counted as a stat of the current request.
+	 */
+	static FileSnapshot readTraced(Path path) {
+
+		RequestTrace.Phase resumed = RequestTrace.enter(RequestTrace.Phase.STAT);
+		try {
+			RequestTrace.count(RequestTrace.Phase.STAT, 1);
+			return read(path);
+		} finally {
+			RequestTrace.exit(resumed);
+		}
+	}
+
+	/**
+	 * @param stat_pool null to stat everything on the calling thread
+	 */
+	static FileSnapshot[] readAll(List<Path> paths, ForkJoinPool stat_pool) {
+
+		RequestTrace.Phase resumed = RequestTrace.enter(RequestTrace.Phase.STAT);
+		try {
+			RequestTrace.count(RequestTrace.Phase.STAT, paths.size());
+
+			FileSnapshot[] snapshots = new FileSnapshot[paths.size()];
+			if (stat_pool != null && paths.size() >= PARALLEL_STAT_THRESHOLD)
+				stat_pool.invoke(new StatTask(paths, snapshots, 0, paths.size()));
+			else
+				for (int i = 0; i < snapshots.length; i++)
+					snapshots[i] = read(paths.get(i));
+			return snapshots;
+
+		} finally {
+			RequestTrace.exit(resumed);
+		}
+	}
+
+	public boolean exists() {
+		return this.exists;
+	}
+
+	public boolean isDirectory() {
+		return this.is_directory;
+	}
+
+	public long getSize() {
+		return this.size;
+	}
+
+	public long lastModified() {
+		return this.last_modified;
+	}
+
+	@SuppressWarnings("serial")
+	private static class StatTask extends RecursiveAction {
+
+		private final List<Path> paths;
+		private final FileSnapshot[] snapshots;
+		private final int start;
+		private final int end;
+
+		StatTask(List<Path> paths, FileSnapshot[] snapshots, int start, int end) {
+			this.paths = paths;
+			this.snapshots = snapshots;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (this.end - this.start <= STAT_BATCH_SIZE) {
+				for (int i = this.start; i < this.end; i++)
+					this.snapshots[i] = read(this.paths.get(i));
+				return;
+			}
+
+			int middle = (this.start + this.end) >>> 1;
+			invokeAll(new StatTask(this.paths, this.snapshots, this.start, middle),
+					new StatTask(this.paths, this.snapshots, middle, this.end));
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package com.teslamotors.artifacts.files;
+
+import java.util.regex.Pattern;
+
+/**
+ * A shell-style pattern: "*" and "?" match within one path segment,
+ * "**" across segments, "[abc]" or "[!abc]" one character of a set, and
+ * "{a,b}" either alternative. A pattern without a slash is matched
+ * against names alone, and one with a slash against paths relative to
+ * where the search started.
+ */
+final class Glob {
+
+	private final Pattern pattern;
+	private final boolean is_path_pattern;
+
+	/**
+	 * @throws IllegalArgumentException for an unbalanced bracket or brace
+	 */
+	Glob(String glob) {
+		this.pattern = Pattern.compile(toRegex(glob));
+		this.is_path_pattern = glob.indexOf('/') >= 0;
+	}
+
+	boolean isPathPattern() {
+		return this.is_path_pattern;
+	}
+
+	/**
+	 * @param path the name itself, unless this is a path pattern
+	 */
+	boolean matches(String path) {
+		return this.pattern.matcher(path).matches();
+	}
+
+	static String toRegex(String glob) {
+
+		StringBuilder regex = new StringBuilder(glob.length() * 2);
+		boolean is_in_brackets = false;
+		int brace_depth = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+
+			if (is_in_brackets) {
+				if (c == ']') {
+					regex.append(']');
+					is_in_brackets = false;
+				} else if (c == '\\' || c == '[' || c == '&') {
+					regex.append('\\').append(c);
+				} else {
+					regex.append(c);
+				}
+				continue;
+			}
+
+			switch (c) {
+			case '*':
+				if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					regex.append(".*");
+					i++;
+				} else {
+					regex.append("[^/]*");
+				}
+				break;
+			case '?':
+				regex.append("[^/]");
+				break;
+			case '[':
+				regex.append('[');
+				if (i + 1 < glob.length() && glob.charAt(i + 1) == '!') {
+					regex.append('^');
+					i++;
+				}
+				is_in_brackets = true;
+				break;
+			case '{':
+				regex.append("(?:");
+				brace_depth++;
+				break;
+			case '}':
+				if (brace_depth == 0)
+					throw new IllegalArgumentException("Unbalanced \"}\" in " + glob);
+				regex.append(')');
+				brace_depth--;
+				break;
+			case ',':
+				regex.append(brace_depth > 0 ? "|" : ",");
+				break;
+			default:
+				if ("\\.^$|+()".indexOf(c) >= 0)
+					regex.append('\\');
+				regex.append(c);
+			}
+		}
+
+		if (is_in_brackets)
+			throw new IllegalArgumentException("Unbalanced \"[\" in " + glob);
+		if (brace_depth > 0)
+			throw new IllegalArgumentException("Unbalanced \"{\" in " + glob);
+		return regex.toString();
+	}
+}
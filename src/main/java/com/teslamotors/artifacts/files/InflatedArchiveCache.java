@@ -0,0 +1,195 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Holds inflated copies of deflated inner archives that are too large
+ * to keep in memory, so that they can be read at random like any other
+ * archive on disk.
+ *
+ * Copies are named after a hash of their ZipIndexCache key, which already
+ * identifies the outer archive's version. Each copy is kept open, and is
+ * handed out as its open channel, so that finding it and reading it can't
+ * be split by its deletion. The total size is bounded, and the least
+ * recently opened copies are deleted first; an index whose copy is gone
+ * is rebuilt for the next request. The directory is emptied at startup.
+ */
+public class InflatedArchiveCache {
+
+	private static final String SUFFIX = ".zip";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	private final File directory;
+	private final long maximum_bytes;
+
+	/**
+	 * File names of the inflated copies, least recently used first, with their channels.
+	 */
+	private final LinkedHashMap<String, SharedFileChannel> entries =
+			new LinkedHashMap<String, SharedFileChannel>(16, 0.75f, true);
+	private long total_bytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public InflatedArchiveCache(File directory, long maximum_bytes) throws IOException {
+
+		this.directory = directory;
+		this.maximum_bytes = maximum_bytes;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+
+		// Nothing refers to copies left by a previous run
+		File[] existing = directory.listFiles();
+		if (existing != null)
+			for (File file : existing)
+				if (file.getName().endsWith(SUFFIX) || file.getName().endsWith(TEMPORARY_SUFFIX))
+					file.delete();
+	}
+
+	/**
+	 * Archives larger than this would crowd out too much of the cache.
+	 */
+	public long getMaximumArchiveBytes() {
+		return this.maximum_bytes / 4;
+	}
+
+	private static String getCacheName(String key) {
+		return Hashing.sha1().hashString(key, Charsets.UTF_8) + SUFFIX;
+	}
+
+	/**
+	 * @return the inflated copy, with a reference the caller must release,
+	 *  or null if there is none
+	 */
+	synchronized SharedFileChannel get(String key) throws IOException {
+
+		SharedFileChannel cached = this.entries.get(getCacheName(key));
+		if (cached != null) {
+			cached.acquire();
+			this.hits.incrementAndGet();
+			return cached;
+		}
+
+		this.misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Writes the inflated content into the cache, closing the stream.
+	 *
+	 * @return the inflated copy, with a reference the caller must release
+	 */
+	SharedFileChannel put(String key, InputStream content) throws IOException {
+
+		String name = getCacheName(key);
+		File temporary = null;
+		SharedFileChannel inflated = null;
+		try {
+			temporary = File.createTempFile("inflating-", TEMPORARY_SUFFIX, this.directory);
+
+			try {
+				OutputStream output = new FileOutputStream(temporary);
+				try {
+					ByteStreams.copy(content, output);
+				} finally {
+					output.close();
+				}
+			} finally {
+				content.close();
+			}
+
+			// Opened before it is moved into place, where it could be deleted
+			File cached = new File(this.directory, name);
+			inflated = new SharedFileChannel(cached, new FileInputStream(temporary).getChannel());
+			Files.move(temporary.toPath(), cached.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			temporary = null;
+
+			synchronized (this) {
+				// The caller's reference, besides the cache's own
+				inflated.acquire();
+				SharedFileChannel previous = this.entries.put(name, inflated);
+				if (previous != null) {
+					// Its file has just been replaced, rather than deleted
+					this.total_bytes -= previous.length();
+					previous.retire();
+				}
+				this.total_bytes += inflated.length();
+				evict(name);
+			}
+			return inflated;
+
+		} catch (IOException e) {
+			if (inflated != null)
+				inflated.retire();
+			throw e;
+		} finally {
+			if (temporary != null)
+				temporary.delete();
+		}
+	}
+
+	/**
+	 * Requests reading a copy hold their own references to its channel,
+	 * so that on POSIX filesystems it stays readable after being deleted
+	 * here; its space is freed when the last of them is done. The copy
+	 * just written is kept, since its caller is about to use it.
+	 */
+	private void evict(String keep_name) {
+
+		Iterator<Map.Entry<String, SharedFileChannel>> iterator = this.entries.entrySet().iterator();
+		while (this.total_bytes > this.maximum_bytes && iterator.hasNext()) {
+			Map.Entry<String, SharedFileChannel> eldest = iterator.next();
+			if (eldest.getKey().equals(keep_name))
+				continue;
+
+			iterator.remove();
+			this.total_bytes -= eldest.getValue().length();
+			new File(this.directory, eldest.getKey()).delete();
+			eldest.getValue().retire();
+			this.evictions.incrementAndGet();
+		}
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	public long getEvictionCount() {
+		return this.evictions.get();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return Objects.toStringHelper(this)
+				.add("files", this.entries.size())
+				.add("bytes", this.total_bytes)
+				.add("hits", this.hits.get())
+				.add("misses", this.misses.get())
+				.add("evictions", this.evictions.get())
+				.toString();
+	}
+}
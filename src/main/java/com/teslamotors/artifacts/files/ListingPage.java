@@ -0,0 +1,37 @@
+package com.teslamotors.artifacts.files;
+
+import java.util.List;
+
+/**
+ * One page of a sorted listing, as selected by a PageRequest.
+ */
+public class ListingPage {
+
+	private final List<NavigableObject> items;
+	private final int total;
+	private final PageRequest.Cursor next_cursor;
+
+	ListingPage(List<NavigableObject> items, int total, PageRequest.Cursor next_cursor) {
+		this.items = items;
+		this.total = total;
+		this.next_cursor = next_cursor;
+	}
+
+	public List<NavigableObject> getItems() {
+		return this.items;
+	}
+
+	/**
+	 * The number of entries in the whole listing.
+	 */
+	public int getTotal() {
+		return this.total;
+	}
+
+	/**
+	 * @return where the next page starts, or null if this is the last page
+	 */
+	public PageRequest.Cursor getNextCursor() {
+		return this.next_cursor;
+	}
+}
@@ -0,0 +1,365 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+
+/**
+ * A memory-mapped index of every name under the base path, archive
+ * members included, for finding files by name without touching the
+ * filesystem. Written by NameIndexWriter, and never modified: a newer
+ * index replaces the file as a whole.
+ *
+ * Names are compared ignoring ASCII case. Substrings are found through
+ * postings of the trigrams in each name, hashed into a fixed number of
+ * buckets; collisions only add candidates, which are checked against
+ * the names themselves. Prefixes are found by binary search in a
+ * permutation of the entries sorted by name. Sizes and times are as
+ * they were when the entry was last indexed.
+ *
+ * Layout, in big-endian order:
+ *
+ * <pre>
+ * header   magic, version, entry count, bucket count, section offsets, build time
+ * records  per entry: parent, first child, child count, flags, name offset, size, time
+ * names    UTF-8, in entry order, so each ends where the next begins
+ * sorted   entry ids in name order
+ * buckets  per trigram bucket, the offset of its postings, and one more for the end
+ * postings entry ids, ascending within each bucket
+ * </pre>
+ *
+ * Entry 0 is the base path itself, and every directory's children are
+ * consecutive entries.
+ */
+public final class NameIndex {
+
+	static final int MAGIC = 0x414e4958; // "ANIX"
+	static final int VERSION = 1;
+
+	static final int HEADER_BYTES = 64;
+	static final int RECORD_BYTES = 40;
+
+	static final int BUCKET_BITS = 18;
+	static final int BUCKET_COUNT = 1 << BUCKET_BITS;
+
+	static final int FLAG_DIRECTORY = 1;
+	static final int FLAG_ARCHIVE = 2;
+	static final int FLAG_ARCHIVE_MEMBER = 4;
+
+	private static final int NO_PARENT = -1;
+
+	private final ByteBuffer buffer;
+	private final int entry_count;
+	private final int names_offset;
+	private final int sorted_offset;
+	private final int buckets_offset;
+	private final int postings_offset;
+	private final long built_at;
+
+	private NameIndex(ByteBuffer buffer) throws IOException {
+
+		this.buffer = buffer;
+		if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+				|| buffer.getInt(12) != BUCKET_COUNT)
+			throw new IOException("Not a name index, or one of another version");
+
+		this.entry_count = buffer.getInt(8);
+		this.names_offset = (int) buffer.getLong(16);
+		this.sorted_offset = (int) buffer.getLong(24);
+		this.buckets_offset = (int) buffer.getLong(32);
+		this.postings_offset = (int) buffer.getLong(40);
+		this.built_at = buffer.getLong(48);
+	}
+
+	/**
+	 * @throws IOException if the file isn't a complete index of this version
+	 */
+	public static NameIndex open(File file) throws IOException {
+
+		RandomAccessFile random_access_file = new RandomAccessFile(file, "r");
+		try {
+			// The mapping outlives the channel
+			FileChannel channel = random_access_file.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new NameIndex(buffer);
+		} finally {
+			random_access_file.close();
+		}
+	}
+
+	public int size() {
+		return this.entry_count;
+	}
+
+	/**
+	 * When the walk that produced this index started.
+	 */
+	public long getBuiltAt() {
+		return this.built_at;
+	}
+
+	private int recordOffset(int id) {
+		return HEADER_BYTES + id * RECORD_BYTES;
+	}
+
+	int getParent(int id) {
+		return this.buffer.getInt(recordOffset(id));
+	}
+
+	int getFirstChild(int id) {
+		return this.buffer.getInt(recordOffset(id) + 4);
+	}
+
+	int getChildCount(int id) {
+		return this.buffer.getInt(recordOffset(id) + 8);
+	}
+
+	int getFlags(int id) {
+		return this.buffer.getInt(recordOffset(id) + 12);
+	}
+
+	private int getNameStart(int id) {
+		return this.names_offset + this.buffer.getInt(recordOffset(id) + 16);
+	}
+
+	private int getNameEnd(int id) {
+		return id + 1 < this.entry_count ? getNameStart(id + 1) : this.sorted_offset;
+	}
+
+	public long getSize(int id) {
+		return this.buffer.getLong(recordOffset(id) + 24);
+	}
+
+	public long lastModified(int id) {
+		return this.buffer.getLong(recordOffset(id) + 32);
+	}
+
+	public boolean isDirectory(int id) {
+		return (getFlags(id) & FLAG_DIRECTORY) != 0;
+	}
+
+	public boolean isArchive(int id) {
+		return (getFlags(id) & FLAG_ARCHIVE) != 0;
+	}
+
+	public boolean isArchiveMember(int id) {
+		return (getFlags(id) & FLAG_ARCHIVE_MEMBER) != 0;
+	}
+
+	public String getName(int id) {
+		int start = getNameStart(id);
+		byte[] bytes = new byte[getNameEnd(id) - start];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = this.buffer.get(start + i);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	/**
+	 * The path relative to the base path, with archive members
+	 * beneath their archive as if it were a directory.
+	 */
+	public String getPath(int id) {
+		if (id == 0)
+			return "";
+		String name = getName(id);
+		int parent = getParent(id);
+		return parent == 0 ? name : getPath(parent) + "/" + name;
+	}
+
+	/**
+	 * @param path relative to the base path, without leading or trailing slashes
+	 * @return the entry's id, or -1 if it isn't in the index
+	 */
+	public int lookup(String path) {
+
+		int id = 0;
+		if (path.isEmpty())
+			return id;
+
+		for (String name : path.split("/")) {
+			byte[] name_bytes = name.getBytes(Charsets.UTF_8);
+			int first = getFirstChild(id);
+			int end = first + getChildCount(id);
+			id = -1;
+			for (int child = first; child < end; child++) {
+				if (compareName(child, name_bytes, false, false) == 0) {
+					id = child;
+					break;
+				}
+			}
+			if (id < 0)
+				return -1;
+		}
+		return id;
+	}
+
+	/**
+	 * Whether the entry is the given one or somewhere beneath it.
+	 */
+	public boolean isWithin(int id, int ancestor) {
+		for (; id != NO_PARENT; id = getParent(id))
+			if (id == ancestor)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Entries whose names contain the text, in index order.
+	 *
+	 * @param within only entries beneath this one; 0 for all
+	 */
+	public int[] findContaining(String text, int within, int limit) {
+
+		byte[] query = toLowerAscii(text.getBytes(Charsets.UTF_8));
+		int[] found = new int[Math.min(limit, 1024)];
+		int count = 0;
+
+		if (query.length < 3) {
+			// Too short for a trigram, so every name is a candidate
+			for (int id = 1; id < this.entry_count && count < limit; id++) {
+				if (containsIgnoringCase(id, query) && isWithin(id, within)) {
+					if (count == found.length)
+						found = Arrays.copyOf(found, Math.min(limit, 2 * count));
+					found[count++] = id;
+				}
+			}
+			return Arrays.copyOf(found, count);
+		}
+
+		// The rarest of the query's trigrams has the fewest candidates
+		int best_bucket = -1;
+		int best_length = Integer.MAX_VALUE;
+		for (int i = 0; i + 3 <= query.length; i++) {
+			int bucket = getBucket(query[i], query[i + 1], query[i + 2]);
+			int length = getPostingsEnd(bucket) - getPostingsStart(bucket);
+			if (length < best_length) {
+				best_bucket = bucket;
+				best_length = length;
+			}
+		}
+
+		int start = getPostingsStart(best_bucket);
+		int end = getPostingsEnd(best_bucket);
+		for (int posting = start; posting < end && count < limit; posting++) {
+			int id = this.buffer.getInt(this.postings_offset + 4 * posting);
+			if (containsIgnoringCase(id, query) && isWithin(id, within)) {
+				if (count == found.length)
+					found = Arrays.copyOf(found, Math.min(limit, 2 * count));
+				found[count++] = id;
+			}
+		}
+		return Arrays.copyOf(found, count);
+	}
+
+	/**
+	 * Entries whose names start with the prefix, in name order.
+	 *
+	 * @param within only entries beneath this one; 0 for all
+	 */
+	public int[] findStartingWith(String prefix, int within, int limit) {
+
+		byte[] query = prefix.getBytes(Charsets.UTF_8);
+
+		// The first sorted position whose name isn't less than the prefix
+		int low = 0;
+		int high = this.entry_count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (compareName(getSorted(middle), query, true, true) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		int[] found = new int[Math.min(limit, 1024)];
+		int count = 0;
+		for (int position = low; position < this.entry_count && count < limit; position++) {
+			int id = getSorted(position);
+			if (compareName(id, query, true, true) != 0)
+				break;
+			if (id != 0 && isWithin(id, within)) {
+				if (count == found.length)
+					found = Arrays.copyOf(found, Math.min(limit, 2 * count));
+				found[count++] = id;
+			}
+		}
+		return Arrays.copyOf(found, count);
+	}
+
+	private int getSorted(int position) {
+		return this.buffer.getInt(this.sorted_offset + 4 * position);
+	}
+
+	private int getPostingsStart(int bucket) {
+		return this.buffer.getInt(this.buckets_offset + 4 * bucket);
+	}
+
+	private int getPostingsEnd(int bucket) {
+		return this.buffer.getInt(this.buckets_offset + 4 * (bucket + 1));
+	}
+
+	/**
+	 * @param is_prefix whether a name that merely starts with the query compares equal
+	 */
+	private int compareName(int id, byte[] query, boolean is_ignoring_case, boolean is_prefix) {
+
+		int start = getNameStart(id);
+		int length = getNameEnd(id) - start;
+		int common = Math.min(length, query.length);
+		for (int i = 0; i < common; i++) {
+			int a = this.buffer.get(start + i) & 0xff;
+			int b = query[i] & 0xff;
+			if (is_ignoring_case) {
+				a = toLowerAscii(a);
+				b = toLowerAscii(b);
+			}
+			if (a != b)
+				return a - b;
+		}
+		if (is_prefix && length >= query.length)
+			return 0;
+		return length - query.length;
+	}
+
+	/**
+	 * @param query already lowercased
+	 */
+	private boolean containsIgnoringCase(int id, byte[] query) {
+
+		int start = getNameStart(id);
+		int last = getNameEnd(id) - query.length;
+		for (int position = start; position <= last; position++) {
+			int i = 0;
+			while (i < query.length && toLowerAscii(this.buffer.get(position + i) & 0xff) == (query[i] & 0xff))
+				i++;
+			if (i == query.length)
+				return true;
+		}
+		return false;
+	}
+
+	static int toLowerAscii(int b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+
+	static byte[] toLowerAscii(byte[] bytes) {
+		byte[] lower = new byte[bytes.length];
+		for (int i = 0; i < bytes.length; i++)
+			lower[i] = (byte) toLowerAscii(bytes[i] & 0xff);
+		return lower;
+	}
+
+	/**
+	 * @param b0 lowercased, as are b1 and b2
+	 */
+	static int getBucket(byte b0, byte b1, byte b2) {
+		int trigram = (b0 & 0xff) << 16 | (b1 & 0xff) << 8 | (b2 & 0xff);
+		return (trigram * 0x9e3779b1) >>> (32 - BUCKET_BITS);
+	}
+}
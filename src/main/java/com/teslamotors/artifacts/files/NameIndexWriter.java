@@ -0,0 +1,229 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Collects the entries of a NameIndex in columns of primitives, since
+ * there may be millions of them, and writes the index file.
+ */
+final class NameIndexWriter {
+
+	private int entry_count = 0;
+	private int[] parents = new int[1024];
+	private int[] first_children = new int[1024];
+	private int[] child_counts = new int[1024];
+	private int[] flags = new int[1024];
+	private long[] sizes = new long[1024];
+	private long[] times = new long[1024];
+
+	/**
+	 * Where each entry's name starts in the names; one more for the end.
+	 */
+	private int[] name_offsets = new int[1025];
+	private byte[] names = new byte[16 * 1024];
+
+	int size() {
+		return this.entry_count;
+	}
+
+	/**
+	 * @return the new entry's id
+	 */
+	int add(int parent, String name, int entry_flags, long size, long time) {
+		return add(parent, name.getBytes(Charsets.UTF_8), entry_flags, size, time);
+	}
+
+	int add(int parent, byte[] name, int entry_flags, long size, long time) {
+
+		int id = this.entry_count;
+		if (id == this.parents.length) {
+			int capacity = 2 * id;
+			this.parents = Arrays.copyOf(this.parents, capacity);
+			this.first_children = Arrays.copyOf(this.first_children, capacity);
+			this.child_counts = Arrays.copyOf(this.child_counts, capacity);
+			this.flags = Arrays.copyOf(this.flags, capacity);
+			this.sizes = Arrays.copyOf(this.sizes, capacity);
+			this.times = Arrays.copyOf(this.times, capacity);
+			this.name_offsets = Arrays.copyOf(this.name_offsets, capacity + 1);
+		}
+
+		int name_start = this.name_offsets[id];
+		if (name_start + name.length > this.names.length) {
+			if ((long) name_start + name.length > Integer.MAX_VALUE / 2)
+				throw new IllegalStateException("Too many names to index");
+			this.names = Arrays.copyOf(this.names, Math.max(2 * this.names.length, name_start + name.length));
+		}
+		System.arraycopy(name, 0, this.names, name_start, name.length);
+		this.name_offsets[id + 1] = name_start + name.length;
+
+		this.parents[id] = parent;
+		this.first_children[id] = 0;
+		this.child_counts[id] = 0;
+		this.flags[id] = entry_flags;
+		this.sizes[id] = size;
+		this.times[id] = time;
+		this.entry_count++;
+		return id;
+	}
+
+	/**
+	 * Records that the entries from first_child on, up to the current
+	 * end, are the children of the given one.
+	 */
+	void setChildren(int id, int first_child) {
+		this.first_children[id] = first_child;
+		this.child_counts[id] = this.entry_count - first_child;
+	}
+
+	/**
+	 * Writes the index to the file, replacing anything there.
+	 */
+	void write(File file, long built_at) throws IOException {
+
+		int entry_count = this.entry_count;
+		int names_length = this.name_offsets[entry_count];
+
+		// Every distinct trigram bucket of a name gets one posting
+		int[] bucket_ends = new int[NameIndex.BUCKET_COUNT + 1];
+		int[] last_ids = new int[NameIndex.BUCKET_COUNT];
+		Arrays.fill(last_ids, -1);
+		long posting_count = 0;
+		for (int id = 0; id < entry_count; id++) {
+			int end = this.name_offsets[id + 1];
+			for (int i = this.name_offsets[id]; i + 3 <= end; i++) {
+				int bucket = getBucket(i);
+				if (last_ids[bucket] != id) {
+					last_ids[bucket] = id;
+					bucket_ends[bucket + 1]++;
+					posting_count++;
+				}
+			}
+		}
+		for (int bucket = 0; bucket < NameIndex.BUCKET_COUNT; bucket++)
+			bucket_ends[bucket + 1] += bucket_ends[bucket];
+
+		long names_offset = NameIndex.HEADER_BYTES + (long) entry_count * NameIndex.RECORD_BYTES;
+		long sorted_offset = names_offset + names_length;
+		long buckets_offset = sorted_offset + 4L * entry_count;
+		long postings_offset = buckets_offset + 4L * (NameIndex.BUCKET_COUNT + 1);
+		long total_bytes = postings_offset + 4 * posting_count;
+		if (total_bytes > Integer.MAX_VALUE)
+			throw new IOException("A name index of " + entry_count + " entries would be too large to map");
+
+		RandomAccessFile random_access_file = new RandomAccessFile(file, "rw");
+		try {
+			random_access_file.setLength(0);
+			random_access_file.setLength(total_bytes);
+			MappedByteBuffer buffer = random_access_file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, total_bytes);
+
+			buffer.putInt(0, NameIndex.MAGIC);
+			buffer.putInt(4, NameIndex.VERSION);
+			buffer.putInt(8, entry_count);
+			buffer.putInt(12, NameIndex.BUCKET_COUNT);
+			buffer.putLong(16, names_offset);
+			buffer.putLong(24, sorted_offset);
+			buffer.putLong(32, buckets_offset);
+			buffer.putLong(40, postings_offset);
+			buffer.putLong(48, built_at);
+
+			buffer.position(NameIndex.HEADER_BYTES);
+			for (int id = 0; id < entry_count; id++) {
+				buffer.putInt(this.parents[id]);
+				buffer.putInt(this.first_children[id]);
+				buffer.putInt(this.child_counts[id]);
+				buffer.putInt(this.flags[id]);
+				buffer.putInt(this.name_offsets[id]);
+				buffer.putInt(0);
+				buffer.putLong(this.sizes[id]);
+				buffer.putLong(this.times[id]);
+			}
+
+			buffer.put(this.names, 0, names_length);
+
+			for (int id : sortByName())
+				buffer.putInt(id);
+
+			for (int bucket_end : bucket_ends)
+				buffer.putInt(bucket_end);
+
+			// Postings go in at each bucket's next free place, so they ascend by id
+			int[] next_postings = Arrays.copyOf(bucket_ends, NameIndex.BUCKET_COUNT);
+			Arrays.fill(last_ids, -1);
+			for (int id = 0; id < entry_count; id++) {
+				int end = this.name_offsets[id + 1];
+				for (int i = this.name_offsets[id]; i + 3 <= end; i++) {
+					int bucket = getBucket(i);
+					if (last_ids[bucket] != id) {
+						last_ids[bucket] = id;
+						buffer.putInt((int) postings_offset + 4 * next_postings[bucket]++, id);
+					}
+				}
+			}
+
+			buffer.force();
+		} finally {
+			random_access_file.close();
+		}
+	}
+
+	private int getBucket(int name_position) {
+		return NameIndex.getBucket(
+				(byte) NameIndex.toLowerAscii(this.names[name_position] & 0xff),
+				(byte) NameIndex.toLowerAscii(this.names[name_position + 1] & 0xff),
+				(byte) NameIndex.toLowerAscii(this.names[name_position + 2] & 0xff));
+	}
+
+	/**
+	 * Entry ids by name ignoring ASCII case, merge sorted since there's
+	 * no sorting primitives with a comparator.
+	 */
+	private int[] sortByName() {
+
+		int[] ids = new int[this.entry_count];
+		for (int id = 0; id < ids.length; id++)
+			ids[id] = id;
+
+		int[] scratch = new int[ids.length];
+		for (int width = 1; width < ids.length; width *= 2) {
+			for (int start = 0; start < ids.length; start += 2 * width) {
+				int middle = Math.min(start + width, ids.length);
+				int end = Math.min(start + 2 * width, ids.length);
+				int left = start;
+				int right = middle;
+				for (int i = start; i < end; i++) {
+					if (left < middle && (right >= end || compareNames(ids[left], ids[right]) <= 0))
+						scratch[i] = ids[left++];
+					else
+						scratch[i] = ids[right++];
+				}
+			}
+			int[] sorted = scratch;
+			scratch = ids;
+			ids = sorted;
+		}
+		return ids;
+	}
+
+	private int compareNames(int id0, int id1) {
+
+		int start0 = this.name_offsets[id0];
+		int length0 = this.name_offsets[id0 + 1] - start0;
+		int start1 = this.name_offsets[id1];
+		int length1 = this.name_offsets[id1 + 1] - start1;
+		int common = Math.min(length0, length1);
+		for (int i = 0; i < common; i++) {
+			int a = NameIndex.toLowerAscii(this.names[start0 + i] & 0xff);
+			int b = NameIndex.toLowerAscii(this.names[start1 + i] & 0xff);
+			if (a != b)
+				return a - b;
+		}
+		return length0 - length1;
+	}
+}
@@ -0,0 +1,365 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps a NameIndex of the base path up to date in the background.
+ *
+ * Each pass writes a whole new index and swaps it in, but reuses what it
+ * can of the previous one: a directory whose modification time hasn't
+ * changed has the same names, so its children are copied rather than
+ * listed and stat'ed again, and only its subdirectories and archives are
+ * looked at; an archive whose time and length haven't changed has the
+ * same members. A file rewritten in place doesn't change its directory's
+ * time, so its indexed size and time may lag until the directory changes.
+ *
+ * Since the index is kept on disk, a restarted server can answer queries
+ * at once and carry on incrementally from where it was.
+ *
+ * Archives are read through ZipParentNavigableObject with an index cache
+ * of their own, so that a pass doesn't evict the archives being browsed.
+ * As in a TreeSearch, archives nested within others are only entered if
+ * stored, and symbolic links are indexed but not followed.
+ */
+public class NameIndexer implements Closeable {
+
+	public static final long DEFAULT_INTERVAL_SECONDS = 600;
+
+	private static final String INDEX_FILENAME = "names.idx";
+
+	/**
+	 * Indexes of archives read by passes, which are only read again once
+	 * the archive has changed.
+	 */
+	private static final long ZIP_INDEX_CACHE_BYTES = 16L * 1024 * 1024;
+
+	private final File base_path;
+	private final File index_file;
+	private final ZipIndexCache zip_index_cache = new ZipIndexCache(ZIP_INDEX_CACHE_BYTES);
+	private final ScheduledExecutorService executor;
+
+	private final FailureListener failure_listener;
+
+	private volatile NameIndex index;
+
+	private volatile long last_pass_millis;
+	private volatile int last_pass_reused;
+
+	/**
+	 * Told of each pass that fails, which is tried again at the next interval.
+	 */
+	public interface FailureListener {
+		void passFailed(Exception e);
+	}
+
+	/**
+	 * One directory, or archive directory, whose children are yet to be added.
+	 */
+	private static class Pending {
+
+		final int id;
+
+		/**
+		 * For a directory on disk; null within an archive.
+		 */
+		final File directory;
+
+		/**
+		 * Within an archive, or for an archive file itself; null otherwise.
+		 */
+		final ZipParentNavigableObject zip_parent;
+		final ZipIndex.Node node;
+
+		/**
+		 * The same entry in the previous index if its children can be copied
+		 * from there, or -1.
+		 */
+		final int reusable_id;
+
+		/**
+		 * The same entry in the previous index, to match children by name, or -1.
+		 */
+		final int previous_id;
+
+		Pending(int id, File directory, ZipParentNavigableObject zip_parent, ZipIndex.Node node,
+				int reusable_id, int previous_id) {
+			this.id = id;
+			this.directory = directory;
+			this.zip_parent = zip_parent;
+			this.node = node;
+			this.reusable_id = reusable_id;
+			this.previous_id = previous_id;
+		}
+	}
+
+	/**
+	 * Opens any index left by a previous run, and starts updating it.
+	 */
+	public NameIndexer(File base_path, File index_directory, long interval_seconds,
+			FailureListener failure_listener) throws IOException {
+
+		this.base_path = base_path;
+		this.failure_listener = failure_listener;
+		if (!index_directory.isDirectory() && !index_directory.mkdirs())
+			throw new IOException("Could not create " + index_directory);
+		this.index_file = new File(index_directory, INDEX_FILENAME);
+
+		if (this.index_file.isFile()) {
+			try {
+				this.index = NameIndex.open(this.index_file);
+			} catch (IOException e) {
+				// Rebuilt from scratch, then
+			}
+		}
+
+		this.executor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("name-indexer-%d").build());
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					update();
+				} catch (IOException e) {
+					NameIndexer.this.failure_listener.passFailed(e);
+				} catch (RuntimeException e) {
+					// Caught too, since a failure mustn't cancel the schedule
+					NameIndexer.this.failure_listener.passFailed(e);
+				}
+			}
+		}, 0, interval_seconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return null until the first pass has finished
+	 */
+	public NameIndex getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * How long the last pass took, or 0 before the first.
+	 */
+	public long getLastPassMillis() {
+		return this.last_pass_millis;
+	}
+
+	/**
+	 * Entries the last pass copied from the previous index rather than
+	 * reading from disk.
+	 */
+	public int getLastPassReusedCount() {
+		return this.last_pass_reused;
+	}
+
+	/**
+	 * Walks the base path once, and swaps in the resulting index.
+	 */
+	void update() throws IOException {
+
+		long started_at = System.currentTimeMillis();
+		NameIndex previous = this.index;
+		NameIndexWriter writer = new NameIndexWriter();
+		int reused = 0;
+
+		FileSnapshot root = FileSnapshot.read(this.base_path.toPath());
+		if (!root.isDirectory())
+			throw new IOException("Not a directory: " + this.base_path);
+		writer.add(-1, "", NameIndex.FLAG_DIRECTORY, 0, root.lastModified());
+
+		Deque<Pending> pending = new ArrayDeque<Pending>();
+		pending.add(new Pending(0, this.base_path, null, null,
+				previous != null && previous.lastModified(0) == root.lastModified() ? 0 : -1,
+				previous != null ? 0 : -1));
+
+		while (!pending.isEmpty() && !Thread.currentThread().isInterrupted()) {
+			Pending directory = pending.remove();
+			int first_child = writer.size();
+
+			if (directory.reusable_id >= 0) {
+				copyChildren(previous, directory, writer, pending);
+				reused += writer.size() - first_child;
+			} else if (directory.node != null) {
+				addArchiveChildren(directory, writer, pending);
+			} else {
+				addDirectoryChildren(previous, directory, writer, pending);
+			}
+			writer.setChildren(directory.id, first_child);
+		}
+		if (Thread.currentThread().isInterrupted())
+			return;
+
+		// Written aside and moved into place, so that a crash can't leave half an index
+		File written = new File(this.index_file.getPath() + ".tmp");
+		writer.write(written, started_at);
+		Files.move(written.toPath(), this.index_file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		this.index = NameIndex.open(this.index_file);
+		this.last_pass_millis = System.currentTimeMillis() - started_at;
+		this.last_pass_reused = reused;
+	}
+
+	/**
+	 * The directory's names are unchanged, but subdirectories may have
+	 * changed within, and archives may have been rewritten in place.
+	 */
+	private void copyChildren(NameIndex previous, Pending directory, NameIndexWriter writer,
+			Deque<Pending> pending) {
+
+		int first = previous.getFirstChild(directory.reusable_id);
+		int end = first + previous.getChildCount(directory.reusable_id);
+		for (int old_id = first; old_id < end; old_id++) {
+			String name = previous.getName(old_id);
+			int flags = previous.getFlags(old_id);
+
+			boolean is_in_archive = (flags & NameIndex.FLAG_ARCHIVE_MEMBER) != 0;
+			if (is_in_archive || directory.directory == null) {
+				// Members of an unchanged archive are unchanged
+				int id = writer.add(directory.id, name, flags, previous.getSize(old_id), previous.lastModified(old_id));
+				if (previous.getChildCount(old_id) > 0)
+					pending.add(new Pending(id, null, null, null, old_id, old_id));
+				continue;
+			}
+
+			File file = new File(directory.directory, name);
+			if ((flags & (NameIndex.FLAG_DIRECTORY | NameIndex.FLAG_ARCHIVE)) == 0) {
+				// Plain files keep their indexed size and time
+				writer.add(directory.id, name, flags, previous.getSize(old_id), previous.lastModified(old_id));
+				continue;
+			}
+
+			FileSnapshot snapshot = FileSnapshot.readUnlessLink(file.toPath());
+			if (snapshot == null) {
+				// Links are indexed but not followed, so there is nothing more to read
+				writer.add(directory.id, name, flags, previous.getSize(old_id), previous.lastModified(old_id));
+				continue;
+			}
+			if (!snapshot.exists())
+				continue;
+			addFile(previous, old_id, directory.id, file, name, snapshot, writer, pending);
+		}
+	}
+
+	private void addDirectoryChildren(NameIndex previous, Pending directory, NameIndexWriter writer,
+			Deque<Pending> pending) {
+
+		DirectoryListing listing;
+		try {
+			listing = DirectoryListing.read(directory.directory.toPath(), null);
+		} catch (IOException e) {
+			return;
+		}
+
+		// Previous entries of the same names may still be reusable further down
+		Map<String, Integer> previous_ids = Maps.newHashMap();
+		if (directory.previous_id >= 0) {
+			int first = previous.getFirstChild(directory.previous_id);
+			int end = first + previous.getChildCount(directory.previous_id);
+			for (int old_id = first; old_id < end; old_id++)
+				previous_ids.put(previous.getName(old_id), old_id);
+		}
+
+		for (int i = 0; i < listing.size(); i++) {
+			File file = listing.getChild(i);
+			Integer old_id = previous_ids.get(file.getName());
+
+			// Listings follow links; only what isn't one may be descended into
+			FileSnapshot snapshot = listing.getSnapshot(i);
+			if (snapshot.isDirectory() || file.getName().endsWith(ZipParentNavigableObject.ZIP_EXTENSION)) {
+				FileSnapshot unfollowed = FileSnapshot.readUnlessLink(file.toPath());
+				if (unfollowed == null) {
+					writer.add(directory.id, file.getName(), snapshot.isDirectory() ? NameIndex.FLAG_DIRECTORY : 0,
+							snapshot.isDirectory() ? 0 : snapshot.getSize(), snapshot.lastModified());
+					continue;
+				}
+			}
+
+			addFile(previous, old_id != null ? old_id : -1, directory.id, file, file.getName(), snapshot,
+					writer, pending);
+		}
+	}
+
+	/**
+	 * Adds a file or directory on disk, and queues up whatever is within it.
+	 *
+	 * @param old_id its entry in the previous index, or -1
+	 */
+	private void addFile(NameIndex previous, int old_id, int parent_id, File file, String name,
+			FileSnapshot snapshot, NameIndexWriter writer, Deque<Pending> pending) {
+
+		if (snapshot.isDirectory()) {
+			int id = writer.add(parent_id, name, NameIndex.FLAG_DIRECTORY, 0, snapshot.lastModified());
+			boolean is_unchanged = old_id >= 0 && previous.isDirectory(old_id) && !previous.isArchive(old_id)
+					&& previous.lastModified(old_id) == snapshot.lastModified();
+			pending.add(new Pending(id, file, null, null, is_unchanged ? old_id : -1, old_id));
+
+		} else if (name.endsWith(ZipParentNavigableObject.ZIP_EXTENSION)) {
+			int id = writer.add(parent_id, name, NameIndex.FLAG_ARCHIVE, snapshot.getSize(), snapshot.lastModified());
+			boolean is_unchanged = old_id >= 0 && previous.isArchive(old_id)
+					&& previous.lastModified(old_id) == snapshot.lastModified()
+					&& previous.getSize(old_id) == snapshot.getSize();
+			if (is_unchanged) {
+				pending.add(new Pending(id, null, null, null, old_id, old_id));
+			} else {
+				try {
+					ZipParentNavigableObject zip_parent = ZipParentNavigableObject.createNew(file, this.zip_index_cache);
+					pending.add(new Pending(id, null, zip_parent, zip_parent.getZipIndex().getRoot(), -1, -1));
+				} catch (IOException e) {
+					// Indexed as a plain file
+				}
+			}
+
+		} else {
+			writer.add(parent_id, name, 0, snapshot.getSize(), snapshot.lastModified());
+		}
+	}
+
+	private void addArchiveChildren(Pending directory, NameIndexWriter writer, Deque<Pending> pending) {
+
+		for (ZipIndex.Node child : directory.node.getChildren()) {
+			String node_path = child.getPath();
+			String name = node_path.substring(node_path.lastIndexOf('/') + 1);
+
+			if (child.isDirectory()) {
+				int id = writer.add(directory.id, name, NameIndex.FLAG_DIRECTORY | NameIndex.FLAG_ARCHIVE_MEMBER,
+						0, child.getTime());
+				pending.add(new Pending(id, null, directory.zip_parent, child, -1, -1));
+
+			} else if (name.endsWith(ZipParentNavigableObject.ZIP_EXTENSION)
+					&& child.getEntry().getMethod() == ZipEntry.STORED) {
+				int id = writer.add(directory.id, name, NameIndex.FLAG_ARCHIVE | NameIndex.FLAG_ARCHIVE_MEMBER,
+						child.getSize(), child.getTime());
+				try {
+					ZipParentNavigableObject nested = ZipParentNavigableObject.createNested(
+							new ZipMemberNavigableObject(directory.zip_parent, child), this.zip_index_cache);
+					pending.add(new Pending(id, null, nested, nested.getZipIndex().getRoot(), -1, -1));
+				} catch (IOException e) {
+					// Indexed as a plain member
+				}
+
+			} else {
+				writer.add(directory.id, name, NameIndex.FLAG_ARCHIVE_MEMBER, child.getSize(), child.getTime());
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		this.executor.shutdownNow();
+	}
+
+}
@@ -17,7 +17,10 @@ import org.joda.time.format.PeriodFormatterBuilder;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.teslamotors.artifacts.files.SortUtils.SortCriteria;
+import com.teslamotors.artifacts.metrics.RequestTrace;
 
 public abstract class NavigableObject {
 
@@ -59,6 +62,14 @@ public abstract class NavigableObject {
 
 	public abstract long getSize();
 
+	/**
+	 * A strong HTTP entity tag for the content, which
+	 * must change whenever the content does.
+	 */
+	public String getEntityTag() {
+		return "\"" + Long.toHexString(getSize()) + "-" + Long.toHexString(lastModified()) + "\"";
+	}
+
 	static final DateTimeFormatter DATE_FORMATTER = new DateTimeFormatterBuilder()
 		.appendHourOfHalfday(1)
 		.appendLiteral(':')
@@ -105,6 +116,23 @@ public abstract class NavigableObject {
 
 	public abstract InputStream getInputStream() throws IOException;
 
+	/**
+	 * Opens the content starting at the given byte offset. Implementations
+	 * that can seek should override this; by default the skipped bytes are
+	 * read and discarded.
+	 */
+	public InputStream getInputStream(long offset) throws IOException {
+
+		InputStream input = getInputStream();
+		try {
+			ByteStreams.skipFully(input, offset);
+		} catch (IOException e) {
+			input.close();
+			throw e;
+		}
+		return input;
+	}
+
 	private boolean is_parent_link;
 	public void setIsParentLink(boolean b) {
 		this.is_parent_link = b;
@@ -122,9 +150,25 @@ public abstract class NavigableObject {
 	};
 	
 	final public Collection<NavigableObject> listChildren(Collection<SortCriteria> sorters) throws IOException {
+		return SortUtils.sortByCriteria(listChildrenUnsorted(), sorters);
+	}
+
+	/**
+	 * The visible children, and the parent link unless this is the top,
+	 * in no particular order; for callers that sort only part of them.
+	 */
+	final public List<NavigableObject> listChildrenUnsorted() throws IOException {
 		
-		Collection<NavigableObject> navigable_objects = Collections2.filter(
-				getIntermediateChildList(), IS_NOT_HIDDEN);
+		// Copied out of the filtered view, which would reject the ".." parent link
+		List<NavigableObject> navigable_objects;
+		RequestTrace.Phase resumed = RequestTrace.enter(RequestTrace.Phase.LIST);
+		try {
+			navigable_objects = Lists.newArrayList(Collections2.filter(
+					getIntermediateChildList(), IS_NOT_HIDDEN));
+			RequestTrace.count(RequestTrace.Phase.LIST, navigable_objects.size());
+		} finally {
+			RequestTrace.exit(resumed);
+		}
 
 		// Add the parent link if we are not at the top
 		// This conditional is a weird way of checking if we are at the top.
@@ -135,7 +179,7 @@ public abstract class NavigableObject {
 			navigable_objects.add(parent);
 		}
 
-		return SortUtils.sortByCriteria(navigable_objects, sorters);
+		return navigable_objects;
 	}
 	
 
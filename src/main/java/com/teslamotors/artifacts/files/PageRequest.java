@@ -0,0 +1,134 @@
+package com.teslamotors.artifacts.files;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.io.BaseEncoding;
+import com.teslamotors.artifacts.files.SortUtils.SortCriteria;
+
+/**
+ * Which part of a sorted listing to return: the entries after an
+ * optional cursor, then skipping "offset" of them, at most "limit".
+ *
+ * A cursor carries the sort keys of the last entry of the previous page,
+ * so the next page starts right after it even if entries have since
+ * been added or removed before it, which an offset alone can't do.
+ */
+public class PageRequest {
+
+	public static final int UNLIMITED = -1;
+
+	public static final PageRequest ALL = new PageRequest(0, UNLIMITED, null);
+
+	private static final BaseEncoding CURSOR_ENCODING = BaseEncoding.base64Url().omitPadding();
+
+	private final int offset;
+	private final int limit;
+	private final Cursor cursor;
+
+	public PageRequest(int offset, int limit, Cursor cursor) {
+		this.offset = offset;
+		this.limit = limit;
+		this.cursor = cursor;
+	}
+
+	/**
+	 * @param default_limit applied when the request has no "limit"; UNLIMITED for none
+	 * @throws IllegalArgumentException for malformed parameters, or a
+	 *  cursor from a listing sorted differently
+	 */
+	public static PageRequest fromRequest(HttpServletRequest request,
+			Collection<SortCriteria> sorters, int default_limit) {
+
+		int offset = parseCount(request.getParameter("offset"), "offset", 0);
+		int limit = parseCount(request.getParameter("limit"), "limit", default_limit);
+
+		Cursor cursor = null;
+		String value = request.getParameter("cursor");
+		if (value != null && !value.isEmpty()) {
+			cursor = Cursor.decode(value);
+			if (!cursor.signature.equals(getSignature(sorters)))
+				throw new IllegalArgumentException("The cursor belongs to a differently sorted listing");
+		}
+
+		return new PageRequest(offset, limit, cursor);
+	}
+
+	private static int parseCount(String value, String name, int default_value) {
+
+		if (value == null || value.isEmpty())
+			return default_value;
+		try {
+			int count = Integer.parseInt(value);
+			if (count >= 0)
+				return count;
+		} catch (NumberFormatException e) {
+			// Reported below
+		}
+		throw new IllegalArgumentException("Invalid " + name + ": " + value);
+	}
+
+	static String getSignature(Collection<SortCriteria> sorters) {
+		return Joiner.on(',').join(sorters);
+	}
+
+	public int getOffset() {
+		return this.offset;
+	}
+
+	public int getLimit() {
+		return this.limit;
+	}
+
+	public Cursor getCursor() {
+		return this.cursor;
+	}
+
+	/**
+	 * The sort keys of one entry, as SortKeys extracts them.
+	 */
+	public static class Cursor {
+
+		final String signature;
+		final byte group;
+		final long date;
+		final long size;
+		final String name;
+
+		Cursor(String signature, byte group, long date, long size, String name) {
+			this.signature = signature;
+			this.group = group;
+			this.date = date;
+			this.size = size;
+			this.name = name;
+		}
+
+		/**
+		 * Opaque and URL-safe. The name comes last, since it may contain anything.
+		 */
+		public String encode() {
+			String text = Joiner.on('\n').join(this.signature, this.group, this.date, this.size, this.name);
+			return CURSOR_ENCODING.encode(text.getBytes(Charsets.UTF_8));
+		}
+
+		static Cursor decode(String encoded) {
+
+			try {
+				String text = new String(CURSOR_ENCODING.decode(encoded), Charsets.UTF_8);
+				List<String> fields = Splitter.on('\n').limit(5).splitToList(text);
+				return new Cursor(fields.get(0), Byte.parseByte(fields.get(1)),
+						Long.parseLong(fields.get(2)), Long.parseLong(fields.get(3)), fields.get(4));
+
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid cursor: " + encoded, e);
+			} catch (IndexOutOfBoundsException e) {
+				throw new IllegalArgumentException("Invalid cursor: " + encoded, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * An open file shared by its owner and whoever is reading it at the
+ * moment. The owner's reference is retired when it lets go of the file,
+ * and the channel is closed once the last reader is done too, so that
+ * a deleted file's space is freed promptly rather than by a finalizer.
+ */
+final class SharedFileChannel {
+
+	private final File file;
+	private final FileChannel channel;
+	private final long length;
+
+	/**
+	 * The owner's, until retired, plus one per reader.
+	 */
+	private int references = 1;
+	private boolean is_retired = false;
+
+	SharedFileChannel(File file, FileChannel channel) throws IOException {
+		this.file = file;
+		this.channel = channel;
+		this.length = channel.size();
+	}
+
+	File getFile() {
+		return this.file;
+	}
+
+	FileChannel getChannel() {
+		return this.channel;
+	}
+
+	long length() {
+		return this.length;
+	}
+
+	/**
+	 * Takes a reader's reference, to be given back with release().
+	 *
+	 * @throws IOException if the channel has already been closed
+	 */
+	synchronized void acquire() throws IOException {
+		if (this.references == 0)
+			throw new IOException("No longer available: " + this.file);
+		this.references++;
+	}
+
+	void release() {
+		boolean is_last;
+		synchronized (this) {
+			is_last = --this.references == 0;
+		}
+		if (is_last)
+			close();
+	}
+
+	/**
+	 * Gives up the owner's reference; the channel stays open for as long
+	 * as readers hold theirs.
+	 */
+	void retire() {
+		synchronized (this) {
+			if (this.is_retired)
+				return;
+			this.is_retired = true;
+		}
+		release();
+	}
+
+	synchronized boolean isRetired() {
+		return this.is_retired;
+	}
+
+	private void close() {
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			// Nothing more to be done with it
+		}
+	}
+}
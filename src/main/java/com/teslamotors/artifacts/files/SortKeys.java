@@ -0,0 +1,314 @@
+package com.teslamotors.artifacts.files;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.google.common.collect.Lists;
+import com.teslamotors.artifacts.files.SortUtils.SortCriteria;
+
+/**
+ * The keys a listing is sorted by, read out of each entry once into
+ * primitive arrays, so that the O(n log n) comparisons neither call back
+ * into the entries nor box anything.
+ *
+ * Entries are identified by their position in the original array; sort()
+ * yields a permutation of those positions, in the same order that the
+ * SortUtils comparators would, and as stably. The name always breaks
+ * remaining ties, so that pages of a listing line up with each other.
+ */
+final class SortKeys {
+
+	/**
+	 * Below this, forking costs more than it saves.
+	 */
+	static final int PARALLEL_SORT_THRESHOLD = 8192;
+
+	private static final int INSERTION_SORT_THRESHOLD = 32;
+
+	private final int count;
+	private final String signature;
+	private final SortCriteria[] criteria;
+
+	/**
+	 * Parent link, then directories, then files; the keys of the
+	 * comparators that always come first.
+	 */
+	private final byte[] groups;
+	private final long[] dates;
+	private final long[] sizes;
+	private final String[] names;
+
+	/**
+	 * Null to sort on the calling thread.
+	 */
+	private final ForkJoinPool sort_pool;
+
+	SortKeys(NavigableObject[] items, Collection<SortCriteria> sorters, ForkJoinPool sort_pool) {
+
+		this.count = items.length;
+		this.sort_pool = sort_pool;
+		this.signature = PageRequest.getSignature(sorters);
+
+		List<SortCriteria> criteria = Lists.newArrayList(sorters);
+		if (!criteria.contains(SortCriteria.NAME))
+			criteria.add(SortCriteria.NAME);
+		this.criteria = criteria.toArray(new SortCriteria[criteria.size()]);
+
+		boolean by_date = criteria.contains(SortCriteria.DATE);
+		boolean by_size = criteria.contains(SortCriteria.SIZE);
+
+		this.groups = new byte[this.count];
+		this.dates = by_date ? new long[this.count] : null;
+		this.sizes = by_size ? new long[this.count] : null;
+		this.names = new String[this.count];
+
+		for (int i = 0; i < this.count; i++) {
+			NavigableObject item = items[i];
+			this.groups[i] = (byte) ((item.getIsParentLink() ? 0 : 2) + (item.isDirectory() ? 0 : 1));
+			if (by_date)
+				this.dates[i] = item.lastModified();
+			if (by_size)
+				this.sizes[i] = item.getSize();
+			this.names[i] = item.getName();
+		}
+	}
+
+	int size() {
+		return this.count;
+	}
+
+	int compare(int a, int b) {
+
+		if (this.groups[a] != this.groups[b])
+			return this.groups[a] < this.groups[b] ? -1 : 1;
+
+		for (SortCriteria criterion : this.criteria) {
+			int result;
+			switch (criterion) {
+			case DATE:
+				// Newest first
+				result = compareLongs(this.dates[b], this.dates[a]);
+				break;
+			case SIZE:
+				// Largest first
+				result = compareLongs(this.sizes[b], this.sizes[a]);
+				break;
+			default:
+				result = this.names[a].compareTo(this.names[b]);
+				break;
+			}
+			if (result != 0)
+				return result;
+		}
+		return 0;
+	}
+
+	/**
+	 * Like compare(), but with the entry a cursor was taken from, which
+	 * need not be among these entries any more.
+	 */
+	int compareToCursor(int a, PageRequest.Cursor cursor) {
+
+		if (this.groups[a] != cursor.group)
+			return this.groups[a] < cursor.group ? -1 : 1;
+
+		for (SortCriteria criterion : this.criteria) {
+			int result;
+			switch (criterion) {
+			case DATE:
+				result = compareLongs(cursor.date, this.dates[a]);
+				break;
+			case SIZE:
+				result = compareLongs(cursor.size, this.sizes[a]);
+				break;
+			default:
+				result = this.names[a].compareTo(cursor.name);
+				break;
+			}
+			if (result != 0)
+				return result;
+		}
+		return 0;
+	}
+
+	PageRequest.Cursor getCursor(int a) {
+		return new PageRequest.Cursor(this.signature, this.groups[a],
+				this.dates != null ? this.dates[a] : 0,
+				this.sizes != null ? this.sizes[a] : 0,
+				this.names[a]);
+	}
+
+	private static int compareLongs(long x, long y) {
+		return x < y ? -1 : (x == y ? 0 : 1);
+	}
+
+	/**
+	 * Equal keys are ordered by position, as a stable sort would leave them.
+	 */
+	private int compareStably(int a, int b) {
+		int result = compare(a, b);
+		return result != 0 ? result : (a < b ? -1 : (a == b ? 0 : 1));
+	}
+
+	/**
+	 * @return the entries' positions in sorted order
+	 */
+	int[] sort() {
+
+		int[] order = new int[this.count];
+		for (int i = 0; i < this.count; i++)
+			order[i] = i;
+
+		sortPositions(order);
+		return order;
+	}
+
+	private void sortPositions(int[] positions) {
+
+		int[] scratch = new int[positions.length];
+		if (this.sort_pool != null && positions.length >= PARALLEL_SORT_THRESHOLD)
+			this.sort_pool.invoke(new SortTask(positions, scratch, 0, positions.length));
+		else
+			mergeSort(positions, scratch, 0, positions.length);
+	}
+
+	/**
+	 * The first k of the given positions in sorted order. When k is small
+	 * relative to the candidates, they are passed through a bounded heap
+	 * in O(n log k), rather than being sorted in full.
+	 */
+	int[] selectFirst(int[] candidates, int k) {
+
+		if (k >= candidates.length / 4) {
+			int[] sorted = candidates.clone();
+			sortPositions(sorted);
+			return sorted.length > k ? Arrays.copyOf(sorted, k) : sorted;
+		}
+		if (k == 0)
+			return new int[0];
+
+		// A max-heap of the k smallest so far, its largest at the root
+		int[] heap = new int[k];
+		int heap_size = 0;
+		for (int candidate : candidates) {
+			if (heap_size < k) {
+				heap[heap_size] = candidate;
+				siftUp(heap, heap_size++);
+			} else if (compareStably(candidate, heap[0]) < 0) {
+				heap[0] = candidate;
+				siftDown(heap, heap_size);
+			}
+		}
+
+		// Back into original order first, so that the stable sort breaks ties the same way
+		Arrays.sort(heap);
+		sortPositions(heap);
+		return heap;
+	}
+
+	private void siftUp(int[] heap, int index) {
+		int item = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+			if (compareStably(heap[parent], item) >= 0)
+				break;
+			heap[index] = heap[parent];
+			index = parent;
+		}
+		heap[index] = item;
+	}
+
+	private void siftDown(int[] heap, int heap_size) {
+		int item = heap[0];
+		int index = 0;
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= heap_size)
+				break;
+			if (child + 1 < heap_size && compareStably(heap[child + 1], heap[child]) > 0)
+				child++;
+			if (compareStably(item, heap[child]) >= 0)
+				break;
+			heap[index] = heap[child];
+			index = child;
+		}
+		heap[index] = item;
+	}
+
+	/**
+	 * A stable merge sort of order[start, end), using the same range of scratch.
+	 */
+	private void mergeSort(int[] order, int[] scratch, int start, int end) {
+
+		if (end - start <= INSERTION_SORT_THRESHOLD) {
+			insertionSort(order, start, end);
+			return;
+		}
+
+		int middle = (start + end) >>> 1;
+		mergeSort(order, scratch, start, middle);
+		mergeSort(order, scratch, middle, end);
+		merge(order, scratch, start, middle, end);
+	}
+
+	private void insertionSort(int[] order, int start, int end) {
+		for (int i = start + 1; i < end; i++) {
+			int item = order[i];
+			int j = i - 1;
+			while (j >= start && compare(order[j], item) > 0) {
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = item;
+		}
+	}
+
+	private void merge(int[] order, int[] scratch, int start, int middle, int end) {
+
+		// Already in order, as with presorted input
+		if (compare(order[middle - 1], order[middle]) <= 0)
+			return;
+
+		System.arraycopy(order, start, scratch, start, end - start);
+		int left = start, right = middle, out = start;
+		while (left < middle && right < end)
+			order[out++] = compare(scratch[right], scratch[left]) < 0 ? scratch[right++] : scratch[left++];
+		while (left < middle)
+			order[out++] = scratch[left++];
+		while (right < end)
+			order[out++] = scratch[right++];
+	}
+
+	@SuppressWarnings("serial")
+	private class SortTask extends RecursiveAction {
+
+		private final int[] order;
+		private final int[] scratch;
+		private final int start;
+		private final int end;
+
+		SortTask(int[] order, int[] scratch, int start, int end) {
+			this.order = order;
+			this.scratch = scratch;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (this.end - this.start < PARALLEL_SORT_THRESHOLD) {
+				mergeSort(this.order, this.scratch, this.start, this.end);
+				return;
+			}
+
+			int middle = (this.start + this.end) >>> 1;
+			invokeAll(new SortTask(this.order, this.scratch, this.start, middle),
+					new SortTask(this.order, this.scratch, middle, this.end));
+			merge(this.order, this.scratch, this.start, middle, this.end);
+		}
+	}
+}
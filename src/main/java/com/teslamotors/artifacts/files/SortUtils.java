@@ -6,13 +6,16 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.servlet.http.HttpServletRequest;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
+import com.teslamotors.artifacts.metrics.RequestTrace;
 
 public class SortUtils {
 
@@ -71,6 +74,93 @@ public class SortUtils {
 	};
 	
 	public static List<NavigableObject> sortByCriteria(Collection<NavigableObject> files, Collection<SortCriteria> sorters) {
+		return sortByCriteria(files, sorters, null);
+	}
+
+	/**
+	 * Sorts as getComparator() would, but from keys read out of each entry just once.
+	 *
+	 * @param sort_pool forks the sort of a large listing; null to sort on the calling thread
+	 */
+	public static List<NavigableObject> sortByCriteria(Collection<NavigableObject> files, Collection<SortCriteria> sorters,
+			ForkJoinPool sort_pool) {
+
+		RequestTrace.Phase resumed = RequestTrace.enter(RequestTrace.Phase.SORT);
+		try {
+			NavigableObject[] items = files.toArray(new NavigableObject[files.size()]);
+			RequestTrace.count(RequestTrace.Phase.SORT, items.length);
+			int[] order = new SortKeys(items, sorters, sort_pool).sort();
+
+			ImmutableList.Builder<NavigableObject> sorted = ImmutableList.builder();
+			for (int position : order)
+				sorted.add(items[position]);
+			return sorted.build();
+
+		} finally {
+			RequestTrace.exit(resumed);
+		}
+	}
+
+	public static ListingPage sortPage(Collection<NavigableObject> files, Collection<SortCriteria> sorters,
+			PageRequest page_request) {
+		return sortPage(files, sorters, page_request, null);
+	}
+
+	/**
+	 * Sorts and selects just the requested page. Only as many entries as
+	 * the page reaches are put in order; the rest are merely compared
+	 * against the largest of those.
+	 *
+	 * @param sort_pool as for sortByCriteria()
+	 */
+	public static ListingPage sortPage(Collection<NavigableObject> files, Collection<SortCriteria> sorters,
+			PageRequest page_request, ForkJoinPool sort_pool) {
+
+		RequestTrace.Phase resumed = RequestTrace.enter(RequestTrace.Phase.SORT);
+		try {
+			RequestTrace.count(RequestTrace.Phase.SORT, files.size());
+			return selectPage(files, sorters, page_request, sort_pool);
+		} finally {
+			RequestTrace.exit(resumed);
+		}
+	}
+
+	private static ListingPage selectPage(Collection<NavigableObject> files, Collection<SortCriteria> sorters,
+			PageRequest page_request, ForkJoinPool sort_pool) {
+
+		NavigableObject[] items = files.toArray(new NavigableObject[files.size()]);
+		SortKeys keys = new SortKeys(items, sorters, sort_pool);
+
+		// Entries after the cursor, in their original order
+		int[] candidates = new int[items.length];
+		int candidate_count = 0;
+		for (int i = 0; i < items.length; i++)
+			if (page_request.getCursor() == null || keys.compareToCursor(i, page_request.getCursor()) > 0)
+				candidates[candidate_count++] = i;
+		candidates = Arrays.copyOf(candidates, candidate_count);
+
+		long page_end = page_request.getLimit() == PageRequest.UNLIMITED
+				? candidate_count
+				: Math.min(candidate_count, (long) page_request.getOffset() + page_request.getLimit());
+		int page_start = Math.min(page_request.getOffset(), (int) page_end);
+		int[] selected = keys.selectFirst(candidates, (int) page_end);
+
+		ImmutableList.Builder<NavigableObject> page = ImmutableList.builder();
+		for (int i = page_start; i < selected.length; i++)
+			page.add(items[selected[i]]);
+
+		PageRequest.Cursor next_cursor = null;
+		if (page_end < candidate_count && selected.length > 0)
+			next_cursor = keys.getCursor(selected[selected.length - 1]);
+
+		return new ListingPage(page.build(), items.length, next_cursor);
+	}
+
+	/**
+	 * The comparator equivalent of sortByCriteria(), including its
+	 * final tie-break by name.
+	 */
+	public static Comparator<NavigableObject> getComparator(Collection<SortCriteria> sorters) {
 
 		Collection<Comparator<NavigableObject>> comparators = Lists.newArrayList(STATIC_COMPARATORS);
 		Collection<Comparator<NavigableObject>> dynamic_comparators = Collections2.transform(
@@ -82,7 +172,9 @@ public class SortUtils {
 			}
 		});
 		comparators.addAll(dynamic_comparators);
-		return Ordering.compound(comparators).immutableSortedCopy(files);
+		if (!sorters.contains(SortCriteria.NAME))
+			comparators.add(NAME_COMPARATOR);
+		return Ordering.compound(comparators);
 	}
 	
 	public enum SortCriteria {
@@ -0,0 +1,364 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+/**
+ * Writes a zip archive front to back, without seeking, for sending as it
+ * is produced. Unlike ZipOutputStream, it takes entry data that is already
+ * compressed, so that entries can be deflated elsewhere (in parallel) or
+ * copied verbatim from another archive.
+ *
+ * An entry whose CRC and sizes are known up front gets them in its local
+ * header. Otherwise they follow the data, in a data descriptor, and the
+ * caller must say beforehand whether they might need 64 bits. ZIP64
+ * records are written wherever a size, offset or count overflows.
+ *
+ * The counterpart of ZipCentralDirectory; see the same sections of "APPNOTE.TXT",
+ * and 4.3.9 (data descriptor).
+ */
+public final class StreamingZipWriter {
+
+	private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+	private static final int VERSION_DEFAULT = 20;
+	private static final int VERSION_ZIP64 = 45;
+	private static final int MADE_BY_UNIX = 3 << 8;
+
+	private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+	private static final int FLAG_UTF8 = 1 << 11;
+
+	private static final int FILE_ATTRIBUTES = 0100644 << 16;
+	private static final int DIRECTORY_ATTRIBUTES = (040755 << 16) | 0x10;
+
+	private static final int EXTENDED_TIMESTAMP_LENGTH = 9;
+
+	/**
+	 * One entry's central directory record, kept until the end.
+	 */
+	private static class Entry {
+
+		final byte[] name;
+		final int flags;
+		final int method;
+		final long time;
+		final long offset;
+		final boolean is_directory;
+		final boolean is_zip64;
+
+		long crc;
+		long compressed_size;
+		long size;
+
+		Entry(byte[] name, int flags, int method, long time, long offset, boolean is_directory, boolean is_zip64) {
+			this.name = name;
+			this.flags = flags;
+			this.method = method;
+			this.time = time;
+			this.offset = offset;
+			this.is_directory = is_directory;
+			this.is_zip64 = is_zip64;
+		}
+	}
+
+	private final OutputStream output;
+	private final ByteBuffer header = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+	private final List<Entry> entries = Lists.newArrayList();
+
+	private long written = 0;
+
+	/**
+	 * The entry whose data is being written, or null.
+	 */
+	private Entry current;
+	private long current_written;
+
+	public StreamingZipWriter(OutputStream output) {
+		this.output = output;
+	}
+
+	public long getBytesWritten() {
+		return this.written;
+	}
+
+	/**
+	 * @param name without the trailing slash
+	 */
+	public void putDirectory(String name, long time) throws IOException {
+		putEntry(name + "/", time, ZipEntry.STORED, 0, 0, 0, true);
+		closeEntry();
+	}
+
+	/**
+	 * Starts an entry whose CRC and sizes are already known; exactly
+	 * compressed_size bytes must follow.
+	 */
+	public void putEntry(String name, long time, int method, long crc, long compressed_size, long size)
+			throws IOException {
+		putEntry(name, time, method, crc, compressed_size, size, false);
+	}
+
+	/**
+	 * Starts an entry whose CRC and sizes are given to closeEntry(), after its data.
+	 *
+	 * @param is_zip64 whether either size might reach 4 GiB
+	 */
+	public void putEntry(String name, long time, int method, boolean is_zip64) throws IOException {
+
+		checkNotInEntry();
+		byte[] name_bytes = name.getBytes(Charsets.UTF_8);
+		this.current = new Entry(name_bytes, FLAG_UTF8 | FLAG_DATA_DESCRIPTOR, method, time,
+				this.written, false, is_zip64);
+		this.current_written = 0;
+
+		writeLocalHeader(this.current, 0, 0, 0);
+	}
+
+	private void putEntry(String name, long time, int method, long crc, long compressed_size, long size,
+			boolean is_directory) throws IOException {
+
+		checkNotInEntry();
+		byte[] name_bytes = name.getBytes(Charsets.UTF_8);
+		boolean is_zip64 = compressed_size >= ZipCentralDirectory.ZIP64_MAGIC || size >= ZipCentralDirectory.ZIP64_MAGIC;
+		this.current = new Entry(name_bytes, FLAG_UTF8, method, time, this.written, is_directory, is_zip64);
+		this.current.crc = crc;
+		this.current.compressed_size = compressed_size;
+		this.current.size = size;
+		this.current_written = 0;
+
+		writeLocalHeader(this.current, crc, compressed_size, size);
+	}
+
+	/**
+	 * Writes some of the current entry's data, as stored in the archive.
+	 */
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		if (this.current == null)
+			throw new IllegalStateException("No entry started");
+		this.output.write(bytes, offset, length);
+		this.written += length;
+		this.current_written += length;
+	}
+
+	/**
+	 * Ends an entry whose CRC and sizes were given up front.
+	 *
+	 * @throws ZipException if the data written wasn't the size given
+	 */
+	public void closeEntry() throws IOException {
+
+		Entry entry = this.current;
+		if (entry == null || (entry.flags & FLAG_DATA_DESCRIPTOR) != 0)
+			throw new IllegalStateException("No entry of known size started");
+		if (this.current_written != entry.compressed_size)
+			throw new ZipException("Wrote " + this.current_written + " bytes of " + entry.compressed_size
+					+ " for entry: " + new String(entry.name, Charsets.UTF_8));
+		this.entries.add(entry);
+		this.current = null;
+	}
+
+	/**
+	 * Ends an entry by writing its data descriptor; the compressed size
+	 * is what was written.
+	 */
+	public void closeEntry(long crc, long size) throws IOException {
+
+		Entry entry = this.current;
+		if (entry == null || (entry.flags & FLAG_DATA_DESCRIPTOR) == 0)
+			throw new IllegalStateException("No entry of unknown size started");
+		entry.crc = crc;
+		entry.compressed_size = this.current_written;
+		entry.size = size;
+		if (!entry.is_zip64 && (entry.compressed_size >= ZipCentralDirectory.ZIP64_MAGIC
+				|| entry.size >= ZipCentralDirectory.ZIP64_MAGIC))
+			throw new ZipException("Entry unexpectedly reached 4 GiB: " + new String(entry.name, Charsets.UTF_8));
+
+		ByteBuffer header = startHeader();
+		header.putInt(DATA_DESCRIPTOR_SIGNATURE);
+		header.putInt((int) crc);
+		if (entry.is_zip64) {
+			header.putLong(entry.compressed_size);
+			header.putLong(entry.size);
+		} else {
+			header.putInt((int) entry.compressed_size);
+			header.putInt((int) entry.size);
+		}
+		writeHeader(header, null);
+
+		this.entries.add(entry);
+		this.current = null;
+	}
+
+	/**
+	 * Writes the central directory and end records, leaving the output open.
+	 */
+	public void finish() throws IOException {
+
+		checkNotInEntry();
+		long directory_offset = this.written;
+		boolean is_zip64 = this.entries.size() >= ZipCentralDirectory.ZIP64_MAGIC_COUNT;
+
+		for (Entry entry : this.entries) {
+			boolean is_size_zip64 = entry.size >= ZipCentralDirectory.ZIP64_MAGIC;
+			boolean is_compressed_size_zip64 = entry.compressed_size >= ZipCentralDirectory.ZIP64_MAGIC;
+			boolean is_offset_zip64 = entry.offset >= ZipCentralDirectory.ZIP64_MAGIC;
+			int zip64_length = (is_size_zip64 ? 8 : 0) + (is_compressed_size_zip64 ? 8 : 0) + (is_offset_zip64 ? 8 : 0);
+			boolean is_entry_zip64 = zip64_length > 0 || entry.is_zip64;
+			is_zip64 |= is_entry_zip64;
+
+			ByteBuffer header = startHeader();
+			header.putInt(ZipCentralDirectory.CENTRAL_HEADER_SIGNATURE);
+			header.putShort((short) (MADE_BY_UNIX | VERSION_ZIP64));
+			header.putShort((short) (is_entry_zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+			header.putShort((short) entry.flags);
+			header.putShort((short) entry.method);
+			header.putInt((int) javaToDosTime(entry.time));
+			header.putInt((int) entry.crc);
+			header.putInt((int) (is_compressed_size_zip64 ? ZipCentralDirectory.ZIP64_MAGIC : entry.compressed_size));
+			header.putInt((int) (is_size_zip64 ? ZipCentralDirectory.ZIP64_MAGIC : entry.size));
+			header.putShort((short) entry.name.length);
+			header.putShort((short) ((zip64_length > 0 ? 4 + zip64_length : 0) + EXTENDED_TIMESTAMP_LENGTH));
+			header.putShort((short) 0); // comment length
+			header.putShort((short) 0); // disk number
+			header.putShort((short) 0); // internal attributes
+			header.putInt(entry.is_directory ? DIRECTORY_ATTRIBUTES : FILE_ATTRIBUTES);
+			header.putInt((int) (is_offset_zip64 ? ZipCentralDirectory.ZIP64_MAGIC : entry.offset));
+			writeHeader(header, entry.name);
+
+			header = startHeader();
+			if (zip64_length > 0) {
+				header.putShort((short) ZipCentralDirectory.ZIP64_EXTRA_ID);
+				header.putShort((short) zip64_length);
+				if (is_size_zip64)
+					header.putLong(entry.size);
+				if (is_compressed_size_zip64)
+					header.putLong(entry.compressed_size);
+				if (is_offset_zip64)
+					header.putLong(entry.offset);
+			}
+			putExtendedTimestamp(header, entry.time);
+			writeHeader(header, null);
+		}
+
+		long directory_length = this.written - directory_offset;
+		is_zip64 |= directory_offset >= ZipCentralDirectory.ZIP64_MAGIC
+				|| directory_length >= ZipCentralDirectory.ZIP64_MAGIC;
+
+		if (is_zip64) {
+			long zip64_end_offset = this.written;
+			ByteBuffer header = startHeader();
+			header.putInt(ZipCentralDirectory.ZIP64_END_SIGNATURE);
+			header.putLong(ZipCentralDirectory.ZIP64_END_LENGTH - 12);
+			header.putShort((short) (MADE_BY_UNIX | VERSION_ZIP64));
+			header.putShort((short) VERSION_ZIP64);
+			header.putInt(0); // this disk
+			header.putInt(0); // disk with the central directory
+			header.putLong(this.entries.size());
+			header.putLong(this.entries.size());
+			header.putLong(directory_length);
+			header.putLong(directory_offset);
+
+			header.putInt(ZipCentralDirectory.ZIP64_LOCATOR_SIGNATURE);
+			header.putInt(0); // disk with the ZIP64 end record
+			header.putLong(zip64_end_offset);
+			header.putInt(1); // total disks
+			writeHeader(header, null);
+		}
+
+		ByteBuffer header = startHeader();
+		int entry_count = Math.min(this.entries.size(), ZipCentralDirectory.ZIP64_MAGIC_COUNT);
+		header.putInt(ZipCentralDirectory.END_SIGNATURE);
+		header.putShort((short) 0); // this disk
+		header.putShort((short) 0); // disk with the central directory
+		header.putShort((short) entry_count);
+		header.putShort((short) entry_count);
+		header.putInt((int) Math.min(directory_length, ZipCentralDirectory.ZIP64_MAGIC));
+		header.putInt((int) Math.min(directory_offset, ZipCentralDirectory.ZIP64_MAGIC));
+		header.putShort((short) 0); // comment length
+		writeHeader(header, null);
+	}
+
+	/**
+	 * @param crc 0, as are the sizes, if they follow the data
+	 */
+	private void writeLocalHeader(Entry entry, long crc, long compressed_size, long size) throws IOException {
+
+		ByteBuffer header = startHeader();
+		header.putInt(ZipCentralDirectory.LOCAL_HEADER_SIGNATURE);
+		header.putShort((short) (entry.is_zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+		header.putShort((short) entry.flags);
+		header.putShort((short) entry.method);
+		header.putInt((int) javaToDosTime(entry.time));
+		header.putInt((int) crc);
+		header.putInt((int) (entry.is_zip64 ? ZipCentralDirectory.ZIP64_MAGIC : compressed_size));
+		header.putInt((int) (entry.is_zip64 ? ZipCentralDirectory.ZIP64_MAGIC : size));
+		header.putShort((short) entry.name.length);
+		header.putShort((short) ((entry.is_zip64 ? 4 + 16 : 0) + EXTENDED_TIMESTAMP_LENGTH));
+		writeHeader(header, entry.name);
+
+		header = startHeader();
+		if (entry.is_zip64) {
+			// Zeros if the sizes are in the data descriptor
+			boolean is_known = (entry.flags & FLAG_DATA_DESCRIPTOR) == 0;
+			header.putShort((short) ZipCentralDirectory.ZIP64_EXTRA_ID);
+			header.putShort((short) 16);
+			header.putLong(is_known ? size : 0);
+			header.putLong(is_known ? compressed_size : 0);
+		}
+		putExtendedTimestamp(header, entry.time);
+		writeHeader(header, null);
+	}
+
+	/**
+	 * The actual UTC time, since the DOS time is in local time.
+	 */
+	private static void putExtendedTimestamp(ByteBuffer header, long time) {
+		header.putShort((short) ZipCentralDirectory.EXTENDED_TIMESTAMP_EXTRA_ID);
+		header.putShort((short) (EXTENDED_TIMESTAMP_LENGTH - 4));
+		header.put((byte) 0x01); // modification time present
+		header.putInt((int) (time / 1000));
+	}
+
+	private ByteBuffer startHeader() {
+		this.header.clear();
+		return this.header;
+	}
+
+	private void writeHeader(ByteBuffer header, byte[] name) throws IOException {
+		this.output.write(header.array(), 0, header.position());
+		this.written += header.position();
+		if (name != null) {
+			this.output.write(name);
+			this.written += name.length;
+		}
+	}
+
+	private void checkNotInEntry() {
+		if (this.current != null)
+			throw new IllegalStateException("Entry not closed");
+	}
+
+	private static long javaToDosTime(long time) {
+		Calendar calendar = new GregorianCalendar();
+		calendar.setTimeInMillis(time);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980)
+			return (1 << 21) | (1 << 16); // 1980-01-01
+		return (year - 1980) << 25
+				| (calendar.get(Calendar.MONTH) + 1) << 21
+				| calendar.get(Calendar.DAY_OF_MONTH) << 16
+				| calendar.get(Calendar.HOUR_OF_DAY) << 11
+				| calendar.get(Calendar.MINUTE) << 5
+				| calendar.get(Calendar.SECOND) >> 1;
+	}
+}
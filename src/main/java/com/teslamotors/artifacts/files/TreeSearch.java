@@ -0,0 +1,388 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Finds everything under a directory whose name (or relative path)
+ * matches a glob, descending into archives through their indexes.
+ *
+ * The tree is walked in parallel on a ForkJoinPool: every directory is a
+ * task, and large directories are stat'ed in batches that are tasks of
+ * their own. Matches are queued as they are found, for the request thread
+ * to send while the walk goes on. Archives nested within others are only
+ * entered if stored, since a deflated one would have to be inflated.
+ * Symbolic links are reported but never followed, so the walk can't loop.
+ *
+ * The walk stops early at the result limit, at the deadline, or when
+ * cancelled; directories below the depth limit are not entered at all.
+ */
+public class TreeSearch {
+
+	public static final int DEFAULT_MAXIMUM_DEPTH = 32;
+	public static final int DEFAULT_MAXIMUM_RESULTS = 10000;
+	public static final long DEFAULT_TIME_LIMIT_MILLIS = 30 * 1000;
+
+	/**
+	 * Directory entries stat'ed by one task.
+	 */
+	private static final int STAT_BATCH_SIZE = 256;
+
+	/**
+	 * Why a search stopped before walking everything within its depth.
+	 */
+	public enum Truncation {
+		RESULTS, TIME, CANCELLED
+	}
+
+	/**
+	 * One match, with its path relative to where the search started.
+	 */
+	public static class Match {
+
+		private final NavigableObject navigable_object;
+		private final String path;
+
+		Match(NavigableObject navigable_object, String path) {
+			this.navigable_object = navigable_object;
+			this.path = path;
+		}
+
+		public NavigableObject getNavigableObject() {
+			return this.navigable_object;
+		}
+
+		public String getPath() {
+			return this.path;
+		}
+	}
+
+	private final Glob glob;
+	private final ZipIndexCache zip_index_cache;
+	private final int maximum_depth;
+	private final int maximum_results;
+	private final long deadline_nanos;
+
+	private final BlockingQueue<Match> matches = new LinkedBlockingQueue<Match>();
+	private final AtomicInteger match_count = new AtomicInteger();
+	private final AtomicInteger unreadable_count = new AtomicInteger();
+	private volatile Truncation truncation;
+
+	private ForkJoinTask<?> walk;
+
+	/**
+	 * @throws IllegalArgumentException if the glob is malformed
+	 */
+	public TreeSearch(String glob, ZipIndexCache zip_index_cache,
+			int maximum_depth, int maximum_results, long time_limit_millis) {
+
+		this.glob = new Glob(glob);
+		this.zip_index_cache = zip_index_cache;
+		this.maximum_depth = maximum_depth;
+		this.maximum_results = maximum_results;
+		this.deadline_nanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(time_limit_millis);
+	}
+
+	/**
+	 * Starts walking the directory or archive on the pool, and returns at once.
+	 */
+	public void start(NavigableObject directory, ForkJoinPool pool) {
+
+		RecursiveAction root;
+		if (directory instanceof ZipParentNavigableObject) {
+			ZipParentNavigableObject zip_parent = (ZipParentNavigableObject) directory;
+			root = new ArchiveTask(zip_parent, zip_parent.getZipIndex().getRoot(), "", 0);
+
+		} else if (directory instanceof ZipMemberNavigableObject) {
+			ZipMemberNavigableObject member = (ZipMemberNavigableObject) directory;
+			root = new ArchiveTask(member.getZipParent(), member.getNode(), "", 0);
+
+		} else {
+			root = new DirectoryTask(directory.asFile().toPath(), "", 0);
+		}
+		this.walk = pool.submit(root);
+	}
+
+	/**
+	 * @return the next match, or null if none turned up in time
+	 */
+	public Match poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.matches.poll(timeout, unit);
+	}
+
+	/**
+	 * Whether the walk is over and every match has been taken.
+	 */
+	public boolean isFinished() {
+		// In this order, since matches are all queued before the walk completes
+		return this.walk.isDone() && this.matches.isEmpty();
+	}
+
+	/**
+	 * Stops the walk, for instance when the client has gone.
+	 */
+	public void cancel() {
+		stop(Truncation.CANCELLED);
+	}
+
+	/**
+	 * @return null if the walk covered everything within the depth limit
+	 */
+	public Truncation getTruncation() {
+		return this.truncation;
+	}
+
+	/**
+	 * Directories and archives skipped for being unreadable.
+	 */
+	public int getUnreadableCount() {
+		return this.unreadable_count.get();
+	}
+
+	private void stop(Truncation reason) {
+		if (this.truncation == null)
+			this.truncation = reason;
+	}
+
+	private boolean isStopped() {
+		if (this.truncation != null)
+			return true;
+		if (System.nanoTime() - this.deadline_nanos >= 0) {
+			stop(Truncation.TIME);
+			return true;
+		}
+		return false;
+	}
+
+	private void visit(NavigableObject nav, String path, String name) {
+		if (!this.glob.matches(this.glob.isPathPattern() ? path : name))
+			return;
+
+		if (this.match_count.incrementAndGet() > this.maximum_results) {
+			stop(Truncation.RESULTS);
+			return;
+		}
+		this.matches.add(new Match(nav, path));
+	}
+
+	private static String childPath(String parent_path, String name) {
+		return parent_path.isEmpty() ? name : parent_path + "/" + name;
+	}
+
+	@SuppressWarnings("serial")
+	private class DirectoryTask extends RecursiveAction {
+
+		private final Path directory;
+		private final String path;
+		private final int depth;
+
+		DirectoryTask(Path directory, String path, int depth) {
+			this.directory = directory;
+			this.path = path;
+			this.depth = depth;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (isStopped())
+				return;
+
+			// Hidden names are skipped, as in listings
+			List<Path> children = Lists.newArrayList();
+			try {
+				DirectoryStream<Path> directory_stream = Files.newDirectoryStream(this.directory);
+				try {
+					for (Path child : directory_stream)
+						if (!child.getFileName().toString().startsWith("."))
+							children.add(child);
+				} finally {
+					directory_stream.close();
+				}
+			} catch (IOException e) {
+				unreadable_count.incrementAndGet();
+				return;
+			}
+
+			new EntriesTask(children, 0, children.size(), this.path, this.depth + 1).compute();
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class EntriesTask extends RecursiveAction {
+
+		private final List<Path> children;
+		private final int start;
+		private final int end;
+		private final String parent_path;
+		private final int depth;
+
+		EntriesTask(List<Path> children, int start, int end, String parent_path, int depth) {
+			this.children = children;
+			this.start = start;
+			this.end = end;
+			this.parent_path = parent_path;
+			this.depth = depth;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (this.end - this.start > STAT_BATCH_SIZE) {
+				int middle = (this.start + this.end) >>> 1;
+				invokeAll(new EntriesTask(this.children, this.start, middle, this.parent_path, this.depth),
+						new EntriesTask(this.children, middle, this.end, this.parent_path, this.depth));
+				return;
+			}
+
+			List<RecursiveAction> subtasks = Lists.newArrayList();
+			for (int i = this.start; i < this.end && !isStopped(); i++) {
+				Path child = this.children.get(i);
+				String name = child.getFileName().toString();
+				String path = childPath(this.parent_path, name);
+
+				FileSnapshot snapshot = FileSnapshot.readUnlessLink(child);
+				boolean is_link = snapshot == null;
+				if (is_link)
+					snapshot = FileSnapshot.read(child);
+				if (!snapshot.exists())
+					continue;
+
+				File file = child.toFile();
+				visit(new FileNavigableObject(file, snapshot, DirectoryReader.SERIAL), path, name);
+
+				if (is_link || this.depth >= maximum_depth)
+					continue;
+				if (snapshot.isDirectory())
+					subtasks.add(new DirectoryTask(child, path, this.depth));
+				else if (name.endsWith(ZipParentNavigableObject.ZIP_EXTENSION))
+					subtasks.add(new ZipFileTask(file, path, this.depth));
+			}
+			invokeAll(subtasks);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class ZipFileTask extends RecursiveAction {
+
+		private final File zip_file;
+		private final String path;
+		private final int depth;
+
+		ZipFileTask(File zip_file, String path, int depth) {
+			this.zip_file = zip_file;
+			this.path = path;
+			this.depth = depth;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (isStopped())
+				return;
+
+			ZipParentNavigableObject zip_parent;
+			try {
+				zip_parent = ZipParentNavigableObject.createNew(this.zip_file, zip_index_cache);
+			} catch (IOException e) {
+				unreadable_count.incrementAndGet();
+				return;
+			}
+			new ArchiveTask(zip_parent, zip_parent.getZipIndex().getRoot(), this.path, this.depth).compute();
+		}
+	}
+
+	/**
+	 * Walks an archive's index, which is all in memory, on one thread;
+	 * only archives nested within it become tasks of their own.
+	 */
+	@SuppressWarnings("serial")
+	private class ArchiveTask extends RecursiveAction {
+
+		private final ZipParentNavigableObject zip_parent;
+		private final ZipIndex.Node directory;
+		private final String path;
+		private final int depth;
+
+		ArchiveTask(ZipParentNavigableObject zip_parent, ZipIndex.Node directory, String path, int depth) {
+			this.zip_parent = zip_parent;
+			this.directory = directory;
+			this.path = path;
+			this.depth = depth;
+		}
+
+		@Override
+		protected void compute() {
+			List<RecursiveAction> subtasks = Lists.newArrayList();
+			walk(this.directory, this.path, this.depth + 1, subtasks);
+			invokeAll(subtasks);
+		}
+
+		private void walk(ZipIndex.Node directory, String parent_path, int depth, List<RecursiveAction> subtasks) {
+
+			for (ZipIndex.Node child : directory.getChildren()) {
+				if (isStopped())
+					return;
+
+				String node_path = child.getPath();
+				String name = node_path.substring(node_path.lastIndexOf('/') + 1);
+				String path = childPath(parent_path, name);
+				visit(new ZipMemberNavigableObject(this.zip_parent, child), path, name);
+
+				if (depth >= maximum_depth)
+					continue;
+				if (child.isDirectory()) {
+					walk(child, path, depth + 1, subtasks);
+				} else if (name.endsWith(ZipParentNavigableObject.ZIP_EXTENSION)
+						&& child.getEntry().getMethod() == ZipEntry.STORED) {
+					subtasks.add(new NestedArchiveTask(
+							new ZipMemberNavigableObject(this.zip_parent, child), path, depth));
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class NestedArchiveTask extends RecursiveAction {
+
+		private final ZipMemberNavigableObject outer_member;
+		private final String path;
+		private final int depth;
+
+		NestedArchiveTask(ZipMemberNavigableObject outer_member, String path, int depth) {
+			this.outer_member = outer_member;
+			this.path = path;
+			this.depth = depth;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (isStopped())
+				return;
+
+			ZipParentNavigableObject zip_parent;
+			try {
+				zip_parent = ZipParentNavigableObject.createNested(this.outer_member, zip_index_cache);
+			} catch (IOException e) {
+				unreadable_count.incrementAndGet();
+				return;
+			}
+			new ArchiveTask(zip_parent, zip_parent.getZipIndex().getRoot(), this.path, this.depth).compute();
+		}
+	}
+}
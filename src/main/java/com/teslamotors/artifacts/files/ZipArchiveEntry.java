@@ -0,0 +1,65 @@
+package com.teslamotors.artifacts.files;
+
+import java.util.zip.ZipEntry;
+
+/**
+ * A ZipEntry that also remembers where its local header lives
+ * within the archive, as recorded by the central directory.
+ */
+public class ZipArchiveEntry extends ZipEntry {
+
+	private final long local_header_offset;
+
+	/**
+	 * Resolved lazily from the local header, since its "extra" field
+	 * may differ in length from the one in the central directory.
+	 */
+	private volatile long data_offset = -1;
+
+	/**
+	 * ZipEntry.setMethod() rejects anything but STORED and DEFLATED,
+	 * but archives using other methods should still be listable.
+	 */
+	private int method = -1;
+
+	private boolean is_encrypted;
+
+	public ZipArchiveEntry(String name, long local_header_offset) {
+		super(name);
+		this.local_header_offset = local_header_offset;
+	}
+
+	public long getLocalHeaderOffset() {
+		return this.local_header_offset;
+	}
+
+	@Override
+	public void setMethod(int method) {
+		this.method = method;
+	}
+
+	@Override
+	public int getMethod() {
+		return this.method;
+	}
+
+	/**
+	 * Whether the data is encrypted, which only the local header's
+	 * flags and the encryption header before the data would tell.
+	 */
+	public boolean isEncrypted() {
+		return this.is_encrypted;
+	}
+
+	void setEncrypted(boolean is_encrypted) {
+		this.is_encrypted = is_encrypted;
+	}
+
+	long getDataOffset() {
+		return this.data_offset;
+	}
+
+	void setDataOffset(long data_offset) {
+		this.data_offset = data_offset;
+	}
+}
@@ -0,0 +1,352 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Reads the central directory at the end of a zip archive, so that
+ * entries can be listed and opened by seeking directly to them instead
+ * of inflating everything that precedes them.
+ *
+ * See the "APPNOTE.TXT" zip file format specification, sections
+ * 4.3.7 (local header), 4.3.12 (central directory), 4.3.14-16 (end records)
+ * and 4.5.3 (ZIP64 extended information).
+ */
+public class ZipCentralDirectory {
+
+	static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	static final int END_SIGNATURE = 0x06054b50;
+	static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+	static final int LOCAL_HEADER_LENGTH = 30;
+	static final int CENTRAL_HEADER_LENGTH = 46;
+	static final int END_LENGTH = 22;
+	static final int ZIP64_LOCATOR_LENGTH = 20;
+	static final int ZIP64_END_LENGTH = 56;
+	static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+	static final int ZIP64_EXTRA_ID = 0x0001;
+	static final int EXTENDED_TIMESTAMP_EXTRA_ID = 0x5455;
+	static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+	static final int FLAG_ENCRYPTED = 1;
+
+	/**
+	 * Size of the chunks of compressed input handed to the Inflater.
+	 */
+	private static final int INFLATER_BUFFER_SIZE = 65536;
+
+	public static List<ZipArchiveEntry> read(File zip_file) throws IOException {
+		return read(ArchiveSource.forFile(zip_file));
+	}
+
+	static List<ZipArchiveEntry> read(ArchiveSource source) throws IOException {
+
+		long file_length = source.length();
+
+		// The end record is followed only by a variable-length comment,
+		// so search backwards from the end of the file for its signature.
+		int tail_length = (int) Math.min(file_length, END_LENGTH + MAX_COMMENT_LENGTH);
+		long tail_start = file_length - tail_length;
+		ByteBuffer tail = source.read(tail_start, tail_length);
+
+		int end_position = -1;
+		for (int i = tail_length - END_LENGTH; i >= 0; i--) {
+			if (tail.getInt(i) == END_SIGNATURE
+					&& i + END_LENGTH + (tail.getShort(i + 20) & 0xFFFF) <= tail_length) {
+				end_position = i;
+				break;
+			}
+		}
+
+		if (end_position < 0)
+			throw new ZipException("Not a zip file (no end of central directory record)");
+
+		long entry_count = tail.getShort(end_position + 10) & 0xFFFF;
+		long directory_length = tail.getInt(end_position + 12) & 0xFFFFFFFFL;
+		long directory_offset = tail.getInt(end_position + 16) & 0xFFFFFFFFL;
+
+		if (entry_count == ZIP64_MAGIC_COUNT
+				|| directory_length == ZIP64_MAGIC
+				|| directory_offset == ZIP64_MAGIC) {
+
+			long locator_position = tail_start + end_position - ZIP64_LOCATOR_LENGTH;
+			if (locator_position >= 0) {
+				ByteBuffer locator = source.read(locator_position, ZIP64_LOCATOR_LENGTH);
+				if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+
+					long zip64_end_position = locator.getLong(8);
+					ByteBuffer zip64_end = source.read(zip64_end_position, ZIP64_END_LENGTH);
+					if (zip64_end.getInt(0) != ZIP64_END_SIGNATURE)
+						throw new ZipException("Corrupt ZIP64 end of central directory record");
+
+					entry_count = zip64_end.getLong(32);
+					directory_length = zip64_end.getLong(40);
+					directory_offset = zip64_end.getLong(48);
+				}
+			}
+		}
+
+		if (directory_length > Integer.MAX_VALUE || directory_offset + directory_length > file_length)
+			throw new ZipException("Corrupt central directory");
+
+		ByteBuffer directory = source.read(directory_offset, (int) directory_length);
+
+		List<ZipArchiveEntry> entries = Lists.newArrayListWithCapacity((int) Math.min(entry_count, 1 << 16));
+		int position = 0;
+		while (position + CENTRAL_HEADER_LENGTH <= directory_length
+				&& directory.getInt(position) == CENTRAL_HEADER_SIGNATURE) {
+
+			ZipArchiveEntry entry = parseCentralHeader(directory, position);
+			entries.add(entry);
+
+			position += CENTRAL_HEADER_LENGTH
+					+ (directory.getShort(position + 28) & 0xFFFF)
+					+ (directory.getShort(position + 30) & 0xFFFF)
+					+ (directory.getShort(position + 32) & 0xFFFF);
+		}
+
+		return entries;
+	}
+
+	private static ZipArchiveEntry parseCentralHeader(ByteBuffer directory, int position) throws ZipException {
+
+		int flags = directory.getShort(position + 8) & 0xFFFF;
+		int method = directory.getShort(position + 10) & 0xFFFF;
+		long dos_time = directory.getInt(position + 12) & 0xFFFFFFFFL;
+		long crc = directory.getInt(position + 16) & 0xFFFFFFFFL;
+		long compressed_size = directory.getInt(position + 20) & 0xFFFFFFFFL;
+		long size = directory.getInt(position + 24) & 0xFFFFFFFFL;
+		int name_length = directory.getShort(position + 28) & 0xFFFF;
+		int extra_length = directory.getShort(position + 30) & 0xFFFF;
+		long local_header_offset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+		long time = dosToJavaTime(dos_time);
+
+		int name_start = position + CENTRAL_HEADER_LENGTH;
+		byte[] name_bytes = new byte[name_length];
+		for (int i = 0; i < name_length; i++)
+			name_bytes[i] = directory.get(name_start + i);
+
+		// Names without the UTF-8 flag are nominally CP437, but ZipInputStream
+		// has always decoded them as UTF-8 here, so keep doing that.
+		String name = new String(name_bytes, Charsets.UTF_8);
+
+		int extra_position = name_start + name_length;
+		int extra_end = extra_position + extra_length;
+		while (extra_position + 4 <= extra_end) {
+			int header_id = directory.getShort(extra_position) & 0xFFFF;
+			int data_length = directory.getShort(extra_position + 2) & 0xFFFF;
+			int data_position = extra_position + 4;
+			int data_end = Math.min(data_position + data_length, extra_end);
+			int next_extra_position = data_position + data_length;
+
+			if (header_id == ZIP64_EXTRA_ID) {
+
+				// Sizes and offsets that overflow 32 bits live here, in this fixed
+				// order, and only if the corresponding header field is saturated.
+				if (size == ZIP64_MAGIC && data_position + 8 <= data_end) {
+					size = directory.getLong(data_position);
+					data_position += 8;
+				}
+				if (compressed_size == ZIP64_MAGIC && data_position + 8 <= data_end) {
+					compressed_size = directory.getLong(data_position);
+					data_position += 8;
+				}
+				if (local_header_offset == ZIP64_MAGIC && data_position + 8 <= data_end) {
+					local_header_offset = directory.getLong(data_position);
+					data_position += 8;
+				}
+
+			} else if (header_id == EXTENDED_TIMESTAMP_EXTRA_ID) {
+
+				// The DOS time is in local time of the machine that made the
+				// archive; this one, when present, is the actual UTC mtime.
+				if (data_position + 5 <= data_end && (directory.get(data_position) & 0x01) != 0)
+					time = (directory.getInt(data_position + 1) & 0xFFFFFFFFL) * 1000;
+			}
+
+			extra_position = next_extra_position;
+		}
+
+		if (size < 0 || compressed_size < 0 || local_header_offset < 0)
+			throw new ZipException("Corrupt central directory entry: " + name);
+
+		ZipArchiveEntry entry = new ZipArchiveEntry(name, local_header_offset);
+		entry.setMethod(method);
+		entry.setEncrypted((flags & FLAG_ENCRYPTED) != 0);
+		entry.setTime(time);
+		entry.setCrc(crc);
+		entry.setSize(size);
+		entry.setCompressedSize(compressed_size);
+		return entry;
+	}
+
+	private static long dosToJavaTime(long dos_time) {
+		Calendar calendar = new GregorianCalendar(
+				(int) ((dos_time >> 25) & 0x7f) + 1980,
+				(int) ((dos_time >> 21) & 0x0f) - 1,
+				(int) ((dos_time >> 16) & 0x1f),
+				(int) ((dos_time >> 11) & 0x1f),
+				(int) ((dos_time >> 5) & 0x3f),
+				(int) ((dos_time << 1) & 0x3e));
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * The entry's data starts after its local header, whose name and
+	 * extra field lengths must be read from the local header itself.
+	 */
+	static long getDataOffset(ArchiveSource source, ZipArchiveEntry entry) throws IOException {
+
+		long data_offset = entry.getDataOffset();
+		if (data_offset < 0) {
+			ByteBuffer header = source.read(entry.getLocalHeaderOffset(), LOCAL_HEADER_LENGTH);
+			if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+				throw new ZipException("Corrupt local header for entry: " + entry.getName());
+
+			data_offset = entry.getLocalHeaderOffset() + LOCAL_HEADER_LENGTH
+					+ (header.getShort(26) & 0xFFFF)
+					+ (header.getShort(28) & 0xFFFF);
+			entry.setDataOffset(data_offset);
+		}
+		return data_offset;
+	}
+
+	/**
+	 * Opens the entry's bytes exactly as they are stored in the archive.
+	 */
+	public static InputStream openRawStream(File zip_file, ZipArchiveEntry entry) throws IOException {
+		return openRawStream(ArchiveSource.forFile(zip_file), entry, 0);
+	}
+
+	static InputStream openRawStream(ArchiveSource source, ZipArchiveEntry entry, long offset) throws IOException {
+		return source.openStream(getDataOffset(source, entry) + offset, entry.getCompressedSize() - offset);
+	}
+
+	/**
+	 * The stored entry's bytes as a source in their own right, read
+	 * in place; used to open an inner archive without copying it.
+	 */
+	static ArchiveSource sliceStored(ArchiveSource source, ZipArchiveEntry entry) throws IOException {
+		return source.slice(getDataOffset(source, entry), entry.getCompressedSize());
+	}
+
+	/**
+	 * Opens the entry's uncompressed content, inflating it
+	 * incrementally as the stream is consumed.
+	 */
+	public static InputStream openStream(File zip_file, ZipArchiveEntry entry) throws IOException {
+		return openStream(ArchiveSource.forFile(zip_file), entry, 0);
+	}
+
+	/**
+	 * Opens the entry's uncompressed content from the given offset. Stored
+	 * entries seek straight to it; deflated ones must be inflated from the
+	 * start, but the skipped output is discarded as it is produced.
+	 */
+	public static InputStream openStream(File zip_file, ZipArchiveEntry entry, long offset) throws IOException {
+		return openStream(ArchiveSource.forFile(zip_file), entry, offset);
+	}
+
+	static InputStream openStream(ArchiveSource source, ZipArchiveEntry entry, long offset) throws IOException {
+
+		if (entry.isEncrypted())
+			throw new ZipException("Encrypted entry: " + entry.getName());
+
+		switch (entry.getMethod()) {
+		case ZipEntry.STORED:
+			return openRawStream(source, entry, offset);
+		case ZipEntry.DEFLATED:
+			InputStream inflated = new EntryInflaterInputStream(openRawStream(source, entry, 0));
+			try {
+				ByteStreams.skipFully(inflated, offset);
+			} catch (IOException e) {
+				inflated.close();
+				throw e;
+			}
+			return inflated;
+		default:
+			throw new ZipException("Unsupported compression method " + entry.getMethod()
+					+ " for entry: " + entry.getName());
+		}
+	}
+
+	/**
+	 * Like the stream ZipFile hands out: a "nowrap" Inflater may need one
+	 * byte past the end of the deflated data before it reports completion,
+	 * and its native memory is released as soon as the stream is closed.
+	 */
+	private static class EntryInflaterInputStream extends InflaterInputStream {
+
+		private boolean eof_padded = false;
+		private boolean closed = false;
+		private byte[] skip_buffer;
+
+		EntryInflaterInputStream(InputStream raw) {
+			super(raw, new Inflater(true), INFLATER_BUFFER_SIZE);
+		}
+
+		@Override
+		protected void fill() throws IOException {
+
+			if (this.eof_padded)
+				throw new EOFException("Unexpected end of deflated zip entry");
+
+			this.len = this.in.read(this.buf, 0, this.buf.length);
+			if (this.len == -1) {
+				this.buf[0] = 0;
+				this.len = 1;
+				this.eof_padded = true;
+			}
+			this.inf.setInput(this.buf, 0, this.len);
+		}
+
+		/**
+		 * InflaterInputStream skips through a 512 byte scratch buffer.
+		 */
+		@Override
+		public long skip(long n) throws IOException {
+
+			if (this.skip_buffer == null)
+				this.skip_buffer = new byte[INFLATER_BUFFER_SIZE];
+
+			long skipped = 0;
+			while (skipped < n) {
+				int bytes_read = read(this.skip_buffer, 0, (int) Math.min(this.skip_buffer.length, n - skipped));
+				if (bytes_read < 0)
+					break;
+				skipped += bytes_read;
+			}
+			return skipped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!this.closed) {
+				this.closed = true;
+				try {
+					super.close();
+				} finally {
+					this.inf.end();
+				}
+			}
+		}
+	}
+}
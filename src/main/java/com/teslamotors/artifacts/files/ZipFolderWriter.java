@@ -0,0 +1,99 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a folder within an archive as an archive of its own, copying
+ * each member's data exactly as it is stored, with its CRC and sizes
+ * from the central directory; nothing is inflated or deflated, so this
+ * goes about as fast as the source can be read.
+ *
+ * Members are written in the order of the index, each file after the
+ * folders above it. Their modes aren't kept, and encrypted members
+ * can't be copied, since the header that would say so isn't written.
+ */
+public class ZipFolderWriter {
+
+	private static final int COPY_BUFFER_BYTES = 64 * 1024;
+
+	private final ArchiveSource source;
+	private final ZipIndex.Node folder;
+
+	public ZipFolderWriter(ZipMemberNavigableObject folder) throws FileNotFoundException {
+
+		ZipIndex.Node node = folder.getNode();
+		if (node == null || !node.isDirectory())
+			throw new FileNotFoundException("No folder \"" + folder.getName() + "\" in \""
+					+ folder.getZipParent().asFile().getPath() + "\"");
+
+		this.source = folder.getZipParent().getZipIndex().getSource();
+		this.folder = node;
+	}
+
+	/**
+	 * False if any member beneath the folder is encrypted.
+	 */
+	public boolean isCopyable() {
+		return isCopyable(this.folder);
+	}
+
+	private static boolean isCopyable(ZipIndex.Node node) {
+
+		if (node.getEntry() != null && node.getEntry().isEncrypted())
+			return false;
+		for (ZipIndex.Node child : node.getChildren())
+			if (!isCopyable(child))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Writes the whole archive, with the folder itself as its top folder.
+	 *
+	 * @return the total uncompressed size of the files copied
+	 */
+	public long write(String name, OutputStream output) throws IOException {
+
+		StreamingZipWriter zip_writer = new StreamingZipWriter(output);
+		byte[] buffer = new byte[COPY_BUFFER_BYTES];
+		long size = write(zip_writer, this.folder, name, buffer);
+		zip_writer.finish();
+		output.flush();
+		return size;
+	}
+
+	private long write(StreamingZipWriter zip_writer, ZipIndex.Node node, String path, byte[] buffer)
+			throws IOException {
+
+		ZipArchiveEntry entry = node.getEntry();
+		long size = 0;
+		if (entry != null && !entry.isDirectory()) {
+			if (entry.isEncrypted())
+				throw new ZipException("Can't copy encrypted entry: " + entry.getName());
+
+			zip_writer.putEntry(path, entry.getTime(), entry.getMethod(), entry.getCrc(),
+					entry.getCompressedSize(), entry.getSize());
+			InputStream input = ZipCentralDirectory.openRawStream(this.source, entry, 0);
+			try {
+				int read;
+				while ((read = input.read(buffer)) > 0)
+					zip_writer.write(buffer, 0, read);
+			} finally {
+				input.close();
+			}
+			zip_writer.closeEntry();
+			size += entry.getSize();
+
+		} else {
+			zip_writer.putDirectory(path, node.getTime());
+		}
+
+		for (ZipIndex.Node child : node.getChildren())
+			size += write(zip_writer, child, path + "/" + child.getPath().substring(node.getPath().length() + 1), buffer);
+		return size;
+	}
+}
@@ -0,0 +1,238 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The parsed central directory of one zip archive, arranged as a
+ * directory tree so that a folder's children and any path's entry
+ * can be found without scanning the whole archive.
+ *
+ * Instances are immutable once built, so they can be shared between
+ * concurrent requests.
+ */
+public class ZipIndex {
+
+	/**
+	 * Rough heap cost of a ZipArchiveEntry and its name, excluding the characters.
+	 */
+	private static final int ENTRY_OVERHEAD_BYTES = 160;
+	private static final int NODE_OVERHEAD_BYTES = 120;
+	private static final int INDEX_OVERHEAD_BYTES = 64;
+
+	private final ArchiveSource source;
+
+	/**
+	 * Identifies the archive's version in the ZipIndexCache, and is
+	 * extended to key any archives nested within it; null if uncached.
+	 */
+	private final ZipIndexCache.Key cache_key;
+
+	private final List<ZipArchiveEntry> entries;
+	private final Map<String, Node> nodes_by_path;
+	private final Node root;
+	private final long estimated_bytes;
+
+	ZipIndex(ArchiveSource source, List<ZipArchiveEntry> entries, ZipIndexCache.Key cache_key) {
+		this.source = source;
+		this.cache_key = cache_key;
+		this.entries = Collections.unmodifiableList(entries);
+
+		this.nodes_by_path = Maps.newHashMapWithExpectedSize(entries.size());
+		this.root = new Node("", null);
+		this.nodes_by_path.put(this.root.path, this.root);
+
+		long estimated_bytes = INDEX_OVERHEAD_BYTES + source.getHeapBytes();
+		for (ZipArchiveEntry entry : entries) {
+			estimated_bytes += ENTRY_OVERHEAD_BYTES + 2 * entry.getName().length();
+
+			String path = normalizePath(entry.getName());
+			if (path.isEmpty())
+				continue;
+
+			Node node = this.nodes_by_path.get(path);
+			if (node == null) {
+				node = new Node(path, entry);
+				this.nodes_by_path.put(path, node);
+				getOrCreateDirectory(parentPath(path)).children.add(node);
+
+			} else if (node.entry == null) {
+				// An explicit entry for a directory we have already implied
+				node.entry = entry;
+			} else {
+				// Keep the first of any duplicate entries
+				continue;
+			}
+
+			// Directories that only exist implicitly take the time of their newest member
+			for (Node ancestor = this.nodes_by_path.get(parentPath(path));
+					ancestor != null && ancestor.entry == null && ancestor != this.root;
+					ancestor = this.nodes_by_path.get(parentPath(ancestor.path)))
+				ancestor.implicit_time = Math.max(ancestor.implicit_time, entry.getTime());
+		}
+
+		this.estimated_bytes = estimated_bytes + NODE_OVERHEAD_BYTES * this.nodes_by_path.size();
+		sumTotals(this.root);
+	}
+
+	/**
+	 * Fills in the recursive totals of the node and everything beneath it.
+	 */
+	private static void sumTotals(Node node) {
+		if (node.children.isEmpty()) {
+			if (!node.isDirectory()) {
+				node.total_size = Math.max(0, node.getSize());
+				node.total_file_count = 1;
+			}
+			return;
+		}
+		for (Node child : node.children) {
+			sumTotals(child);
+			node.total_size += child.total_size;
+			node.total_file_count += child.total_file_count;
+		}
+	}
+
+	private Node getOrCreateDirectory(String path) {
+
+		Node node = this.nodes_by_path.get(path);
+		if (node == null) {
+			node = new Node(path, null);
+			this.nodes_by_path.put(path, node);
+			getOrCreateDirectory(parentPath(path)).children.add(node);
+		}
+		return node;
+	}
+
+	static String normalizePath(String path) {
+
+		int end = path.length();
+		while (end > 0 && path.charAt(end - 1) == '/')
+			end--;
+		return path.substring(0, end);
+	}
+
+	static String parentPath(String normalized_path) {
+		int slash = normalized_path.lastIndexOf('/');
+		return slash < 0 ? "" : normalized_path.substring(0, slash);
+	}
+
+	public static ZipIndex build(File zip_file) throws IOException {
+		return build(ArchiveSource.forFile(zip_file), null);
+	}
+
+	static ZipIndex build(ArchiveSource source, ZipIndexCache.Key cache_key) throws IOException {
+		return new ZipIndex(source, ZipCentralDirectory.read(source), cache_key);
+	}
+
+	/**
+	 * Where the archive's bytes are read from.
+	 */
+	public ArchiveSource getSource() {
+		return this.source;
+	}
+
+	ZipIndexCache.Key getCacheKey() {
+		return this.cache_key;
+	}
+
+	public List<ZipArchiveEntry> getEntries() {
+		return this.entries;
+	}
+
+	/**
+	 * The top level of the archive.
+	 */
+	public Node getRoot() {
+		return this.root;
+	}
+
+	/**
+	 * @param relative_path a path within the archive, with or without a trailing slash
+	 * @return null if there is no such entry or directory
+	 */
+	public Node lookup(String relative_path) {
+		return this.nodes_by_path.get(normalizePath(relative_path));
+	}
+
+	/**
+	 * Approximate heap footprint, including any inner archive held in
+	 * memory, used to bound the size of the ZipIndexCache.
+	 */
+	public long getEstimatedBytes() {
+		return this.estimated_bytes;
+	}
+
+	/**
+	 * A file or directory within the archive. Directories that have
+	 * members but no entry of their own have a null entry.
+	 */
+	public static class Node {
+
+		private final String path;
+		private ZipArchiveEntry entry;
+		private final List<Node> children = Lists.newArrayListWithCapacity(0);
+		private long implicit_time = 0;
+		private long total_size = 0;
+		private long total_file_count = 0;
+
+		Node(String path, ZipArchiveEntry entry) {
+			this.path = path;
+			this.entry = entry;
+		}
+
+		/**
+		 * The path within the archive, without any trailing slash.
+		 */
+		public String getPath() {
+			return this.path;
+		}
+
+		/**
+		 * The entry name, which for directories ends with a slash.
+		 */
+		public String getName() {
+			if (this.entry != null)
+				return this.entry.getName();
+			return this.path + "/";
+		}
+
+		public ZipArchiveEntry getEntry() {
+			return this.entry;
+		}
+
+		public boolean isDirectory() {
+			return this.entry == null || this.entry.isDirectory() || !this.children.isEmpty();
+		}
+
+		public List<Node> getChildren() {
+			return Collections.unmodifiableList(this.children);
+		}
+
+		public long getTime() {
+			return this.entry != null ? this.entry.getTime() : this.implicit_time;
+		}
+
+		public long getSize() {
+			return this.entry != null ? this.entry.getSize() : 0;
+		}
+
+		/**
+		 * The uncompressed size of every file at or beneath this node,
+		 * not looking into nested archives.
+		 */
+		public long getTotalSize() {
+			return this.total_size;
+		}
+
+		public long getTotalFileCount() {
+			return this.total_file_count;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package com.teslamotors.artifacts.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.io.ByteStreams;
+import com.teslamotors.artifacts.metrics.Histogram;
+import com.teslamotors.artifacts.metrics.RequestTrace;
+
+/**
+ * Shares parsed zip indexes between requests, so that browsing
+ * an archive that has not changed costs only a stat call.
+ *
+ * Entries are keyed by the archive's canonical path together with its
+ * modification time and length; a rewritten archive therefore gets a new
+ * key, and its stale index simply ages out of the cache.
+ *
+ * Archives nested within others are cached too, keyed by their outer
+ * archive's key plus their entry name and CRC. A stored inner archive
+ * is read in place within the outer one. A deflated one has to be
+ * inflated once: into memory if small, where it counts against the
+ * cache's budget, or otherwise into the InflatedArchiveCache on disk.
+ */
+public class ZipIndexCache {
+
+	public static final long DEFAULT_MAXIMUM_BYTES = 64L * 1024 * 1024;
+	public static final long DEFAULT_MAXIMUM_IN_MEMORY_ARCHIVE_BYTES = 4L * 1024 * 1024;
+
+	private final Cache<Key, ZipIndex> cache;
+	private final long maximum_bytes;
+
+	private final long maximum_in_memory_archive_bytes;
+
+	/**
+	 * Null if larger deflated inner archives can't be browsed.
+	 */
+	private final InflatedArchiveCache inflated_archive_cache;
+
+	private final Histogram build_times = Histogram.forLatency();
+	private final Histogram built_entry_counts = Histogram.forCounts();
+
+	public ZipIndexCache(long maximum_bytes) {
+		this(maximum_bytes, DEFAULT_MAXIMUM_IN_MEMORY_ARCHIVE_BYTES, null);
+	}
+
+	public ZipIndexCache(long maximum_bytes, long maximum_in_memory_archive_bytes,
+			InflatedArchiveCache inflated_archive_cache) {
+
+		this.maximum_bytes = maximum_bytes;
+		this.maximum_in_memory_archive_bytes = maximum_in_memory_archive_bytes;
+		this.inflated_archive_cache = inflated_archive_cache;
+		this.cache = CacheBuilder.newBuilder()
+				.maximumWeight(maximum_bytes)
+				.weigher(new Weigher<Key, ZipIndex>() {
+					@Override
+					public int weigh(Key key, ZipIndex index) {
+						return (int) Math.min(Integer.MAX_VALUE, index.getEstimatedBytes());
+					}
+				})
+				.recordStats()
+				.build();
+	}
+
+	public ZipIndex get(final File zip_file) throws IOException {
+
+		final Key key = new Key(zip_file.getCanonicalPath(), zip_file.lastModified(), zip_file.length());
+		ZipIndex index = get(key, new Callable<ZipIndex>() {
+			@Override
+			public ZipIndex call() throws IOException {
+				return ZipIndex.build(ArchiveSource.forFile(zip_file), key);
+			}
+		});
+
+		// The archive may have been rewritten while we were reading it,
+		// in which case the index must not outlive this request.
+		if (zip_file.lastModified() != key.last_modified || zip_file.length() != key.length)
+			this.cache.invalidate(key);
+
+		return index;
+	}
+
+	/**
+	 * Indexes an archive stored as a member of another one.
+	 *
+	 * @param outer an index obtained from this cache
+	 */
+	public ZipIndex getNested(final ZipIndex outer, final ZipArchiveEntry entry) throws IOException {
+
+		final Key key = outer.getCacheKey().nested(entry);
+
+		// An inflated copy on disk may have been evicted from under its index,
+		// which stays readable through the streams already open on it; this
+		// request gets a new copy. (Looked up through the map view, which
+		// doesn't count towards the stats.)
+		ZipIndex index = this.cache.asMap().get(key);
+		if (index != null && !index.getSource().isAvailable())
+			this.cache.invalidate(key);
+
+		return get(key, new Callable<ZipIndex>() {
+			@Override
+			public ZipIndex call() throws IOException {
+				return buildNested(outer.getSource(), entry, key);
+			}
+		});
+	}
+
+	/**
+	 * Traced as indexing even on a hit, which also covers waiting for
+	 * another request that is building the same index.
+	 */
+	private ZipIndex get(Key key, final Callable<ZipIndex> loader) throws IOException {
+
+		RequestTrace.Phase resumed = RequestTrace.enter(RequestTrace.Phase.INDEX);
+		try {
+			return this.cache.get(key, new Callable<ZipIndex>() {
+				@Override
+				public ZipIndex call() throws Exception {
+					long start = System.nanoTime();
+					ZipIndex index = loader.call();
+					ZipIndexCache.this.build_times.recordSince(start);
+					ZipIndexCache.this.built_entry_counts.record(index.getEntries().size());
+					RequestTrace.count(RequestTrace.Phase.INDEX, index.getEntries().size());
+					return index;
+				}
+			});
+		} catch (ExecutionException e) {
+			Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+			throw Throwables.propagate(e.getCause());
+		} finally {
+			RequestTrace.exit(resumed);
+		}
+	}
+
+	private ZipIndex buildNested(ArchiveSource outer, ZipArchiveEntry entry, Key key) throws IOException {
+
+		switch (entry.getMethod()) {
+		case ZipEntry.STORED:
+			return ZipIndex.build(ZipCentralDirectory.sliceStored(outer, entry), key);
+
+		case ZipEntry.DEFLATED:
+			if (entry.getSize() <= this.maximum_in_memory_archive_bytes) {
+				byte[] bytes = new byte[(int) entry.getSize()];
+				InputStream input = ZipCentralDirectory.openStream(outer, entry, 0);
+				try {
+					ByteStreams.readFully(input, bytes);
+				} finally {
+					input.close();
+				}
+				return ZipIndex.build(ArchiveSource.forBytes(bytes), key);
+			}
+
+			if (this.inflated_archive_cache == null
+					|| entry.getSize() > this.inflated_archive_cache.getMaximumArchiveBytes())
+				throw new ZipException("Inner archive is too large to browse: " + entry.getName());
+
+			// Held while the index is built, even if the copy is evicted meanwhile
+			SharedFileChannel inflated = this.inflated_archive_cache.get(key.toString());
+			if (inflated == null)
+				inflated = this.inflated_archive_cache.put(key.toString(),
+						ZipCentralDirectory.openStream(outer, entry, 0));
+			try {
+				return ZipIndex.build(ArchiveSource.forSharedChannel(inflated), key);
+			} finally {
+				inflated.release();
+			}
+
+		default:
+			throw new ZipException("Unsupported compression method " + entry.getMethod()
+					+ " for inner archive: " + entry.getName());
+		}
+	}
+
+	public CacheStats getStats() {
+		return this.cache.stats();
+	}
+
+	/**
+	 * How long indexes took to build, including inflating inner archives.
+	 */
+	public Histogram getBuildTimes() {
+		return this.build_times;
+	}
+
+	/**
+	 * How many entries the indexes built had.
+	 */
+	public Histogram getBuiltEntryCounts() {
+		return this.built_entry_counts;
+	}
+
+	public InflatedArchiveCache getInflatedArchiveCache() {
+		return this.inflated_archive_cache;
+	}
+
+	public long getEntryCount() {
+		return this.cache.size();
+	}
+
+	public long getMaximumBytes() {
+		return this.maximum_bytes;
+	}
+
+	public void invalidateAll() {
+		this.cache.invalidateAll();
+	}
+
+	@Override
+	public String toString() {
+		CacheStats stats = getStats();
+		return Objects.toStringHelper(this)
+				.add("archives", getEntryCount())
+				.add("hits", stats.hitCount())
+				.add("misses", stats.missCount())
+				.add("evictions", stats.evictionCount())
+				.add("inflated", this.inflated_archive_cache)
+				.omitNullValues()
+				.toString();
+	}
+
+	static class Key {
+
+		/**
+		 * For a nested archive, the outermost archive's path followed by
+		 * each entry name along the way; the time and length remain those
+		 * of the outermost archive, which pin down everything inside it.
+		 */
+		final String canonical_path;
+		final long last_modified;
+		final long length;
+
+		Key(String canonical_path, long last_modified, long length) {
+			this.canonical_path = canonical_path;
+			this.last_modified = last_modified;
+			this.length = length;
+		}
+
+		Key nested(ZipArchiveEntry entry) {
+			return new Key(this.canonical_path + "!/" + entry.getName() + "#" + Long.toHexString(entry.getCrc()),
+					this.last_modified, this.length);
+		}
+
+		@Override
+		public String toString() {
+			return this.canonical_path + '\0' + this.last_modified + '\0' + this.length;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return this.canonical_path.equals(other.canonical_path)
+					&& this.last_modified == other.last_modified
+					&& this.length == other.length;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(this.canonical_path, this.last_modified, this.length);
+		}
+	}
+}
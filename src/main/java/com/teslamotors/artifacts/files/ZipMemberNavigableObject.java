@@ -1,13 +1,11 @@
 package com.teslamotors.artifacts.files;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import com.google.common.collect.Lists;
 
@@ -19,29 +17,41 @@ public class ZipMemberNavigableObject extends NavigableObject {
 	 * This is the path within the Zip file.
 	 */
 	private final String relative_file_reference;
+
+	/**
+	 * Looked up in the parent's index at most once; null if there is no such member.
+	 */
+	private ZipIndex.Node node;
+	private boolean node_resolved;
 	
 	public ZipMemberNavigableObject(ZipParentNavigableObject zip_parent, String relative_file_reference) {
 		this.zip_parent = zip_parent;
 		this.relative_file_reference = relative_file_reference;
 	}
-	
-	private String normalizeDirName(String non_normalized) {
 
-		if (non_normalized.endsWith("/"))
-			return non_normalized.substring(0, non_normalized.length() - 1);
-		return non_normalized;
+	ZipMemberNavigableObject(ZipParentNavigableObject zip_parent, ZipIndex.Node node) {
+		this(zip_parent, node.getName());
+		this.node = node;
+		this.node_resolved = true;
 	}
-	
-	private ZipEntry getZipEntry() {
 
-		for (ZipEntry entry : this.zip_parent.getEntries()) {
-			String stripped_ze_name = normalizeDirName(entry.getName());
-			String stripped_relpath_name = normalizeDirName(this.relative_file_reference);
-			if (stripped_ze_name.equals(stripped_relpath_name))
-				return entry;
+	ZipParentNavigableObject getZipParent() {
+		return this.zip_parent;
+	}
+
+	ZipIndex.Node getNode() {
+
+		if (!this.node_resolved) {
+			this.node = this.zip_parent.getZipIndex().lookup(this.relative_file_reference);
+			this.node_resolved = true;
 		}
-		
-		return null;
+		return this.node;
+	}
+	
+	private ZipArchiveEntry getZipEntry() {
+
+		ZipIndex.Node node = getNode();
+		return node != null ? node.getEntry() : null;
 	}
 	
 	/**
@@ -49,26 +59,26 @@ public class ZipMemberNavigableObject extends NavigableObject {
 	 */
 	@Override
 	protected List<NavigableObject> getIntermediateChildList() throws IOException {
-		
-		return getDirectChildMembers(this, this.zip_parent);
+
+		ZipIndex.Node node = getNode();
+		if (node == null)
+			return Lists.newArrayList();
+
+		return getDirectChildMembers(this.zip_parent, node);
 	}
 
 	@Override
 	public
 	long lastModified() {
-		return getZipEntry().getTime();
+
+		ZipIndex.Node node = getNode();
+		return node != null ? node.getTime() : 0;
 	}
 	
 	public boolean isDirectory() {
 
-		ZipEntry ze = getZipEntry();
-		
-		if (ze != null) {
-			boolean is_dir = ze.isDirectory();
-			return is_dir;
-		}
-		
-		return false;
+		ZipIndex.Node node = getNode();
+		return node != null && node.isDirectory();
 	}
 	
 	@Override
@@ -78,7 +88,9 @@ public class ZipMemberNavigableObject extends NavigableObject {
 
 	@Override
 	public String getName() {
-		return getZipEntry().getName();
+
+		ZipIndex.Node node = getNode();
+		return node != null ? node.getName() : this.relative_file_reference;
 	}
 
 	public String getDisplayName() {
@@ -88,42 +100,91 @@ public class ZipMemberNavigableObject extends NavigableObject {
 	@Override
 	public long getSize() {
 
-		ZipEntry ze = getZipEntry();
-		if (ze != null)
-			return getZipEntry().getSize();
-		
-		return 0;
+		ZipIndex.Node node = getNode();
+		return node != null ? node.getSize() : 0;
+	}
+
+	/**
+	 * The central directory's CRC identifies the content without reading it.
+	 */
+	@Override
+	public String getEntityTag() {
+
+		ZipArchiveEntry zip_entry = getZipEntry();
+		if (zip_entry == null)
+			return super.getEntityTag();
+
+		return "\"" + Long.toHexString(zip_entry.getCrc())
+				+ "-" + Long.toHexString(zip_entry.getSize())
+				+ "-" + Long.toHexString(zip_entry.getTime()) + "\"";
 	}
 
 	@Override
 	public boolean exists() {
-		// TODO FIXME
-		return true;
+		return getNode() != null;
 	}
 
 	@Override
 	public InputStream getInputStream() throws IOException {
-		
-		ZipInputStream zipIn = new ZipInputStream(new FileInputStream(this.zip_parent.asFile()));
-
-		InputStream bais = null;
-		ZipEntry zip_entry;
-		while ( (zip_entry = zipIn.getNextEntry()) != null) {
-			if (zip_entry.getName().equals(this.relative_file_reference)) {
-				byte[] bytes = new byte[(int) zip_entry.getSize()];
-
-				int totalBytesRead = 0;
-				int bytes_left;
-				while ( (bytes_left = bytes.length - totalBytesRead) > 0)
-					totalBytesRead += zipIn.read(bytes, totalBytesRead, bytes_left);		
-
-				bais = new ByteArrayInputStream(bytes);
-				break;
-			}
-		}
-		
-		zipIn.close();
-		return bais;
+		return getInputStream(0);
+	}
+
+	/**
+	 * Stored members seek directly to the offset. Deflated ones have no
+	 * earlier point to resume from, so are inflated from their start,
+	 * discarding output until the offset is reached.
+	 */
+	@Override
+	public InputStream getInputStream(long offset) throws IOException {
+
+		ZipArchiveEntry zip_entry = getZipEntry();
+		if (zip_entry == null)
+			throw new FileNotFoundException( String.format("No entry \"%s\" in \"%s\"",
+					this.relative_file_reference, this.zip_parent.asFile().getPath()) );
+
+		// Seek straight to the entry and inflate it as it is read,
+		// rather than decompressing the archive up to this point.
+		return ZipCentralDirectory.openStream(this.zip_parent.getZipIndex().getSource(), zip_entry, offset);
+	}
+
+	/**
+	 * Whether the member is stored with the deflate method, so that
+	 * getCompressedInputStream() yields a raw deflate stream.
+	 */
+	public boolean isDeflated() {
+
+		ZipArchiveEntry zip_entry = getZipEntry();
+		return zip_entry != null && !zip_entry.isDirectory() && !zip_entry.isEncrypted()
+				&& zip_entry.getMethod() == ZipEntry.DEFLATED;
+	}
+
+	/**
+	 * Whether the member's data is encrypted, so that it can't be read.
+	 */
+	public boolean isEncrypted() {
+
+		ZipArchiveEntry zip_entry = getZipEntry();
+		return zip_entry != null && zip_entry.isEncrypted();
+	}
+
+	/**
+	 * @return null for directories that have no entry of their own
+	 */
+	public ZipArchiveEntry getArchiveEntry() {
+		return getZipEntry();
+	}
+
+	/**
+	 * Opens the member's bytes as they are stored in the archive, without inflating them.
+	 */
+	public InputStream getCompressedInputStream() throws IOException {
+
+		ZipArchiveEntry zip_entry = getZipEntry();
+		if (zip_entry == null)
+			throw new FileNotFoundException( String.format("No entry \"%s\" in \"%s\"",
+					this.relative_file_reference, this.zip_parent.asFile().getPath()) );
+
+		return ZipCentralDirectory.openRawStream(this.zip_parent.getZipIndex().getSource(), zip_entry, 0);
 	}
 
 	@Override
@@ -142,16 +203,17 @@ public class ZipMemberNavigableObject extends NavigableObject {
 		}
 	}
 
-	public static List<NavigableObject> getDirectChildMembers(NavigableObject self, ZipParentNavigableObject zip_parent_container) {
+	/**
+	 * Each directory in the index already knows its children, so this
+	 * costs only as much as the directory is large.
+	 */
+	public static List<NavigableObject> getDirectChildMembers(ZipParentNavigableObject zip_parent_container, ZipIndex.Node directory) {
 		
-		List<NavigableObject> navigable_objects = Lists.newArrayList();
+		List<NavigableObject> navigable_objects = Lists.newArrayListWithCapacity(directory.getChildren().size());
 	
-		for (ZipEntry ze : zip_parent_container.getEntries()) {
-			NavigableObject potential_child = new ZipMemberNavigableObject(zip_parent_container, ze.getName());
-			if (potential_child.getParent().getName().equals(self.getName()))
-				navigable_objects.add( potential_child );
-		}
+		for (ZipIndex.Node child : directory.getChildren())
+			navigable_objects.add( new ZipMemberNavigableObject(zip_parent_container, child) );
 		
 		return navigable_objects;
 	}
-}
\ No newline at end of file
+}
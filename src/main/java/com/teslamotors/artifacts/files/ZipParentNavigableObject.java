@@ -1,51 +1,90 @@
 package com.teslamotors.artifacts.files;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-
-import com.google.common.collect.Lists;
 
 /**
  * This class has commonalities with both FileNavigableObject
  * and ZipMemberNavigableObject. Since we can only inherit from one,
  * we choose FileNavigableObject, and just re-use static methods
  * from ZipMemberNavigableObject.
+ *
+ * An archive nested within another is not a file of its own, so for
+ * anything but its contents it defers to its member of the outer archive.
  */
 public class ZipParentNavigableObject extends FileNavigableObject {
 
 	public static final String ZIP_EXTENSION = ".zip";
 
-	private final List<ZipEntry> zip_entries;
+	private final ZipIndex zip_index;
+
+	/**
+	 * The member of the outer archive that this archive is, or null if it is a file on disk.
+	 */
+	private final ZipMemberNavigableObject outer_member;
 
-	public List<ZipEntry> getEntries() {
-		return this.zip_entries;
+	public List<ZipArchiveEntry> getEntries() {
+		return this.zip_index.getEntries();
 	}
-	
-	private ZipParentNavigableObject(File zip_file, List<ZipEntry> zip_entries) {
+
+	public ZipIndex getZipIndex() {
+		return this.zip_index;
+	}
+
+	private ZipParentNavigableObject(File zip_file, ZipIndex zip_index, ZipMemberNavigableObject outer_member) {
 		super(zip_file);
-		this.zip_entries = zip_entries;
+		this.zip_index = zip_index;
+		this.outer_member = outer_member;
 	}
 
-	public static ZipParentNavigableObject createNew(File zip_file) throws IOException {
+	public static ZipParentNavigableObject createNew(File zip_file, ZipIndexCache zip_index_cache) throws IOException {
+		return new ZipParentNavigableObject(zip_file, zip_index_cache.get(zip_file), null);
+	}
+
+	/**
+	 * Opens an archive that is itself a member of another archive.
+	 */
+	public static ZipParentNavigableObject createNested(ZipMemberNavigableObject outer_member,
+			ZipIndexCache zip_index_cache) throws IOException {
+
+		ZipIndex zip_index = zip_index_cache.getNested(
+				outer_member.getZipParent().getZipIndex(), outer_member.getArchiveEntry());
+		return new ZipParentNavigableObject(outer_member.asFile(), zip_index, outer_member);
+	}
 
-		List<ZipEntry> zip_entries = Lists.newArrayList();
-		ZipInputStream zipIn = new ZipInputStream(new FileInputStream(zip_file));
+	/**
+	 * Finds the member at the given path within this archive, descending
+	 * into any archives nested along the way, however deep.
+	 */
+	public NavigableObject resolveMember(String relative_path, ZipIndexCache zip_index_cache) throws IOException {
 
-		ZipEntry zip_entry;
-		while ( (zip_entry = zipIn.getNextEntry()) != null)
-			zip_entries.add(zip_entry);
+		ZipParentNavigableObject zip_parent = this;
+		int start = 0;
+		int end = 0;
+		while (end < relative_path.length()) {
+			int slash = relative_path.indexOf('/', end);
+			end = slash < 0 ? relative_path.length() : slash;
 
-		zipIn.close();
+			String member_path = relative_path.substring(start, end);
+			if (member_path.endsWith(ZIP_EXTENSION)) {
+				ZipMemberNavigableObject member = new ZipMemberNavigableObject(zip_parent, member_path);
+				if (member.exists() && !member.isDirectory()) {
+					zip_parent = createNested(member, zip_index_cache);
+					start = end + 1;
+				}
+			}
+			end++;
+		}
 
-		return new ZipParentNavigableObject(zip_file, zip_entries);
+		if (start >= relative_path.length())
+			return zip_parent;
+		return new ZipMemberNavigableObject(zip_parent, relative_path.substring(start));
 	}
 
 	protected List<NavigableObject> getIntermediateChildList() throws IOException {
-		return ZipMemberNavigableObject.getDirectChildMembers(this, this);
+		return ZipMemberNavigableObject.getDirectChildMembers(this, this.zip_index.getRoot());
 	}
 
 	@Override
@@ -62,4 +101,44 @@ public class ZipParentNavigableObject extends FileNavigableObject {
 	public boolean isDownloadable() {
 		return true;
 	}
+
+	@Override
+	public boolean isOnFilesystem() {
+		return this.outer_member == null;
+	}
+
+	@Override
+	public NavigableObject getParent() {
+		return this.outer_member != null ? this.outer_member.getParent() : super.getParent();
+	}
+
+	@Override
+	public long lastModified() {
+		return this.outer_member != null ? this.outer_member.lastModified() : super.lastModified();
+	}
+
+	@Override
+	public long getSize() {
+		return this.outer_member != null ? this.outer_member.getSize() : super.getSize();
+	}
+
+	@Override
+	public boolean exists() {
+		return this.outer_member != null ? this.outer_member.exists() : super.exists();
+	}
+
+	@Override
+	public String getEntityTag() {
+		return this.outer_member != null ? this.outer_member.getEntityTag() : super.getEntityTag();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return this.outer_member != null ? this.outer_member.getInputStream() : super.getInputStream();
+	}
+
+	@Override
+	public InputStream getInputStream(long offset) throws IOException {
+		return this.outer_member != null ? this.outer_member.getInputStream(offset) : super.getInputStream(offset);
+	}
 }
@@ -0,0 +1,10 @@
+package com.teslamotors.artifacts.metrics;
+
+/**
+ * A value read from its source whenever the metrics are exported, for
+ * statistics that are already kept elsewhere, such as by caches.
+ */
+public interface Gauge {
+
+	double getValue();
+}
@@ -0,0 +1,135 @@
+package com.teslamotors.artifacts.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts recorded values into fixed buckets, Prometheus style, along
+ * with their sum. Values are recorded as longs (nanoseconds, entry
+ * counts), and scaled only when exported (to seconds).
+ *
+ * Striped like StripedCounter: each thread records into its own row of
+ * buckets, padded to whole cache lines.
+ */
+public final class Histogram {
+
+	private static final long[] LATENCY_BOUNDS_NANOS = {
+		TimeUnit.MICROSECONDS.toNanos(500),
+		TimeUnit.MILLISECONDS.toNanos(1),
+		TimeUnit.MILLISECONDS.toNanos(5),
+		TimeUnit.MILLISECONDS.toNanos(10),
+		TimeUnit.MILLISECONDS.toNanos(25),
+		TimeUnit.MILLISECONDS.toNanos(50),
+		TimeUnit.MILLISECONDS.toNanos(100),
+		TimeUnit.MILLISECONDS.toNanos(250),
+		TimeUnit.MILLISECONDS.toNanos(500),
+		TimeUnit.SECONDS.toNanos(1),
+		TimeUnit.SECONDS.toNanos(2),
+		TimeUnit.SECONDS.toNanos(5),
+		TimeUnit.SECONDS.toNanos(10),
+		TimeUnit.SECONDS.toNanos(30),
+		TimeUnit.SECONDS.toNanos(60),
+	};
+
+	private static final long[] COUNT_BOUNDS = {
+		10, 100, 1000, 10000, 100000, 1000000,
+	};
+
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	/**
+	 * Upper bounds, inclusive, of all but the last bucket, which has none.
+	 */
+	private final long[] bounds;
+
+	/**
+	 * Exported values are the recorded ones divided by this.
+	 */
+	private final double scale;
+
+	/**
+	 * Each stripe's buckets, then its sum.
+	 */
+	private final int row_length;
+	private final AtomicLongArray cells;
+
+	public Histogram(long[] bounds, double scale) {
+		this.bounds = bounds.clone();
+		this.scale = scale;
+
+		int length = bounds.length + 2;
+		this.row_length = (length + StripedCounter.PADDING - 1) / StripedCounter.PADDING * StripedCounter.PADDING;
+		this.cells = new AtomicLongArray(StripedCounter.STRIPES * this.row_length);
+	}
+
+	/**
+	 * For durations recorded in nanoseconds, from half a millisecond to a minute.
+	 */
+	public static Histogram forLatency() {
+		return new Histogram(LATENCY_BOUNDS_NANOS, NANOS_PER_SECOND);
+	}
+
+	/**
+	 * For sizes in powers of ten, up to a million.
+	 */
+	public static Histogram forCounts() {
+		return new Histogram(COUNT_BOUNDS, 1);
+	}
+
+	public void record(long value) {
+
+		int bucket = 0;
+		while (bucket < this.bounds.length && value > this.bounds[bucket])
+			bucket++;
+
+		int row = StripedCounter.getStripe() * this.row_length;
+		this.cells.getAndIncrement(row + bucket);
+		this.cells.getAndAdd(row + this.bounds.length + 1, value);
+	}
+
+	/**
+	 * Records the time since start, as from System.nanoTime().
+	 */
+	public void recordSince(long start_nanos) {
+		record(System.nanoTime() - start_nanos);
+	}
+
+	public int getBucketCount() {
+		return this.bounds.length + 1;
+	}
+
+	/**
+	 * @return the scaled upper bound, or infinity for the last bucket
+	 */
+	public double getUpperBound(int bucket) {
+		return bucket < this.bounds.length ? this.bounds[bucket] / this.scale : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return the number of values recorded into each bucket, not cumulative
+	 */
+	public long[] getBucketCounts() {
+		long[] counts = new long[getBucketCount()];
+		for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++)
+			for (int bucket = 0; bucket < counts.length; bucket++)
+				counts[bucket] += this.cells.get(stripe * this.row_length + bucket);
+		return counts;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (long bucket_count : getBucketCounts())
+			count += bucket_count;
+		return count;
+	}
+
+	/**
+	 * The sum of the recorded values, scaled.
+	 */
+	public double getSum() {
+		long sum = 0;
+		for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++)
+			sum += this.cells.get(stripe * this.row_length + this.bounds.length + 1);
+		return sum / this.scale;
+	}
+}
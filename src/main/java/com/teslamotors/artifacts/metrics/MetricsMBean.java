@@ -0,0 +1,104 @@
+package com.teslamotors.artifacts.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Exposes a registry's metrics over JMX, read-only, one attribute per
+ * counter or gauge, and a count and a sum per histogram. Attributes are
+ * named after the metric and its labels, e.g.
+ * <code>file_servlet_request_seconds{type=file}_count</code>.
+ */
+public class MetricsMBean implements DynamicMBean {
+
+	private final MetricsRegistry registry;
+
+	public MetricsMBean(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Read afresh each time, since metrics may be registered at any time.
+	 */
+	private Map<String, Object> getValues() {
+
+		Map<String, Object> values = Maps.newTreeMap();
+		for (MetricsRegistry.Family family : this.registry.getFamilies()) {
+			for (MetricsRegistry.Sample sample : family.samples) {
+
+				String name = family.name;
+				if (sample.labels != null && !sample.labels.isEmpty())
+					name += "{" + sample.labels.replace("\"", "") + "}";
+
+				if (sample.metric instanceof Histogram) {
+					Histogram histogram = (Histogram) sample.metric;
+					values.put(name + "_count", histogram.getCount());
+					values.put(name + "_sum", histogram.getSum());
+				} else if (sample.metric instanceof StripedCounter) {
+					values.put(name, ((StripedCounter) sample.metric).sum());
+				} else {
+					values.put(name, ((Gauge) sample.metric).getValue());
+				}
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Object value = getValues().get(attribute);
+		if (value == null)
+			throw new AttributeNotFoundException(attribute);
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Object> values = getValues();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes)
+			if (values.containsKey(attribute))
+				list.add(new Attribute(attribute, values.get(attribute)));
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String action, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(action);
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+
+		Map<String, Object> values = getValues();
+		List<MBeanAttributeInfo> attributes = Lists.newArrayList();
+		for (Map.Entry<String, Object> value : values.entrySet())
+			attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+					value.getKey(), true, false, false));
+
+		return new MBeanInfo(getClass().getName(), "File servlet metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				null, new MBeanOperationInfo[0], null);
+	}
+}
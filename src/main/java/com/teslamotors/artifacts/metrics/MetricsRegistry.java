@@ -0,0 +1,166 @@
+package com.teslamotors.artifacts.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Names metrics, and writes them out in the Prometheus text format.
+ *
+ * Metrics of one name form a family, and are told apart by their labels,
+ * given already formatted, such as <code>type="file"</code>.
+ */
+public class MetricsRegistry {
+
+	/**
+	 * Where the registry is published for MetricsServlet.
+	 */
+	public static final String CONTEXT_ATTRIBUTE = MetricsRegistry.class.getName();
+
+	enum Type {
+		COUNTER, GAUGE, HISTOGRAM;
+
+		String getName() {
+			return name().toLowerCase();
+		}
+	}
+
+	static class Family {
+
+		final String name;
+		final String help;
+		final Type type;
+		final List<Sample> samples = Lists.newArrayList();
+
+		Family(String name, String help, Type type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * One metric of a family: a StripedCounter, a Histogram or a Gauge.
+	 */
+	static class Sample {
+
+		final String labels;
+		final Object metric;
+
+		Sample(String labels, Object metric) {
+			this.labels = labels;
+			this.metric = metric;
+		}
+	}
+
+	/**
+	 * In order of registration.
+	 */
+	private final Map<String, Family> families = Maps.newLinkedHashMap();
+
+	private synchronized void register(String name, String labels, String help, Type type, Object metric) {
+
+		Family family = this.families.get(name);
+		if (family == null) {
+			family = new Family(name, help, type);
+			this.families.put(name, family);
+		} else if (family.type != type) {
+			throw new IllegalArgumentException(name + " is already registered as a " + family.type.getName());
+		}
+		family.samples.add(new Sample(labels, metric));
+	}
+
+	public StripedCounter counter(String name, String labels, String help) {
+		StripedCounter counter = new StripedCounter();
+		register(name, labels, help, Type.COUNTER, counter);
+		return counter;
+	}
+
+	public Histogram histogram(String name, String labels, String help, Histogram histogram) {
+		register(name, labels, help, Type.HISTOGRAM, histogram);
+		return histogram;
+	}
+
+	/**
+	 * @param is_counter whether the value only ever goes up
+	 */
+	public void gauge(String name, String labels, String help, boolean is_counter, Gauge gauge) {
+		register(name, labels, help, is_counter ? Type.COUNTER : Type.GAUGE, gauge);
+	}
+
+	synchronized List<Family> getFamilies() {
+		List<Family> families = Lists.newArrayList();
+		for (Family family : this.families.values()) {
+			Family copy = new Family(family.name, family.help, family.type);
+			copy.samples.addAll(family.samples);
+			families.add(copy);
+		}
+		return ImmutableList.copyOf(families);
+	}
+
+	static double getValue(Object metric) {
+		if (metric instanceof StripedCounter)
+			return ((StripedCounter) metric).sum();
+		return ((Gauge) metric).getValue();
+	}
+
+	/**
+	 * Text exposition format version 0.0.4.
+	 */
+	public void writeText(Writer writer) throws IOException {
+
+		for (Family family : getFamilies()) {
+
+			writer.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+			writer.append("# TYPE ").append(family.name).append(' ').append(family.type.getName()).append('\n');
+
+			for (Sample sample : family.samples) {
+				if (family.type != Type.HISTOGRAM) {
+					writeSample(writer, family.name, sample.labels, null, getValue(sample.metric));
+					continue;
+				}
+
+				Histogram histogram = (Histogram) sample.metric;
+				long[] counts = histogram.getBucketCounts();
+				long cumulative = 0;
+				for (int bucket = 0; bucket < counts.length; bucket++) {
+					cumulative += counts[bucket];
+					writeSample(writer, family.name + "_bucket", sample.labels,
+							"le=\"" + formatValue(histogram.getUpperBound(bucket)) + "\"", cumulative);
+				}
+				writeSample(writer, family.name + "_sum", sample.labels, null, histogram.getSum());
+				writeSample(writer, family.name + "_count", sample.labels, null, cumulative);
+			}
+		}
+		writer.flush();
+	}
+
+	private static void writeSample(Writer writer, String name, String labels, String extra_label,
+			double value) throws IOException {
+
+		writer.append(name);
+		boolean has_labels = labels != null && !labels.isEmpty();
+		if (has_labels || extra_label != null) {
+			writer.append('{');
+			if (has_labels)
+				writer.append(labels);
+			if (extra_label != null)
+				writer.append(has_labels ? "," : "").append(extra_label);
+			writer.append('}');
+		}
+		writer.append(' ').append(formatValue(value)).append('\n');
+	}
+
+	static String formatValue(double value) {
+		if (value == Double.POSITIVE_INFINITY)
+			return "+Inf";
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+}
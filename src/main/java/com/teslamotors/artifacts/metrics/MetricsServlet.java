@@ -0,0 +1,45 @@
+package com.teslamotors.artifacts.metrics;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Serves the metrics that the FileServlet publishes in the servlet
+ * context, in the Prometheus text format.
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+
+		// The FileServlet may not have been initialized yet
+		MetricsRegistry registry = (MetricsRegistry) getServletContext().getAttribute(MetricsRegistry.CONTEXT_ATTRIBUTE);
+		if (registry == null) {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE); // 503.
+			return;
+		}
+
+		response.setContentType(CONTENT_TYPE);
+		response.setHeader("Cache-Control", "no-cache");
+
+		Writer writer = new OutputStreamWriter(response.getOutputStream(), Charsets.UTF_8);
+		try {
+			registry.writeText(writer);
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.teslamotors.artifacts.metrics;
+
+import java.util.Locale;
+
+/**
+ * Where one request's time went, phase by phase, for the requests chosen
+ * to be traced. A trace belongs to its request's thread, so the code being
+ * timed needs no reference to it: it brackets its work with enter() and
+ * exit(), which cost one ThreadLocal lookup on threads that aren't tracing.
+ *
+ * Phases nest, and time is charged to the innermost one only: an archive
+ * indexed while resolving a path counts as indexing, not resolving. Work
+ * handed to other threads, such as an asynchronous download, is charged
+ * to whichever phase waits for it, if any.
+ */
+public final class RequestTrace {
+
+	public enum Phase {
+		OTHER(null),
+		RESOLVE(null),
+		INDEX("entries"),
+		LIST("entries"),
+		STAT("files"),
+		SORT("entries"),
+		RENDER("entries"),
+		TRANSFER("bytes");
+
+		/**
+		 * What the phase counts, or null if it counts nothing.
+		 */
+		private final String count_name;
+
+		Phase(String count_name) {
+			this.count_name = count_name;
+		}
+	}
+
+	private static final ThreadLocal<RequestTrace> current = new ThreadLocal<RequestTrace>();
+
+	private final long started_at;
+	private long ended_at;
+
+	private final long[] phase_nanos = new long[Phase.values().length];
+	private final long[] phase_counts = new long[Phase.values().length];
+
+	private Phase phase = Phase.OTHER;
+	private long phase_started_at;
+
+	private RequestTrace() {
+		this.started_at = System.nanoTime();
+		this.phase_started_at = this.started_at;
+	}
+
+	/**
+	 * Starts tracing the current thread's request.
+	 */
+	public static RequestTrace begin() {
+		RequestTrace trace = new RequestTrace();
+		current.set(trace);
+		return trace;
+	}
+
+	/**
+	 * Stops tracing; must be called on the thread that began it.
+	 */
+	public void end() {
+		switchTo(Phase.OTHER);
+		this.ended_at = this.phase_started_at;
+		if (current.get() == this)
+			current.remove();
+	}
+
+	/**
+	 * @return the phase to resume on exit(), or null if not tracing
+	 */
+	public static Phase enter(Phase phase) {
+		RequestTrace trace = current.get();
+		return trace != null ? trace.switchTo(phase) : null;
+	}
+
+	/**
+	 * @param resumed as returned by the matching enter()
+	 */
+	public static void exit(Phase resumed) {
+		if (resumed == null)
+			return;
+		RequestTrace trace = current.get();
+		if (trace != null)
+			trace.switchTo(resumed);
+	}
+
+	/**
+	 * Adds to what the phase has processed, in whatever it counts.
+	 */
+	public static void count(Phase phase, long count) {
+		RequestTrace trace = current.get();
+		if (trace != null)
+			trace.phase_counts[phase.ordinal()] += count;
+	}
+
+	private Phase switchTo(Phase phase) {
+		long now = System.nanoTime();
+		this.phase_nanos[this.phase.ordinal()] += now - this.phase_started_at;
+		Phase previous = this.phase;
+		this.phase = phase;
+		this.phase_started_at = now;
+		return previous;
+	}
+
+	public long getTotalNanos() {
+		return this.ended_at - this.started_at;
+	}
+
+	public long getPhaseNanos(Phase phase) {
+		return this.phase_nanos[phase.ordinal()];
+	}
+
+	public long getCount(Phase phase) {
+		return this.phase_counts[phase.ordinal()];
+	}
+
+	/**
+	 * Appends the phases that took any time or counted anything, as
+	 * space-separated fields such as "list_ms=12.5 list_entries=3000".
+	 */
+	public StringBuilder appendPhases(StringBuilder record) {
+		for (Phase phase : Phase.values()) {
+			long nanos = getPhaseNanos(phase);
+			long count = getCount(phase);
+			if (nanos == 0 && count == 0)
+				continue;
+
+			String name = phase.name().toLowerCase(Locale.ROOT);
+			record.append(' ').append(name).append("_ms=").append(formatMillis(nanos));
+			if (phase.count_name != null)
+				record.append(' ').append(name).append('_').append(phase.count_name).append('=').append(count);
+		}
+		return record;
+	}
+
+	public static String formatMillis(long nanos) {
+		return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+	}
+
+	@Override
+	public String toString() {
+		return appendPhases(new StringBuilder("total_ms=").append(formatMillis(getTotalNanos()))).toString();
+	}
+}
@@ -0,0 +1,61 @@
+package com.teslamotors.artifacts.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to at once without contending on
+ * one memory location: each thread adds to one of several cells, each on
+ * its own cache line, and reading sums them. Reads are rare (a scrape
+ * every few seconds) and writes are on request paths, so that is the
+ * right way round.
+ *
+ * May go down as well as up, so it also serves for gauges such as the
+ * number of requests in progress.
+ */
+public final class StripedCounter {
+
+	/**
+	 * Longs per 64-byte cache line, so that neighbouring cells don't share one.
+	 */
+	static final int PADDING = 8;
+
+	static final int STRIPES = stripeCount();
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	private static int stripeCount() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int stripes = 1;
+		while (stripes < 2 * processors && stripes < 64)
+			stripes <<= 1;
+		return stripes;
+	}
+
+	/**
+	 * The calling thread's stripe; threads keep theirs for as long as they live.
+	 */
+	static int getStripe() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return (hash >>> 16) & (STRIPES - 1);
+	}
+
+	public void add(long amount) {
+		this.cells.getAndAdd(getStripe() * PADDING, amount);
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void decrement() {
+		add(-1);
+	}
+
+	public long sum() {
+		long sum = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++)
+			sum += this.cells.get(stripe * PADDING);
+		return sum;
+	}
+}
@@ -0,0 +1,173 @@
+package com.teslamotors.artifacts.servlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import com.teslamotors.artifacts.metrics.StripedCounter;
+
+/**
+ * Sends part of a file without holding a request thread: each chunk is
+ * read with an AsynchronousFileChannel, whose completions run on a small
+ * shared pool, and written only when the non-blocking servlet output
+ * stream reports it can take more (Servlet 3.1).
+ *
+ * Reads and writes alternate, so a slow client holds one buffer and no thread.
+ */
+class AsyncFileDownload implements WriteListener, CompletionHandler<Integer, Void>, AsyncListener {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final AsyncContext async_context;
+	private final ServletOutputStream output;
+	private final AsynchronousFileChannel channel;
+	private final StripedCounter bytes_counter;
+	private final Runnable on_finish;
+
+	/**
+	 * Holds the chunk read but not yet written, between position and limit.
+	 */
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private long position;
+	private final long end;
+
+	private boolean is_reading = false;
+	private boolean is_finished = false;
+
+	AsyncFileDownload(AsyncContext async_context, ServletOutputStream output,
+			AsynchronousFileChannel channel, long start, long length,
+			StripedCounter bytes_counter, Runnable on_finish) {
+
+		this.async_context = async_context;
+		this.output = output;
+		this.channel = channel;
+		this.position = start;
+		this.end = start + length;
+		this.bytes_counter = bytes_counter;
+		this.on_finish = on_finish;
+		this.buffer.limit(0);
+	}
+
+	/**
+	 * Called by the container whenever the output can take more,
+	 * starting right after the listener is registered.
+	 */
+	@Override
+	public synchronized void onWritePossible() throws IOException {
+		pump();
+	}
+
+	/**
+	 * Writes what is buffered for as long as the output is ready, then
+	 * starts the next read. Returns whenever it must wait for either.
+	 */
+	private void pump() throws IOException {
+
+		while (!this.is_finished && !this.is_reading) {
+
+			if (this.buffer.hasRemaining()) {
+				if (!this.output.isReady())
+					return;
+
+				int length = this.buffer.remaining();
+				this.output.write(this.buffer.array(), this.buffer.position(), length);
+				this.buffer.position(this.buffer.limit());
+				this.bytes_counter.add(length);
+
+			} else if (this.position >= this.end) {
+				finish();
+
+			} else {
+				this.buffer.clear();
+				if (this.end - this.position < this.buffer.capacity())
+					this.buffer.limit((int) (this.end - this.position));
+
+				this.is_reading = true;
+				this.channel.read(this.buffer, this.position, null, this);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void completed(Integer bytes_read, Void attachment) {
+
+		this.is_reading = false;
+		if (bytes_read < 0) {
+			// The file was truncated underneath us
+			finish();
+			return;
+		}
+
+		this.position += bytes_read;
+		this.buffer.flip();
+		try {
+			pump();
+		} catch (IOException e) {
+			finish();
+		}
+	}
+
+	@Override
+	public synchronized void failed(Throwable t, Void attachment) {
+		this.is_reading = false;
+		finish();
+	}
+
+	@Override
+	public synchronized void onError(Throwable t) {
+		finish();
+	}
+
+	private void finish() {
+
+		if (this.is_finished)
+			return;
+		this.is_finished = true;
+
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			// Nothing more to do with it either way
+		}
+
+		try {
+			this.async_context.complete();
+		} catch (IllegalStateException e) {
+			// Already completed by the container, after an error or timeout
+		}
+
+		this.on_finish.run();
+	}
+
+	@Override
+	public void onComplete(AsyncEvent event) {
+		synchronized (this) {
+			finish();
+		}
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+		synchronized (this) {
+			finish();
+		}
+	}
+
+	@Override
+	public void onError(AsyncEvent event) {
+		synchronized (this) {
+			finish();
+		}
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {
+	}
+}
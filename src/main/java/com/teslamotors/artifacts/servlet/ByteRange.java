@@ -0,0 +1,91 @@
+package com.teslamotors.artifacts.servlet;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * One byte range of an HTTP Range request (RFC 7233), resolved
+ * against the length of the representation.
+ *
+ * Based on the Range class in FileServlet by BalusC:
+ * http://balusc.blogspot.com/2009/02/fileservlet-supporting-resume-and.html
+ */
+class ByteRange {
+
+	/**
+	 * Requests for more ranges than this are served in full,
+	 * rather than as a multipart response of many tiny parts.
+	 */
+	static final int MAXIMUM_RANGE_COUNT = 32;
+
+	final long start;
+	final long end;
+	final long length;
+	final long total;
+
+	ByteRange(long start, long end, long total) {
+		this.start = start;
+		this.end = end;
+		this.length = end - start + 1;
+		this.total = total;
+	}
+
+	String toContentRange() {
+		return "bytes " + this.start + "-" + this.end + "/" + this.total;
+	}
+
+	/**
+	 * @return the satisfiable ranges, an empty list if the header
+	 *  should be ignored (so the whole content is sent), or null if
+	 *  no range is satisfiable (so the response is a 416).
+	 */
+	static List<ByteRange> parse(String range_header, long total) {
+
+		if (range_header == null || !range_header.startsWith("bytes="))
+			return Collections.emptyList();
+
+		String[] specs = range_header.substring("bytes=".length()).split(",");
+		if (specs.length > MAXIMUM_RANGE_COUNT)
+			return Collections.emptyList();
+
+		List<ByteRange> ranges = Lists.newArrayList();
+		for (String spec : specs) {
+
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0)
+				return Collections.emptyList();
+
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+
+			long start, end;
+			try {
+				if (first.isEmpty()) {
+					// A suffix range: the final N bytes
+					long suffix_length = Long.parseLong(last);
+					if (suffix_length <= 0)
+						continue;
+					start = Math.max(0, total - suffix_length);
+					end = total - 1;
+
+				} else {
+					start = Long.parseLong(first);
+					end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+					if (start < 0 || end < start)
+						return Collections.emptyList();
+					end = Math.min(end, total - 1);
+				}
+			} catch (NumberFormatException e) {
+				return Collections.emptyList();
+			}
+
+			if (start < total)
+				ranges.add(new ByteRange(start, end, total));
+		}
+
+		return ranges.isEmpty() ? null : ranges;
+	}
+}
@@ -0,0 +1,233 @@
+package com.teslamotors.artifacts.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Keeps gzip-compressed copies of frequently served files in a directory,
+ * so that each unchanged file is compressed only once.
+ *
+ * A copy is named after a hash of the source's canonical path, mtime and
+ * length, so a changed source simply misses. The total size is bounded,
+ * and the least recently served copies are deleted first. The directory
+ * is re-indexed at startup, so copies survive a restart.
+ */
+class CompressedFileCache {
+
+	private static final String SUFFIX = ".gz";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	private final File directory;
+	private final long maximum_bytes;
+
+	/**
+	 * File names of the cached copies, least recently used first, with their lengths.
+	 */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long total_bytes = 0;
+
+	/**
+	 * Copies being written, so that concurrent requests don't all compress the same file.
+	 */
+	private final Set<String> in_progress = Sets.newHashSet();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	CompressedFileCache(File directory, long maximum_bytes) throws IOException {
+
+		this.directory = directory;
+		this.maximum_bytes = maximum_bytes;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+
+		File[] existing = directory.listFiles();
+		if (existing != null) {
+			Arrays.sort(existing, new Comparator<File>() {
+				@Override
+				public int compare(File f0, File f1) {
+					return Long.valueOf(f0.lastModified()).compareTo(f1.lastModified());
+				}
+			});
+
+			for (File file : existing) {
+				if (file.getName().endsWith(SUFFIX)) {
+					this.entries.put(file.getName(), file.length());
+					this.total_bytes += file.length();
+				} else if (file.getName().endsWith(TEMPORARY_SUFFIX)) {
+					file.delete();
+				}
+			}
+			synchronized (this) {
+				evict();
+			}
+		}
+	}
+
+	/**
+	 * Files larger than this would crowd out too much of the cache,
+	 * and are compressed on the fly instead.
+	 */
+	long getMaximumSourceBytes() {
+		return this.maximum_bytes / 8;
+	}
+
+	private static String getCacheName(File source, long last_modified, long length) throws IOException {
+		String key = source.getCanonicalPath() + '\0' + last_modified + '\0' + length;
+		return Hashing.sha1().hashString(key, Charsets.UTF_8) + SUFFIX;
+	}
+
+	/**
+	 * Opens the copy while eviction is held off, since once open it stays
+	 * readable even if evicted.
+	 *
+	 * @return the compressed copy of the file as it is now, or null if there is none
+	 */
+	FileInputStream open(File source) throws IOException {
+
+		String name = getCacheName(source, source.lastModified(), source.length());
+		synchronized (this) {
+			if (this.entries.get(name) != null) {
+				try {
+					FileInputStream cached = new FileInputStream(new File(this.directory, name));
+					this.hits.incrementAndGet();
+					return cached;
+				} catch (FileNotFoundException e) {
+					this.total_bytes -= this.entries.remove(name);
+				}
+			}
+		}
+
+		this.misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Compresses the file into the cache.
+	 *
+	 * @return the compressed copy, or null if it is too large for the
+	 *  cache or another request is already compressing it
+	 */
+	File put(File source) throws IOException {
+
+		long last_modified = source.lastModified();
+		long length = source.length();
+		if (length > getMaximumSourceBytes())
+			return null;
+
+		String name = getCacheName(source, last_modified, length);
+		synchronized (this) {
+			if (!this.in_progress.add(name))
+				return null;
+		}
+
+		File temporary = null;
+		try {
+			temporary = File.createTempFile("compressing-", TEMPORARY_SUFFIX, this.directory);
+
+			InputStream input = new FileInputStream(source);
+			try {
+				OutputStream output = new GZIPOutputStream(new FileOutputStream(temporary), 65536) {
+					{
+						// Paid once, and served many times
+						this.def.setLevel(Deflater.BEST_COMPRESSION);
+					}
+				};
+				try {
+					ByteStreams.copy(input, output);
+				} finally {
+					output.close();
+				}
+			} finally {
+				input.close();
+			}
+
+			// The source changed while we read it
+			if (source.lastModified() != last_modified || source.length() != length)
+				return null;
+
+			File cached = new File(this.directory, name);
+			Files.move(temporary.toPath(), cached.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			temporary = null;
+
+			synchronized (this) {
+				Long previous = this.entries.put(name, cached.length());
+				if (previous != null)
+					this.total_bytes -= previous;
+				this.total_bytes += cached.length();
+				evict();
+			}
+			return cached.isFile() ? cached : null;
+
+		} finally {
+			if (temporary != null)
+				temporary.delete();
+			synchronized (this) {
+				this.in_progress.remove(name);
+			}
+		}
+	}
+
+	/**
+	 * Copies already being served stay readable on POSIX filesystems after deletion.
+	 */
+	private void evict() {
+
+		Iterator<Map.Entry<String, Long>> iterator = this.entries.entrySet().iterator();
+		while (this.total_bytes > this.maximum_bytes && iterator.hasNext()) {
+			Map.Entry<String, Long> eldest = iterator.next();
+			iterator.remove();
+			this.total_bytes -= eldest.getValue();
+			new File(this.directory, eldest.getKey()).delete();
+			this.evictions.incrementAndGet();
+		}
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	public long getEvictionCount() {
+		return this.evictions.get();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return Objects.toStringHelper(this)
+				.add("files", this.entries.size())
+				.add("bytes", this.total_bytes)
+				.add("hits", this.hits.get())
+				.add("misses", this.misses.get())
+				.add("evictions", this.evictions.get())
+				.toString();
+	}
+}
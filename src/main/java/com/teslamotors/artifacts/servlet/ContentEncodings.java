@@ -0,0 +1,62 @@
+package com.teslamotors.artifacts.servlet;
+
+import java.util.Enumeration;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Content-coding negotiation helpers.
+ */
+class ContentEncodings {
+
+	static final String GZIP = "gzip";
+
+	/**
+	 * Whether the request's Accept-Encoding admits the given coding,
+	 * either by name or through "*", with a non-zero quality.
+	 */
+	static boolean isAccepted(HttpServletRequest request, String coding) {
+
+		float named_quality = -1;
+		float wildcard_quality = -1;
+
+		Enumeration<String> headers = request.getHeaders("Accept-Encoding");
+		while (headers != null && headers.hasMoreElements()) {
+			for (String element : headers.nextElement().split(",")) {
+
+				String[] parameters = element.split(";");
+				String name = parameters[0].trim();
+
+				float quality = 1;
+				for (int i = 1; i < parameters.length; i++) {
+					String parameter = parameters[i].trim();
+					if (parameter.startsWith("q=")) {
+						try {
+							quality = Float.parseFloat(parameter.substring(2));
+						} catch (NumberFormatException e) {
+							quality = 0;
+						}
+					}
+				}
+
+				if (name.equalsIgnoreCase(coding) || (coding.equals(GZIP) && name.equalsIgnoreCase("x-gzip")))
+					named_quality = Math.max(named_quality, quality);
+				else if (name.equals("*"))
+					wildcard_quality = Math.max(wildcard_quality, quality);
+			}
+		}
+
+		if (named_quality >= 0)
+			return named_quality > 0;
+		return wildcard_quality > 0;
+	}
+
+	/**
+	 * Strong entity tags must differ between encodings of the same content.
+	 */
+	static String tagWithCoding(String etag, String coding) {
+		if (etag.endsWith("\""))
+			return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+		return etag;
+	}
+}
@@ -1,42 +1,92 @@
 package com.teslamotors.artifacts.servlet;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.StringReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLConnection;
 import java.net.URLDecoder;
+import java.nio.file.Path;
 import java.util.Collection;
-
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
-import org.apache.catalina.util.RequestUtil;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.teslamotors.artifacts.files.DirectoryReader;
+import com.teslamotors.artifacts.files.DirectorySizes;
+import com.teslamotors.artifacts.files.DirectorySnapshotCache;
 import com.teslamotors.artifacts.files.FileNavigableObject;
+import com.teslamotors.artifacts.files.FileSnapshot;
+import com.teslamotors.artifacts.files.InflatedArchiveCache;
+import com.teslamotors.artifacts.files.ListingPage;
+import com.teslamotors.artifacts.files.NameIndex;
+import com.teslamotors.artifacts.files.NameIndexer;
 import com.teslamotors.artifacts.files.NavigableObject;
+import com.teslamotors.artifacts.files.PageRequest;
 import com.teslamotors.artifacts.files.SortUtils;
 import com.teslamotors.artifacts.files.SortUtils.SortCriteria;
+import com.teslamotors.artifacts.files.TreeSearch;
+import com.teslamotors.artifacts.files.ZipArchiveEntry;
+import com.teslamotors.artifacts.files.ZipFolderWriter;
+import com.teslamotors.artifacts.files.ZipIndexCache;
 import com.teslamotors.artifacts.files.ZipMemberNavigableObject;
 import com.teslamotors.artifacts.files.ZipParentNavigableObject;
+import com.teslamotors.artifacts.metrics.MetricsMBean;
+import com.teslamotors.artifacts.metrics.MetricsRegistry;
+import com.teslamotors.artifacts.metrics.RequestTrace;
 
 /**
  * Based on DefaultServlet:
@@ -70,8 +120,159 @@ public class FileServlet extends HttpServlet {
 
 	private static final int DEFAULT_BUFFER_SIZE = 10240; // 10KB.
 
+	private static final String MULTIPART_BOUNDARY = "MULTIPART_BYTERANGES";
+
+	/**
+	 * Smaller responses gain too little from compression to be worth it.
+	 */
+	private static final int COMPRESSION_MINIMUM_SIZE = 1024;
+
+	private static final long DEFAULT_COMPRESSED_CACHE_BYTES = 256L * 1024 * 1024;
+
+	private static final int COMPRESSION_QUEUE_LENGTH = 64;
+
+	private static final int DEFAULT_ASYNC_IO_THREADS = 4;
+
+	private static final int DEFAULT_LISTING_PAGE_SIZE = 1000;
+
+	private static final long DEFAULT_NESTED_ARCHIVE_SPILL_BYTES = 1024L * 1024 * 1024;
+
+	private static final int DEFAULT_TRACE_SAMPLE_INTERVAL = 10;
+
+	private static final long DEFAULT_SLOW_REQUEST_MILLIS = 5000;
+
+	/**
+	 * How long a search response waits for more matches before sending
+	 * on those it has.
+	 */
+	private static final long SEARCH_POLL_MILLIS = 100;
+
+	/**
+	 * Chunks a zip download may have in flight, per compression thread;
+	 * enough to keep them all busy while the output waits on one.
+	 */
+	private static final int ZIP_DOWNLOAD_WINDOW_CHUNKS_PER_THREAD = 2;
+
+	private static final long CONTEXT_XSLT_CHECK_MILLIS = 5000;
+
+	private static final Set<String> COMPRESSIBLE_MEDIA_TYPES = ImmutableSet.of(
+			"application/json", "application/xml", "application/javascript",
+			"application/x-javascript", "image/svg+xml");
+
+	/**
+	 * Build logs and reports often have no registered MIME type.
+	 */
+	private static final Set<String> COMPRESSIBLE_EXTENSIONS = ImmutableSet.of(
+			"txt", "log", "out", "err", "csv", "tsv", "json", "xml", "html", "htm",
+			"css", "js", "svg", "md", "yaml", "yml", "ini", "cfg", "properties");
+
 	private String file_basepath;
 
+	/**
+	 * The base path's absolute form, for relativizing paths without touching the disk.
+	 */
+	private String absolute_basepath;
+
+	/**
+	 * Parsed zip central directories, shared across requests.
+	 */
+	private ZipIndexCache zip_index_cache;
+
+	/**
+	 * Entries per listing page when the request doesn't say, or PageRequest.UNLIMITED.
+	 */
+	private int listing_page_size = DEFAULT_LISTING_PAGE_SIZE;
+
+	/**
+	 * Compiled listing stylesheets, recompiled when their source changes.
+	 */
+	private final XsltTemplatesCache xslt_templates_cache = new XsltTemplatesCache();
+
+	/**
+	 * The time of a context stylesheet packed in a war, which can only be had
+	 * by opening it, so it is looked up at most every CONTEXT_XSLT_CHECK_MILLIS.
+	 */
+	private volatile long context_xslt_last_modified;
+	private volatile long context_xslt_checked_at;
+
+	/**
+	 * Sends plain files, through the container's sendfile support where available.
+	 */
+	private FileTransfer file_transfer;
+
+	/**
+	 * Listings of popular directories, or null if disabled.
+	 */
+	private DirectorySnapshotCache directory_cache;
+
+	/**
+	 * Stats large directories being listed, and forks the sorts of large
+	 * listings, shared by all listings; null to do both on the request threads.
+	 */
+	private ForkJoinPool stat_pool;
+
+	/**
+	 * Lists directories on disk with the stat pool and directory cache.
+	 */
+	private DirectoryReader directory_reader;
+
+	private ServletMetrics metrics;
+
+	/**
+	 * Where the metrics are registered over JMX, or null if they couldn't be.
+	 */
+	private ObjectName metrics_mbean_name;
+
+	/**
+	 * One request in this many is traced phase by phase; 0 traces none.
+	 */
+	private int trace_sample_interval = DEFAULT_TRACE_SAMPLE_INTERVAL;
+
+	/**
+	 * Requests taking longer are logged, with their phases if traced; 0 logs none.
+	 */
+	private long slow_request_nanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_REQUEST_MILLIS);
+
+	/**
+	 * Walks the trees of "find" requests, shared by all of them.
+	 */
+	private ForkJoinPool search_pool;
+
+	/**
+	 * Bounds on every search, which a request may only lower.
+	 */
+	private int search_maximum_depth = TreeSearch.DEFAULT_MAXIMUM_DEPTH;
+	private int search_maximum_results = TreeSearch.DEFAULT_MAXIMUM_RESULTS;
+	private long search_time_limit_millis = TreeSearch.DEFAULT_TIME_LIMIT_MILLIS;
+
+	/**
+	 * Keeps the index of names that "locate" queries use, or null if disabled.
+	 */
+	private NameIndexer name_indexer;
+
+	/**
+	 * Recursive sizes of the directories in listings, or null if disabled.
+	 */
+	private DirectorySizes directory_sizes;
+
+	/**
+	 * Compresses the chunks of directories downloaded as zips, for all downloads.
+	 */
+	private ExecutorService zip_download_pool;
+	private ZipDownload zip_download;
+
+	/**
+	 * Gzipped copies of frequently served text files, or null if disabled.
+	 */
+	private CompressedFileCache compressed_file_cache;
+
+	/**
+	 * Fills the compressed file cache off the request threads; when
+	 * it falls behind, further requests are simply not cached. Null
+	 * along with the cache.
+	 */
+	private ExecutorService compression_executor;
+
 	public void init() throws ServletException {
 
 		// Set our properties from the initialization parameters
@@ -86,9 +287,314 @@ public class FileServlet extends HttpServlet {
 		}
 
 		this.file_basepath = getServletConfig().getInitParameter("base-path");
+		this.absolute_basepath = new File(this.file_basepath).getAbsolutePath();
 		this.globalXsltFile = getServletConfig().getInitParameter("globalXsltFile");
 		this.contextXsltFile = getServletConfig().getInitParameter("contextXsltFile"); 
 		this.localXsltFile = getServletConfig().getInitParameter("localXsltFile");
+
+		long zip_index_cache_bytes = ZipIndexCache.DEFAULT_MAXIMUM_BYTES;
+		value = getServletConfig().getInitParameter("zip-index-cache-bytes");
+		if (value != null) {
+			try {
+				zip_index_cache_bytes = Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read zip-index-cache-bytes from " + value);
+			}
+		}
+		long nested_archive_memory_bytes = ZipIndexCache.DEFAULT_MAXIMUM_IN_MEMORY_ARCHIVE_BYTES;
+		value = getServletConfig().getInitParameter("nested-archive-memory-bytes");
+		if (value != null) {
+			try {
+				nested_archive_memory_bytes = Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read nested-archive-memory-bytes from " + value);
+			}
+		}
+
+		long nested_archive_spill_bytes = DEFAULT_NESTED_ARCHIVE_SPILL_BYTES;
+		value = getServletConfig().getInitParameter("nested-archive-spill-bytes");
+		if (value != null) {
+			try {
+				nested_archive_spill_bytes = Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read nested-archive-spill-bytes from " + value);
+			}
+		}
+
+		InflatedArchiveCache inflated_archive_cache = null;
+		if (nested_archive_spill_bytes > 0) {
+			try {
+				inflated_archive_cache = new InflatedArchiveCache(
+						new File(getTemporaryDirectory(), "nested-archives"), nested_archive_spill_bytes);
+			} catch (IOException e) {
+				log("FileServlet.init: spilling of nested archives disabled: " + e.getMessage());
+			}
+		}
+		this.zip_index_cache = new ZipIndexCache(zip_index_cache_bytes,
+				nested_archive_memory_bytes, inflated_archive_cache);
+
+		value = getServletConfig().getInitParameter("listing-page-size");
+		if (value != null) {
+			try {
+				int listing_page_size = Integer.parseInt(value);
+				this.listing_page_size = listing_page_size > 0 ? listing_page_size : PageRequest.UNLIMITED;
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read listing-page-size from " + value);
+			}
+		}
+
+		int stat_threads = FileSnapshot.DEFAULT_STAT_PARALLELISM;
+		value = getServletConfig().getInitParameter("stat-threads");
+		if (value != null) {
+			try {
+				stat_threads = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read stat-threads from " + value);
+			}
+		}
+		if (stat_threads > 0)
+			this.stat_pool = new ForkJoinPool(stat_threads);
+
+		int directory_cache_entries = DirectorySnapshotCache.DEFAULT_MAXIMUM_ENTRIES;
+		value = getServletConfig().getInitParameter("directory-cache-entries");
+		if (value != null) {
+			try {
+				directory_cache_entries = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read directory-cache-entries from " + value);
+			}
+		}
+
+		long directory_cache_bytes = DirectorySnapshotCache.DEFAULT_MAXIMUM_BYTES;
+		value = getServletConfig().getInitParameter("directory-cache-bytes");
+		if (value != null) {
+			try {
+				directory_cache_bytes = Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read directory-cache-bytes from " + value);
+			}
+		}
+
+		long directory_cache_ttl_millis = DirectorySnapshotCache.DEFAULT_TIME_TO_LIVE_MILLIS;
+		value = getServletConfig().getInitParameter("directory-cache-ttl-millis");
+		if (value != null) {
+			try {
+				directory_cache_ttl_millis = Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read directory-cache-ttl-millis from " + value);
+			}
+		}
+
+		if (directory_cache_entries > 0 && directory_cache_bytes > 0) {
+			this.directory_cache = new DirectorySnapshotCache(directory_cache_entries,
+					directory_cache_bytes, directory_cache_ttl_millis);
+		}
+
+		this.directory_reader = new DirectoryReader(this.stat_pool, this.directory_cache);
+
+		value = getServletConfig().getInitParameter("use-sendfile");
+		boolean use_sendfile = value == null || Boolean.parseBoolean(value);
+
+		int async_io_threads = DEFAULT_ASYNC_IO_THREADS;
+		value = getServletConfig().getInitParameter("async-io-threads");
+		if (value != null) {
+			try {
+				async_io_threads = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read async-io-threads from " + value);
+			}
+		}
+		this.file_transfer = new FileTransfer(use_sendfile, async_io_threads);
+
+		long compressed_cache_bytes = DEFAULT_COMPRESSED_CACHE_BYTES;
+		value = getServletConfig().getInitParameter("compressed-cache-bytes");
+		if (value != null) {
+			try {
+				compressed_cache_bytes = Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read compressed-cache-bytes from " + value);
+			}
+		}
+
+		if (compressed_cache_bytes > 0) {
+			value = getServletConfig().getInitParameter("compressed-cache-dir");
+			File compressed_cache_dir = value != null ? new File(value) : new File(getTemporaryDirectory(), "compressed");
+			try {
+				this.compressed_file_cache = new CompressedFileCache(compressed_cache_dir, compressed_cache_bytes);
+			} catch (IOException e) {
+				log("FileServlet.init: compressed file cache disabled: " + e.getMessage());
+			}
+		}
+
+		if (this.compressed_file_cache != null)
+			this.compression_executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(COMPRESSION_QUEUE_LENGTH),
+					new ThreadFactoryBuilder().setDaemon(true).setNameFormat("file-servlet-compression-%d").build(),
+					new ThreadPoolExecutor.DiscardPolicy());
+
+		value = getServletConfig().getInitParameter("trace-sample-interval");
+		if (value != null) {
+			try {
+				this.trace_sample_interval = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read trace-sample-interval from " + value);
+			}
+		}
+
+		value = getServletConfig().getInitParameter("slow-request-millis");
+		if (value != null) {
+			try {
+				this.slow_request_nanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value));
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read slow-request-millis from " + value);
+			}
+		}
+
+		int search_threads = Runtime.getRuntime().availableProcessors();
+		value = getServletConfig().getInitParameter("search-threads");
+		if (value != null) {
+			try {
+				search_threads = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read search-threads from " + value);
+			}
+		}
+		this.search_pool = new ForkJoinPool(Math.max(1, search_threads));
+
+		value = getServletConfig().getInitParameter("search-max-depth");
+		if (value != null) {
+			try {
+				this.search_maximum_depth = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read search-max-depth from " + value);
+			}
+		}
+
+		value = getServletConfig().getInitParameter("search-max-results");
+		if (value != null) {
+			try {
+				this.search_maximum_results = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read search-max-results from " + value);
+			}
+		}
+
+		value = getServletConfig().getInitParameter("search-time-limit-millis");
+		if (value != null) {
+			try {
+				this.search_time_limit_millis = Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read search-time-limit-millis from " + value);
+			}
+		}
+
+		int zip_download_threads = Runtime.getRuntime().availableProcessors();
+		value = getServletConfig().getInitParameter("zip-download-threads");
+		if (value != null) {
+			try {
+				zip_download_threads = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read zip-download-threads from " + value);
+			}
+		}
+		zip_download_threads = Math.max(1, zip_download_threads);
+		this.zip_download_pool = Executors.newFixedThreadPool(zip_download_threads,
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("file-servlet-zip-%d").build());
+		this.zip_download = new ZipDownload(this.zip_download_pool,
+				ZIP_DOWNLOAD_WINDOW_CHUNKS_PER_THREAD * zip_download_threads, Deflater.DEFAULT_COMPRESSION);
+
+		long directory_size_refresh_millis = DirectorySizes.DEFAULT_REFRESH_MILLIS;
+		value = getServletConfig().getInitParameter("directory-size-refresh-millis");
+		if (value != null) {
+			try {
+				directory_size_refresh_millis = Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read directory-size-refresh-millis from " + value);
+			}
+		}
+		int directory_size_threads = Runtime.getRuntime().availableProcessors();
+		value = getServletConfig().getInitParameter("directory-size-threads");
+		if (value != null) {
+			try {
+				directory_size_threads = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read directory-size-threads from " + value);
+			}
+		}
+		if (directory_size_refresh_millis > 0)
+			this.directory_sizes = new DirectorySizes(new File(this.file_basepath),
+					directory_size_refresh_millis, directory_size_threads);
+
+		long name_index_interval_seconds = NameIndexer.DEFAULT_INTERVAL_SECONDS;
+		value = getServletConfig().getInitParameter("name-index-interval-seconds");
+		if (value != null) {
+			try {
+				name_index_interval_seconds = Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				log("FileServlet.init: couldn't read name-index-interval-seconds from " + value);
+			}
+		}
+
+		if (name_index_interval_seconds > 0) {
+			value = getServletConfig().getInitParameter("name-index-dir");
+			File name_index_dir = value != null ? new File(value) : new File(getTemporaryDirectory(), "names");
+			try {
+				this.name_indexer = new NameIndexer(new File(this.file_basepath), name_index_dir,
+						name_index_interval_seconds, new NameIndexer.FailureListener() {
+							@Override
+							public void passFailed(Exception e) {
+								log("FileServlet: name index pass failed", e);
+							}
+						});
+			} catch (IOException e) {
+				log("FileServlet.init: name index disabled: " + e.getMessage());
+			}
+		}
+
+		this.metrics = new ServletMetrics(this.file_transfer, this.zip_index_cache,
+				this.directory_cache, this.compressed_file_cache, this.name_indexer);
+		getServletContext().setAttribute(MetricsRegistry.CONTEXT_ATTRIBUTE, this.metrics.getRegistry());
+		try {
+			this.metrics_mbean_name = new ObjectName("com.teslamotors.artifacts:type=FileServlet,name="
+					+ ObjectName.quote(getServletName()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new MetricsMBean(this.metrics.getRegistry()), this.metrics_mbean_name);
+		} catch (JMException e) {
+			log("FileServlet.init: metrics not registered over JMX: " + e.getMessage());
+			this.metrics_mbean_name = null;
+		}
+	}
+
+	private File getTemporaryDirectory() {
+		File temp_dir = (File) getServletContext().getAttribute(ServletContext.TEMPDIR);
+		if (temp_dir == null)
+			temp_dir = new File(System.getProperty("java.io.tmpdir"));
+		return temp_dir;
+	}
+
+	@Override
+	public void destroy() {
+		if (this.metrics_mbean_name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.metrics_mbean_name);
+			} catch (JMException e) {
+				log("FileServlet.destroy: couldn't unregister metrics: " + e.getMessage());
+			}
+		}
+		if (this.compression_executor != null)
+			this.compression_executor.shutdownNow();
+		if (this.zip_download_pool != null)
+			this.zip_download_pool.shutdownNow();
+		if (this.search_pool != null)
+			this.search_pool.shutdownNow();
+		if (this.stat_pool != null)
+			this.stat_pool.shutdownNow();
+		close(this.name_indexer);
+		close(this.directory_sizes);
+		if (this.file_transfer != null)
+			this.file_transfer.shutdown();
+		if (this.directory_cache != null)
+			close(this.directory_cache);
 	}
 
 	String getBaseRelativePath(File parent_path, File child_path) {
@@ -112,13 +618,15 @@ public class FileServlet extends HttpServlet {
 	NavigableObject getTargetNavigableFromPath(File filesystem_file) throws IOException {
 		File zip_file_prefix = getZipPathPrefix(filesystem_file);
 		if (zip_file_prefix != null) {
-			ZipParentNavigableObject zip_parent = ZipParentNavigableObject.createNew(zip_file_prefix);
-			if (zip_file_prefix.equals(filesystem_file))
-				return zip_parent;
-			else
-				return new ZipMemberNavigableObject(zip_parent, getBaseRelativePath(zip_file_prefix, filesystem_file));
+			ZipParentNavigableObject zip_parent = ZipParentNavigableObject.createNew(zip_file_prefix, this.zip_index_cache);
+			NavigableObject target = zip_parent;
+			if (!zip_file_prefix.equals(filesystem_file))
+				target = zip_parent.resolveMember(getBaseRelativePath(zip_file_prefix, filesystem_file), this.zip_index_cache);
+			if (debug > 0)
+				log("Zip index cache: " + this.zip_index_cache);
+			return target;
 		} else {
-			return new FileNavigableObject(filesystem_file);
+			return new FileNavigableObject(filesystem_file, this.directory_reader);
 		}
 	}
 	
@@ -146,25 +654,77 @@ public class FileServlet extends HttpServlet {
 		String contentType = getServletContext().getMimeType(filesystem_file.getName());
 
 		boolean is_downloading = request.getParameter("download") != null;
+		boolean is_searching = request.getParameter("find") != null || request.getParameter("locate") != null;
+
+		long start = System.nanoTime();
+		RequestTrace trace = isTraceSampled() ? RequestTrace.begin() : null;
+		NavigableObject navigable_object = null;
+		try {
+			RequestTrace.Phase resumed = RequestTrace.enter(RequestTrace.Phase.RESOLVE);
+			try {
+				navigable_object = getTargetNavigableFromPath(filesystem_file);
+			} finally {
+				RequestTrace.exit(resumed);
+			}
 
-		// Can force downloading instead of displaying.
-		if (contentType == null || is_downloading) {
-			contentType = "application/octet-stream";
-			response.setHeader("Content-Disposition", "attachment; filename=\"" + filesystem_file.getName() + "\"");
+			emitContent(
+					request,
+					response,
+					navigable_object,
+					contentType,
+					SortUtils.getSortersFromRequest(request),
+					is_downloading);
+
+		} finally {
+			if (trace != null)
+				trace.end();
+			ServletMetrics.RequestType request_type = ServletMetrics.getRequestType(navigable_object, is_downloading, is_searching);
+			this.metrics.recordRequest(request_type, start);
+			logIfSlow(request, response, request_type, start, trace);
 		}
+	}
+
+	private boolean isTraceSampled() {
+		return this.trace_sample_interval > 0
+				&& (this.trace_sample_interval == 1 || ThreadLocalRandom.current().nextInt(this.trace_sample_interval) == 0);
+	}
+
+	/**
+	 * Logs a request over the threshold as one line of key=value fields,
+	 * with the breakdown by phase if it happened to be traced.
+	 *
+	 * @param trace null if the request wasn't traced
+	 */
+	void logIfSlow(HttpServletRequest request, HttpServletResponse response,
+			ServletMetrics.RequestType request_type, long start_nanos, RequestTrace trace) {
 
-		final NavigableObject navigable_object = getTargetNavigableFromPath(filesystem_file);
+		long elapsed_nanos = System.nanoTime() - start_nanos;
+		if (this.slow_request_nanos <= 0 || elapsed_nanos < this.slow_request_nanos)
+			return;
 
-		emitContent(
-				request.getContextPath(),
-				response,
-				navigable_object,
-				contentType,
-				SortUtils.getSortersFromRequest(request),
-				is_downloading);
+		StringBuilder record = new StringBuilder("Slow request:");
+		record.append(" total_ms=").append(RequestTrace.formatMillis(elapsed_nanos));
+		record.append(" type=").append(request_type.name().toLowerCase());
+		record.append(" status=").append(response.getStatus());
+		record.append(" path=").append(quoteField(request.getPathInfo()));
+		if (request.getQueryString() != null)
+			record.append(" query=").append(quoteField(request.getQueryString()));
+		if (trace != null)
+			trace.appendPhases(record);
+		else
+			record.append(" traced=false");
+		log(record.toString());
+	}
+
+	private static String quoteField(String value) {
+		return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
 	}
 
 
+	/**
+	 * The outermost archive along the path; any archives nested
+	 * within it are resolved by ZipParentNavigableObject.resolveMember().
+	 */
 	File getZipPathPrefix(File file) {
 		
 		Collection<String> segments = Lists.newArrayList();
@@ -178,7 +738,7 @@ public class FileServlet extends HttpServlet {
 	}
 	
 	
-	void emitContent(String context_path,
+	void emitContent(HttpServletRequest request,
 			HttpServletResponse response,
 			NavigableObject nav, String content_type,
 			Collection<SortCriteria> sorters,
@@ -197,155 +757,996 @@ public class FileServlet extends HttpServlet {
 		
 		if (nav.isDirectory() && !is_downloading) {
 			
-			respondWithDirectoryListing(nav, response, context_path, sorters);
+			if (request.getParameter("find") != null)
+				respondWithSearch(nav, request, response);
+			else if (request.getParameter("locate") != null)
+				respondWithLocate(nav, request, response);
+			else
+				respondWithDirectoryListing(nav, request, response, sorters);
+
+		} else if (nav.isDirectory() && isArchivable(nav)) {
+
+			RequestTrace.Phase resumed = RequestTrace.enter(RequestTrace.Phase.TRANSFER);
+			try {
+				emitDirectoryAsZip(response, nav);
+			} finally {
+				RequestTrace.exit(resumed);
+			}
+
+		} else if (nav instanceof ZipMemberNavigableObject && ((ZipMemberNavigableObject) nav).isEncrypted()) {
+
+			response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "The member is encrypted"); // 501.
 
 		} else {
-			
-			response.setBufferSize(DEFAULT_BUFFER_SIZE);
-			response.setContentType(content_type);
-			long entrySize = nav.getSize();
-			response.setHeader("Content-Length", String.valueOf(entrySize));
-			// Prepare streams.
-			BufferedInputStream input = null;
-			BufferedOutputStream output = null;
 
+			// Ranges refer to the unencoded bytes, so they rule out compression
+			boolean is_compressible = isCompressible(nav, content_type);
+			boolean is_gzip = is_compressible
+					&& request.getHeader("Range") == null
+					&& ContentEncodings.isAccepted(request, ContentEncodings.GZIP);
+
+			// Checking these needs only the file's (or the zip entry's) metadata
+			String etag = nav.getEntityTag();
+			if (is_gzip)
+				etag = ContentEncodings.tagWithCoding(etag, ContentEncodings.GZIP);
+			long last_modified = nav.lastModified();
+			setValidators(response, etag, last_modified);
+			if (is_compressible)
+				response.setHeader("Vary", "Accept-Encoding");
+			if (isNotModified(request, etag, last_modified)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED); // 304.
+				return;
+			}
+
+			// Can force downloading instead of displaying.
+			// This comes after the reset() above, which would discard the header.
+			if (content_type == null || is_downloading) {
+				content_type = "application/octet-stream";
+				response.setHeader("Content-Disposition", "attachment; filename=\"" + nav.asFile().getName() + "\"");
+			}
+
+			// Asynchronous downloads are traced only up to their hand-off
+			RequestTrace.Phase resumed = RequestTrace.enter(RequestTrace.Phase.TRANSFER);
 			try {
-				// Open streams.
-				input = new BufferedInputStream(nav.getInputStream());
+				if (is_gzip)
+					emitGzipped(request, response, nav, content_type);
+				else
+					emitFileContent(request, response, nav, content_type);
+			} finally {
+				RequestTrace.exit(resumed);
+			}
+		}
+	}
+
+	/**
+	 * Whether a directory can be downloaded as a zip made on the fly, as
+	 * can a folder within an archive; an archive is downloaded as the file it is.
+	 */
+	static boolean isArchivable(NavigableObject nav) {
+		return isOnFilesystem(nav) && !(nav instanceof ZipParentNavigableObject)
+				|| nav instanceof ZipMemberNavigableObject;
+	}
+
+	/**
+	 * Streams a directory as a zip, as it is compressed, or a folder within
+	 * an archive with its members copied as they are; nothing is staged,
+	 * so there's no length, validator or range to offer.
+	 */
+	void emitDirectoryAsZip(HttpServletResponse response, NavigableObject nav) throws IOException {
+
+		ZipFolderWriter folder_writer = null;
+		if (nav instanceof ZipMemberNavigableObject) {
+			folder_writer = new ZipFolderWriter((ZipMemberNavigableObject) nav);
+			if (!folder_writer.isCopyable()) {
+				response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "The folder holds encrypted members"); // 501.
+				return;
+			}
+		}
+
+		// The base directory may be given as "/", or with a trailing "."
+		Path directory_path = nav.asFile().getAbsoluteFile().toPath().normalize();
+		String name = directory_path.getFileName() != null ? directory_path.getFileName().toString() : "files";
+		response.setBufferSize(DEFAULT_BUFFER_SIZE);
+		response.setContentType("application/zip");
+		response.setHeader("Content-Disposition", "attachment; filename=\"" + name + ".zip\"");
+		response.setHeader("Cache-Control", "no-cache");
+
+		CountingOutputStream output = null;
+		this.metrics.active_downloads.increment();
+		try {
+			output = new CountingOutputStream(new BufferedOutputStream(response.getOutputStream(), DEFAULT_BUFFER_SIZE));
+			long size = folder_writer != null
+					? folder_writer.write(name, output)
+					: this.zip_download.write(nav.asFile(), name, output);
+			RequestTrace.count(RequestTrace.Phase.TRANSFER, size);
+		} finally {
+			close(output);
+			if (output != null)
+				this.metrics.streamed_bytes.add(output.getCount());
+			this.metrics.active_downloads.decrement();
+		}
+	}
+
+	/**
+	 * Whether the content is a whole file on disk, which can be
+	 * handed to the container or read through a FileChannel.
+	 */
+	static boolean isOnFilesystem(NavigableObject nav) {
+		return nav instanceof FileNavigableObject && ((FileNavigableObject) nav).isOnFilesystem();
+	}
+
+	/**
+	 * Whether a gzip encoding of the content is worth offering: deflated zip
+	 * members are already compressed, text benefits from it, and anything
+	 * with a precompressed sibling can be had for free. Archives and other
+	 * compressed formats aren't compressed again, whatever their media type.
+	 */
+	boolean isCompressible(NavigableObject nav, String content_type) {
+
+		if (nav instanceof ZipMemberNavigableObject)
+			if (((ZipMemberNavigableObject) nav).isDeflated())
+				return true;
+
+		if (isOnFilesystem(nav))
+			if (findPrecompressedSibling(nav.asFile()) != null)
+				return true;
+
+		if (nav.getSize() < COMPRESSION_MINIMUM_SIZE || ZipDownload.isCompressed(nav.asFile().getName()))
+			return false;
+
+		if (content_type != null) {
+			String media_type = content_type.split(";")[0].trim().toLowerCase();
+			if (media_type.startsWith("text/") || COMPRESSIBLE_MEDIA_TYPES.contains(media_type))
+				return true;
+		}
+
+		return COMPRESSIBLE_EXTENSIONS.contains(
+				Files.getFileExtension(nav.asFile().getName()).toLowerCase());
+	}
+
+	/**
+	 * A "name.gz" next to the file, no older than it.
+	 */
+	File findPrecompressedSibling(File file) {
+
+		File sibling = new File(file.getPath() + ".gz");
+		if (sibling.isFile() && sibling.lastModified() >= file.lastModified())
+			return sibling;
+		return null;
+	}
+
+	/**
+	 * Sends the content gzip-encoded, from whatever is already compressed
+	 * if possible, and otherwise compressing as it is sent.
+	 */
+	void emitGzipped(HttpServletRequest request,
+			HttpServletResponse response,
+			NavigableObject nav, String content_type) throws IOException {
+
+		if (nav instanceof ZipMemberNavigableObject && ((ZipMemberNavigableObject) nav).isDeflated()) {
+			emitDeflatedAsGzip(response, (ZipMemberNavigableObject) nav, content_type);
+			return;
+		}
+
+		response.setBufferSize(DEFAULT_BUFFER_SIZE);
+		response.setContentType(content_type);
+		response.setHeader("Content-Encoding", ContentEncodings.GZIP);
+		RequestTrace.count(RequestTrace.Phase.TRANSFER, nav.getSize());
+
+		if (isOnFilesystem(nav)) {
+
+			final File file = nav.asFile();
+			File sibling = findPrecompressedSibling(file);
+			if (sibling != null) {
+				response.setHeader("Content-Length", String.valueOf(sibling.length()));
+				if (!this.file_transfer.trySendfile(request, sibling, 0, sibling.length()))
+					this.file_transfer.copy(sibling, 0, sibling.length(), response.getOutputStream());
+				return;
+			}
+
+			if (this.compressed_file_cache != null) {
+				FileInputStream cached = this.compressed_file_cache.open(file);
+				if (cached != null) {
+					// Copied from the open copy rather than sendfile'd, since eviction
+					// may delete it before the connector would get around to opening it.
+					try {
+						long length = cached.getChannel().size();
+						response.setHeader("Content-Length", String.valueOf(length));
+						this.file_transfer.copy(cached, length, response.getOutputStream());
+					} finally {
+						close(cached);
+					}
+					return;
+				}
+
+				// Compress a copy in the background for next time
+				if (file.length() <= this.compressed_file_cache.getMaximumSourceBytes()) {
+					this.compression_executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								compressed_file_cache.put(file);
+							} catch (IOException e) {
+								log("FileServlet: couldn't cache compressed " + file + ": " + e.getMessage());
+							}
+						}
+					});
+				}
+			}
+		}
+
+		// No Content-Length: compressed as it is sent
+		InputStream input = null;
+		OutputStream output = null;
+		CountingOutputStream counted_output = null;
+		this.metrics.active_downloads.increment();
+		try {
+			input = nav.getInputStream();
+			counted_output = new CountingOutputStream(response.getOutputStream());
+			output = new GZIPOutputStream(new BufferedOutputStream(counted_output, DEFAULT_BUFFER_SIZE), DEFAULT_BUFFER_SIZE);
+			ByteStreams.copy(input, output);
+			output.flush();
+
+		} finally {
+			// Gently close streams.
+			close(output);
+			close(input);
+			if (counted_output != null)
+				this.metrics.streamed_bytes.add(counted_output.getCount());
+			this.metrics.active_downloads.decrement();
+		}
+	}
+
+	/**
+	 * Streams the member's compressed bytes straight from the archive,
+	 * between a gzip header and trailer, without inflating anything.
+	 */
+	void emitDeflatedAsGzip(HttpServletResponse response,
+			ZipMemberNavigableObject nav, String content_type) throws IOException {
+
+		ZipArchiveEntry zip_entry = nav.getArchiveEntry();
+		RequestTrace.count(RequestTrace.Phase.TRANSFER, zip_entry.getSize());
+
+		response.setBufferSize(DEFAULT_BUFFER_SIZE);
+		response.setContentType(content_type);
+		response.setHeader("Content-Encoding", ContentEncodings.GZIP);
+		response.setHeader("Content-Length", String.valueOf(zip_entry.getCompressedSize() + GzipFraming.FRAMING_LENGTH));
+
+		InputStream input = null;
+		OutputStream output = null;
+		this.metrics.active_downloads.increment();
+		try {
+			input = nav.getCompressedInputStream();
+			output = new BufferedOutputStream(response.getOutputStream());
+
+			GzipFraming.writeHeader(output, zip_entry.getTime());
+			long length = ByteStreams.copy(input, output);
+			GzipFraming.writeTrailer(output, zip_entry.getCrc(), zip_entry.getSize());
+			output.flush();
+			this.metrics.streamed_bytes.add(length + GzipFraming.FRAMING_LENGTH);
+
+		} finally {
+			// Gently close streams.
+			close(output);
+			close(input);
+			this.metrics.active_downloads.decrement();
+		}
+	}
+
+	/**
+	 * Send the content in full, or the byte ranges the client asked for.
+	 */
+	void emitFileContent(HttpServletRequest request,
+			HttpServletResponse response,
+			NavigableObject nav, String content_type) throws IOException {
+
+		response.setBufferSize(DEFAULT_BUFFER_SIZE);
+		response.setHeader("Accept-Ranges", "bytes");
+		long entrySize = nav.getSize();
+
+		List<ByteRange> ranges = getRequestedRanges(request, nav, entrySize);
+		if (ranges == null) {
+			response.setHeader("Content-Range", "bytes */" + entrySize);
+			response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE); // 416.
+			return;
+		}
+
+		// Prepare streams.
+		InputStream input = null;
+		OutputStream output = null;
+
+		this.metrics.active_downloads.increment();
+		try {
+			if (ranges.size() <= 1) {
+
+				long start = 0;
+				long length = entrySize;
+				if (!ranges.isEmpty()) {
+					ByteRange range = ranges.get(0);
+					start = range.start;
+					length = range.length;
+					response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
+					response.setHeader("Content-Range", range.toContentRange());
+				}
+
+				response.setContentType(content_type);
+				response.setHeader("Content-Length", String.valueOf(length));
+				RequestTrace.count(RequestTrace.Phase.TRANSFER, length);
+
+				if (isOnFilesystem(nav)) {
+
+					// Plain files bypass our own stream buffers, and if the
+					// container can, are sent by it with sendfile. Failing that,
+					// they are sent without holding this thread.
+					if (!this.file_transfer.trySendfile(request, nav.asFile(), start, length)
+							&& !this.file_transfer.tryAsync(request, response, nav.asFile(), start, length)) {
+						output = response.getOutputStream();
+						this.file_transfer.copy(nav.asFile(), start, length, output);
+					}
+					if (debug > 0)
+						log("File transfer: " + this.file_transfer);
+
+				} else {
+
+					// Open streams.
+					input = nav.getInputStream(start);
+					output = new BufferedOutputStream(response.getOutputStream());
+					this.metrics.streamed_bytes.add(ByteStreams.copy(ByteStreams.limit(input, length), output));
+				}
+
+			} else {
+
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
+				response.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
 				output = new BufferedOutputStream(response.getOutputStream());
-				long bytesCopied = ByteStreams.copy(input, output);
+
+				// Ranges in ascending order share one stream, which matters for
+				// deflated zip members that can only be read from the start.
+				long position = 0;
+				for (ByteRange range : ranges) {
+
+					if (input == null || range.start < position) {
+						close(input);
+						input = nav.getInputStream(range.start);
+					} else {
+						ByteStreams.skipFully(input, range.start - position);
+					}
+
+					RequestTrace.count(RequestTrace.Phase.TRANSFER, range.length);
+					writeAscii(output, "\r\n--" + MULTIPART_BOUNDARY + "\r\n"
+							+ "Content-Type: " + content_type + "\r\n"
+							+ "Content-Range: " + range.toContentRange() + "\r\n\r\n");
+
+					this.metrics.streamed_bytes.add(ByteStreams.copy(ByteStreams.limit(input, range.length), output));
+					position = range.start + range.length;
+				}
+
+				writeAscii(output, "\r\n--" + MULTIPART_BOUNDARY + "--\r\n");
+			}
+
+			if (output != null)
 				output.flush();
 
-			} finally {
-				// Gently close streams.
-				close(output);
-				close(input);
+		} finally {
+			// Gently close streams.
+			close(output);
+			close(input);
+			this.metrics.active_downloads.decrement();
+		}
+	}
+
+	/**
+	 * @return the ranges to send, empty for the whole content,
+	 *  or null if the requested ranges cannot be satisfied.
+	 */
+	List<ByteRange> getRequestedRanges(HttpServletRequest request, NavigableObject nav, long length) {
+
+		String range_header = request.getHeader("Range");
+		if (range_header == null)
+			return Collections.emptyList();
+
+		// If-Range makes the Range conditional on the content being unchanged
+		String if_range = request.getHeader("If-Range");
+		if (if_range != null && (if_range.startsWith("\"") || if_range.startsWith("W/"))) {
+			// Only a strong tag can vouch for individual bytes
+			if (!if_range.equals(nav.getEntityTag()))
+				return Collections.emptyList();
+
+		} else if (if_range != null) {
+			try {
+				long if_range_time = request.getDateHeader("If-Range");
+				if (if_range_time == -1 || nav.lastModified() / 1000 != if_range_time / 1000)
+					return Collections.emptyList();
+			} catch (IllegalArgumentException e) {
+				return Collections.emptyList();
+			}
+		}
+
+		return ByteRange.parse(range_header, length);
+	}
+
+	void setValidators(HttpServletResponse response, String etag, long last_modified) {
+
+		response.setHeader("ETag", etag);
+		if (last_modified > 0)
+			response.setDateHeader("Last-Modified", last_modified);
+
+		// Clients may keep a copy, but must check back before using it
+		response.setHeader("Cache-Control", "no-cache");
+	}
+
+	/**
+	 * Evaluates If-None-Match, or failing that If-Modified-Since, as in RFC 7232.
+	 */
+	boolean isNotModified(HttpServletRequest request, String etag, long last_modified) {
+
+		String if_none_match = request.getHeader("If-None-Match");
+		if (if_none_match != null) {
+			String opaque_tag = stripWeakPrefix(etag);
+			for (String candidate : if_none_match.split(",")) {
+				candidate = candidate.trim();
+				if (candidate.equals("*") || stripWeakPrefix(candidate).equals(opaque_tag))
+					return true;
+			}
+			return false;
+		}
+
+		if (last_modified > 0) {
+			try {
+				long if_modified_since = request.getDateHeader("If-Modified-Since");
+				if (if_modified_since != -1 && last_modified / 1000 <= if_modified_since / 1000)
+					return true;
+			} catch (IllegalArgumentException e) {
+				// An unparseable date is ignored
 			}
 		}
+
+		return false;
+	}
+
+	private static String stripWeakPrefix(String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+
+	/**
+	 * A weak tag for a rendered listing: it changes when any listed child
+	 * is added, removed, modified or resized, or the order or stylesheet
+	 * changes, but is computed without rendering anything.
+	 */
+	String getListingEntityTag(ListingPage page, Map<NavigableObject, DirectorySizes.Summary> directory_sizes,
+			Collection<SortCriteria> sorters, Templates xsltTemplates, boolean is_json) {
+
+		Hasher hasher = Hashing.md5().newHasher();
+		for (NavigableObject nav : page.getItems()) {
+			if (nav.getIsParentLink() || shouldHide(nav))
+				continue;
+			hasher.putString(nav.getName(), Charsets.UTF_8)
+				.putLong(nav.lastModified())
+				.putLong(nav.getSize())
+				.putBoolean(nav.isDirectory());
+
+			// Directory totals change, and fill in, while nothing listed does
+			DirectorySizes.Summary directory_size = directory_sizes.get(nav);
+			if (directory_size != null)
+				hasher.putLong(directory_size.getSize())
+					.putLong(directory_size.getFileCount())
+					.putBoolean(directory_size.isPending());
+		}
+		for (SortCriteria sorter : sorters)
+			hasher.putInt(sorter.ordinal());
+
+		// The page also shows the size of the whole listing, and links onwards
+		hasher.putInt(page.getTotal());
+		if (page.getNextCursor() != null)
+			hasher.putString(page.getNextCursor().encode(), Charsets.UTF_8);
+
+		// A recompiled stylesheet renders differently
+		hasher.putString(this.xslt_templates_cache.getVersion(xsltTemplates), Charsets.UTF_8);
+		hasher.putBoolean(is_json);
+
+		return "W/\"" + hasher.hash() + "\"";
+	}
+
+	private static void writeAscii(OutputStream output, String text) throws IOException {
+		output.write(text.getBytes(Charsets.ISO_8859_1));
 	}
 	
 	
 	
+	/**
+	 * Works on the path alone, unlike getBaseRelativePath(), since
+	 * File.toURI() stats each file to tell whether it is a directory; the
+	 * trailing slash that would add is normalized away here anyway.
+	 */
 	String getUrlPath(String contextPath, NavigableObject nav) {
 
-		String url_path = new File(contextPath, getBaseRelativePath(nav.asFile())).getPath();
+		String path = nav.asFile().getAbsolutePath();
+		String relative_path = path;
+		if (path.equals(this.absolute_basepath))
+			relative_path = "";
+		else if (path.startsWith(this.absolute_basepath + File.separator))
+			relative_path = path.substring(this.absolute_basepath.length() + 1);
+
+		String url_path = new File(contextPath, relative_path).getPath();
 		return url_path;
 	}
 	
 
 	/**
-	 * Return an InputStream to an HTML representation of the contents
-	 * of this directory.
-	 *
-	 * @param contextPath Context path to which our internal paths are
-	 *  relative
-	 * @throws TransformerException 
-	 * @throws IOException 
+	 * The totals of the directories on a page, read once so that the
+	 * entity tag and the page agree; empty if sizes are disabled.
 	 */
-	protected byte[] listDirectoryContents(String contextPath, NavigableObject directory,
-			InputStream xsltInputStream, Collection<SortCriteria> sorters) throws TransformerException, IOException {
+	Map<NavigableObject, DirectorySizes.Summary> getDirectorySizes(ListingPage page) {
+
+		Map<NavigableObject, DirectorySizes.Summary> directory_sizes = Maps.newIdentityHashMap();
+		if (this.directory_sizes == null)
+			return directory_sizes;
+		for (NavigableObject nav : page.getItems()) {
+			DirectorySizes.Summary directory_size = this.directory_sizes.get(nav);
+			if (directory_size != null)
+				directory_sizes.put(nav, directory_size);
+		}
+		return directory_sizes;
+	}
 
-		StringBuffer sb = new StringBuffer();
+	/**
+	 * Streams whatever under the directory matches the "find" glob, as
+	 * it is found: as JSON, or otherwise one URL path per line. Nothing
+	 * is compressed or cached, so that each match goes out promptly.
+	 */
+	private void respondWithSearch(NavigableObject nav, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
 
-		sb.append("<?xml version=\"1.0\"?>");
-		sb.append("<listing ");
-		sb.append(" contextPath='");
-		sb.append(contextPath);
-		sb.append("'");
-		sb.append(" directory='");
-		sb.append( getBaseRelativePath(directory.asFile()) );
-		sb.append("'>");
+		String glob = request.getParameter("find");
+		TreeSearch search;
+		try {
+			search = new TreeSearch(glob, this.zip_index_cache,
+					getCappedCount(request, "depth", this.search_maximum_depth),
+					getCappedCount(request, "limit", this.search_maximum_results),
+					this.search_time_limit_millis);
+		} catch (IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage()); // 400.
+			return;
+		}
 
-		sb.append("<entries>");
+		boolean is_json = isJsonRequested(request);
+		response.setContentType(is_json ? "application/json;charset=UTF-8" : "text/plain;charset=UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
 
-		Collection<NavigableObject> children_and_parent = directory.listChildren(sorters);
-		
-		for (NavigableObject nav : children_and_parent) {
-			
-			// Hidden files
-			if (shouldHide(nav))
-				continue;
+		Writer writer = null;
+		search.start(nav, this.search_pool);
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), Charsets.UTF_8),
+					DEFAULT_BUFFER_SIZE);
+			JsonListingWriter json = is_json ? new JsonListingWriter(writer) : null;
+			if (json != null)
+				json.startSearch(getBaseRelativePath(nav.asFile()), glob);
+
+			Map<String, Object> entry = Maps.newLinkedHashMap();
+			int count = 0;
+			while (!search.isFinished()) {
+
+				// Whatever has been found goes out before waiting for more
+				TreeSearch.Match match = search.poll(0, TimeUnit.MILLISECONDS);
+				if (match == null) {
+					writer.flush();
+					match = search.poll(SEARCH_POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (match == null)
+						continue;
+				}
+
+				NavigableObject found = match.getNavigableObject();
+				if (json != null) {
+					entry.clear();
+					putEntryFields(entry, request.getContextPath(), found);
+					entry.put("path", match.getPath());
+					json.writeEntry(entry);
+				} else {
+					writer.write(getUrlPath(request.getContextPath(), found));
+					writer.write(found.isDirectory() ? "/\n" : "\n");
+				}
+				count++;
+			}
 
-			sb.append("<entry");
-			sb.append(" type='")
-			.append( nav.isDirectory() ? "dir" : "file" )
-			.append("'");
+			String truncation = search.getTruncation() != null
+					? search.getTruncation().name().toLowerCase() : null;
+			if (json != null)
+				json.endSearch(count, truncation, search.getUnreadableCount());
+			else if (truncation != null)
+				writer.write("# Stopped early: " + truncation + " limit reached\n");
+			writer.flush();
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while searching");
+		} finally {
+			search.cancel();
+			close(writer);
+		}
+	}
+
+	/**
+	 * Lists whatever under the directory has a name containing the
+	 * "locate" text, or starting with it given "match=prefix", from the
+	 * name index alone: as JSON, or otherwise one URL path per line.
+	 * Sizes and times are as of the last indexing pass, and anything
+	 * newer than that isn't found.
+	 */
+	private void respondWithLocate(NavigableObject nav, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+
+		if (this.name_indexer == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "The name index is disabled"); // 404.
+			return;
+		}
+		NameIndex index = this.name_indexer.getIndex();
+		if (index == null) {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The name index is still being built"); // 503.
+			return;
+		}
+
+		String text = request.getParameter("locate");
+		boolean is_prefix = "prefix".equals(request.getParameter("match"));
+		int limit;
+		try {
+			limit = getCappedCount(request, "limit", this.search_maximum_results);
+		} catch (IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage()); // 400.
+			return;
+		}
+
+		// A directory too new to be indexed has nothing indexed within it
+		String directory = getBaseRelativePath(nav.asFile());
+		int within = index.lookup(CharMatcher.is('/').trimFrom(directory));
+		int[] found = new int[0];
+		if (within >= 0) {
+			// One more than the limit shows whether there were more
+			int query_limit = limit < Integer.MAX_VALUE ? limit + 1 : limit;
+			found = is_prefix
+					? index.findStartingWith(text, within, query_limit)
+					: index.findContaining(text, within, query_limit);
+		}
+		boolean is_truncated = found.length > limit;
+		int count = Math.min(found.length, limit);
 
-			String url_path = getUrlPath(contextPath, nav);
-			sb.append(" urlPath='")
-			.append(url_path)
-			.append("'");
+		boolean is_json = isJsonRequested(request);
+		response.setContentType(is_json ? "application/json;charset=UTF-8" : "text/plain;charset=UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
 
-			if (!nav.isDirectory()) {
-				sb.append(" size='")
-				.append(renderSize(nav.getSize()))
-				.append("'");
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), Charsets.UTF_8),
+					DEFAULT_BUFFER_SIZE);
+			JsonListingWriter json = is_json ? new JsonListingWriter(writer) : null;
+			if (json != null)
+				json.startLocate(directory, text, is_prefix, index.getBuiltAt());
+
+			Map<String, Object> entry = Maps.newLinkedHashMap();
+			for (int i = 0; i < count; i++) {
+				int id = found[i];
+				String path = index.getPath(id);
+				String url_path = new File(request.getContextPath(), path).getPath();
+				if (json != null) {
+					entry.clear();
+					entry.put("name", index.getName(id));
+					entry.put("type", index.isDirectory(id) ? "dir" : "file");
+					entry.put("urlPath", url_path);
+					if (!index.isDirectory(id))
+						entry.put("size", index.getSize(id));
+					entry.put("mtime", index.lastModified(id));
+					if (index.isArchiveMember(id))
+						entry.put("archiveMember", true);
+					entry.put("path", path);
+					json.writeEntry(entry);
+				} else {
+					writer.write(url_path);
+					writer.write(index.isDirectory(id) ? "/\n" : "\n");
+				}
 			}
 
-			sb.append(" date='")
-			.append( nav.getIsParentLink() ? "" : nav.renderAge())
-			.append("'");
-			
-			sb.append(" icon='")
-			.append( new File(new File(contextPath), new File("static/images", nav.getIconFilename()).getPath()).getPath() )
-			.append("'");
+			if (json != null)
+				json.endLocate(count, is_truncated);
+			else if (is_truncated)
+				writer.write("# Stopped early: results limit reached\n");
+			writer.flush();
+		} finally {
+			close(writer);
+		}
+	}
 
-			sb.append(" dlicon='")
-			.append( new File(new File(contextPath), "static/images/download.png").getPath() )
-			.append("'");
-			
-			sb.append(" downloadLink='")
-			.append(nav.isDownloadable() ? "true" : "")
-			.append("'");
-			
-			sb.append(">");
-			sb.append(RequestUtil.filter(nav.getDisplayName()));
-			sb.append("</entry>");
+	/**
+	 * A count that the request may lower but not raise.
+	 *
+	 * @throws IllegalArgumentException if the parameter isn't a count
+	 */
+	static int getCappedCount(HttpServletRequest request, String name, int maximum) {
 
+		String value = request.getParameter(name);
+		if (value == null || value.isEmpty())
+			return maximum;
+		try {
+			int count = Integer.parseInt(value);
+			if (count >= 0)
+				return Math.min(count, maximum);
+		} catch (NumberFormatException e) {
+			// Reported below
 		}
+		throw new IllegalArgumentException("Invalid " + name + ": " + value);
+	}
 
-		sb.append("</entries>");
-		sb.append("</listing>");
+	/**
+	 * The same listing sorted the same way, continuing after the given page.
+	 *
+	 * @return a relative URL, or null if this is the last page
+	 */
+	String getNextPageLink(HttpServletRequest request, Collection<SortCriteria> sorters, ListingPage page) {
+
+		if (page.getNextCursor() == null)
+			return null;
+
+		StringBuilder link = new StringBuilder("?");
+		if ("json".equals(request.getParameter("format")))
+			link.append("format=json&");
+		for (SortCriteria sorter : sorters)
+			link.append("sort=").append(sorter.name()).append('&');
+		String limit = request.getParameter("limit");
+		if (limit != null)
+			link.append("limit=").append(limit).append('&');
+		link.append("cursor=").append(page.getNextCursor().encode());
+		return link.toString();
+	}
 
-		TransformerFactory tFactory = TransformerFactory.newInstance();
-		Source xmlSource = new StreamSource(new StringReader(sb.toString()));
+	/**
+	 * Write an HTML representation of the contents of this directory.
+	 *
+	 * The listing document is generated as SAX events straight into the
+	 * transformer, and the result is written straight to the output.
+	 *
+	 * @param contextPath Context path to which our internal paths are
+	 *  relative
+	 * @throws TransformerException 
+	 */
+	protected void listDirectoryContents(final String contextPath, final NavigableObject directory,
+			final ListingPage page, final Map<NavigableObject, DirectorySizes.Summary> directory_sizes,
+			final String next_page_link, Transformer transformer, OutputStream output) throws TransformerException {
+
+		SaxEventSource listing_events = new SaxEventSource() {
+			@Override
+			protected void emit(ContentHandler handler) throws SAXException, IOException {
+
+				AttributesImpl attributes = new AttributesImpl();
+				attributes.addAttribute("", "contextPath", "contextPath", "CDATA", contextPath);
+				attributes.addAttribute("", "directory", "directory", "CDATA", getBaseRelativePath(directory.asFile()));
+				attributes.addAttribute("", "total", "total", "CDATA", String.valueOf(page.getTotal()));
+				if (next_page_link != null)
+					attributes.addAttribute("", "nextPageLink", "nextPageLink", "CDATA", next_page_link);
+				startElement(handler, "listing", attributes);
+
+				attributes.clear();
+				startElement(handler, "entries", attributes);
+
+				String download_icon_path = new File(new File(contextPath), "static/images/download.png").getPath();
+
+				for (NavigableObject nav : page.getItems()) {
+
+					// Hidden files
+					if (shouldHide(nav))
+						continue;
+
+					attributes.clear();
+					attributes.addAttribute("", "type", "type", "CDATA", nav.isDirectory() ? "dir" : "file");
+					attributes.addAttribute("", "urlPath", "urlPath", "CDATA", getUrlPath(contextPath, nav));
+
+					if (!nav.isDirectory())
+						attributes.addAttribute("", "size", "size", "CDATA", renderSize(nav.getSize()));
+
+					DirectorySizes.Summary directory_size = directory_sizes.get(nav);
+					if (directory_size != null) {
+						if (directory_size.isKnown()) {
+							attributes.addAttribute("", "size", "size", "CDATA", renderSize(directory_size.getSize()));
+							attributes.addAttribute("", "fileCount", "fileCount", "CDATA",
+									String.valueOf(directory_size.getFileCount()));
+						}
+						if (directory_size.isPending())
+							attributes.addAttribute("", "sizePending", "sizePending", "CDATA", "true");
+					}
+
+					attributes.addAttribute("", "date", "date", "CDATA", nav.getIsParentLink() ? "" : nav.renderAge());
+					attributes.addAttribute("", "icon", "icon", "CDATA",
+							new File(new File(contextPath), new File("static/images", nav.getIconFilename()).getPath()).getPath());
+					attributes.addAttribute("", "dlicon", "dlicon", "CDATA", download_icon_path);
+					attributes.addAttribute("", "downloadLink", "downloadLink", "CDATA", nav.isDownloadable() ? "true" : "");
+
+					startElement(handler, "entry", attributes);
+					characters(handler, nav.getDisplayName());
+					endElement(handler, "entry");
+				}
+
+				endElement(handler, "entries");
+				endElement(handler, "listing");
+			}
+		};
+
+		transformer.transform(new SAXSource(listing_events, new InputSource()), new StreamResult(output));
+	}
+
+	/**
+	 * Tools ask for JSON explicitly, or through an Accept header that a
+	 * browser's, which always includes text/html, won't match.
+	 */
+	static boolean isJsonRequested(HttpServletRequest request) {
 
-		Source xslSource = new StreamSource(xsltInputStream);
-		Transformer transformer = tFactory.newTransformer(xslSource);
+		if ("json".equals(request.getParameter("format")))
+			return true;
 
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		OutputStreamWriter osWriter = new OutputStreamWriter(stream, "UTF8");
-		StreamResult out = new StreamResult(osWriter);
-		transformer.transform(xmlSource, out);
-		osWriter.flush();
-		return stream.toByteArray();
+		String accept = request.getHeader("Accept");
+		return accept != null && accept.contains("application/json") && !accept.contains("text/html");
+	}
+
+	/**
+	 * Streams the listing as JSON, with raw sizes and epoch millisecond
+	 * times for tools, and zip members' CRCs.
+	 */
+	void writeJsonListing(String contextPath, NavigableObject directory, ListingPage page,
+			Map<NavigableObject, DirectorySizes.Summary> directory_sizes,
+			String next_page_link, OutputStream output) throws IOException {
+
+		JsonListingWriter json = new JsonListingWriter(
+				new BufferedWriter(new OutputStreamWriter(output, Charsets.UTF_8), DEFAULT_BUFFER_SIZE));
+		json.startListing(getBaseRelativePath(directory.asFile()), page.getTotal(),
+				page.getNextCursor() != null ? page.getNextCursor().encode() : null, next_page_link);
+
+		Map<String, Object> entry = Maps.newLinkedHashMap();
+		for (NavigableObject nav : page.getItems()) {
+			entry.clear();
+			putEntryFields(entry, contextPath, nav);
+			DirectorySizes.Summary directory_size = directory_sizes.get(nav);
+			if (directory_size != null) {
+				if (directory_size.isKnown()) {
+					entry.put("size", directory_size.getSize());
+					entry.put("fileCount", directory_size.getFileCount());
+				}
+				if (directory_size.isPending())
+					entry.put("sizePending", true);
+			}
+			json.writeEntry(entry);
+		}
+
+		json.endListing();
+	}
+
+	private void putEntryFields(Map<String, Object> entry, String contextPath, NavigableObject nav) {
+
+		entry.put("name", nav.getDisplayName());
+		entry.put("type", nav.isDirectory() ? "dir" : "file");
+		entry.put("urlPath", getUrlPath(contextPath, nav));
+		if (nav.getIsParentLink()) {
+			entry.put("parent", true);
+		} else {
+			if (!nav.isDirectory())
+				entry.put("size", nav.getSize());
+			entry.put("mtime", nav.lastModified());
+		}
+		if (nav instanceof ZipMemberNavigableObject) {
+			ZipArchiveEntry zip_entry = ((ZipMemberNavigableObject) nav).getArchiveEntry();
+			if (zip_entry != null && !nav.isDirectory())
+				entry.put("crc", zip_entry.getCrc());
+		}
+		entry.put("downloadable", nav.isDownloadable());
 	}
 	
-	private void respondWithDirectoryListing(NavigableObject nav, HttpServletResponse response, String context_path, Collection<SortCriteria> sorters)
+	private void respondWithDirectoryListing(NavigableObject nav, HttpServletRequest request, HttpServletResponse response, Collection<SortCriteria> sorters)
 			throws IOException {
 
-		InputStream xsltInputStream = findXsltInputStream(nav.asFile());
-		response.setContentType("text/html");
-
+		PageRequest page_request;
 		try {
-			byte[] directory_listing_page_bytes = listDirectoryContents(
-					context_path,
-					nav,
-					xsltInputStream,
-					sorters);
-			response.setHeader("Content-Length", String.valueOf(directory_listing_page_bytes.length));
+			page_request = PageRequest.fromRequest(request, sorters, this.listing_page_size);
+		} catch (IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage()); // 400.
+			return;
+		}
 
-			// Open streams.
-			InputStream input = new BufferedInputStream(new ByteArrayInputStream(directory_listing_page_bytes), DEFAULT_BUFFER_SIZE);
-			OutputStream output = new BufferedOutputStream(response.getOutputStream(), DEFAULT_BUFFER_SIZE);
+		// Hidden entries mustn't take up room on a page
+		List<NavigableObject> children_and_parent = Lists.newArrayList();
+		for (NavigableObject child : nav.listChildrenUnsorted())
+			if (!shouldHide(child))
+				children_and_parent.add(child);
+		ListingPage page = SortUtils.sortPage(children_and_parent, sorters, page_request, this.stat_pool);
+		if (debug > 0 && this.directory_cache != null)
+			log("Directory cache: " + this.directory_cache);
+
+		// Compiling a changed stylesheet is part of rendering
+		boolean is_json = isJsonRequested(request);
+		Templates xsltTemplates = null;
+		if (!is_json) {
+			RequestTrace.Phase resumed = RequestTrace.enter(RequestTrace.Phase.RENDER);
+			try {
+				xsltTemplates = findXsltTemplates(nav.asFile());
+			} finally {
+				RequestTrace.exit(resumed);
+			}
+		}
 
-			ByteStreams.copy(input, output);
-			// Gently close streams.
-			close(output);
-			close(input);
+		boolean is_gzip = ContentEncodings.isAccepted(request, ContentEncodings.GZIP);
+
+		// An unchanged listing is answered before anything is rendered
+		Map<NavigableObject, DirectorySizes.Summary> directory_sizes = getDirectorySizes(page);
+		String etag = getListingEntityTag(page, directory_sizes, sorters, xsltTemplates, is_json);
+		if (is_gzip)
+			etag = ContentEncodings.tagWithCoding(etag, ContentEncodings.GZIP);
+		setValidators(response, etag, -1);
+		response.setHeader("Vary", "Accept-Encoding, Accept");
+		if (isNotModified(request, etag, -1)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED); // 304.
+			return;
+		}
+
+		if (is_json) {
+			response.setContentType("application/json;charset=UTF-8");
+			OutputStream output = null;
+			try {
+				output = new BufferedOutputStream(response.getOutputStream(), DEFAULT_BUFFER_SIZE);
+				if (is_gzip) {
+					response.setHeader("Content-Encoding", ContentEncodings.GZIP);
+					output = new GZIPOutputStream(output, DEFAULT_BUFFER_SIZE);
+				}
+				long start = System.nanoTime();
+				RequestTrace.Phase resumed = RequestTrace.enter(RequestTrace.Phase.RENDER);
+				try {
+					RequestTrace.count(RequestTrace.Phase.RENDER, page.getItems().size());
+					writeJsonListing(request.getContextPath(), nav, page, directory_sizes,
+							getNextPageLink(request, sorters, page), output);
+				} finally {
+					RequestTrace.exit(resumed);
+				}
+				this.metrics.json_render_times.recordSince(start);
+			} finally {
+				close(output);
+			}
+			return;
+		}
+
+		OutputStream output = null;
+		try {
+			Transformer transformer = xsltTemplates != null
+					? xsltTemplates.newTransformer()
+					: this.xslt_templates_cache.newIdentityTransformer();
+
+			// Let the stylesheet's xsl:output decide how the page is labeled
+			String media_type = transformer.getOutputProperty(OutputKeys.MEDIA_TYPE);
+			String encoding = transformer.getOutputProperty(OutputKeys.ENCODING);
+			response.setContentType((media_type != null ? media_type : "text/html")
+					+ (encoding != null ? ";charset=" + encoding : ""));
+
+			// No Content-Length: the page is sent as it is produced
+			output = new BufferedOutputStream(response.getOutputStream(), DEFAULT_BUFFER_SIZE);
+			if (is_gzip) {
+				response.setHeader("Content-Encoding", ContentEncodings.GZIP);
+				output = new GZIPOutputStream(output, DEFAULT_BUFFER_SIZE);
+			}
+			long start = System.nanoTime();
+			RequestTrace.Phase resumed = RequestTrace.enter(RequestTrace.Phase.RENDER);
+			try {
+				RequestTrace.count(RequestTrace.Phase.RENDER, page.getItems().size());
+				listDirectoryContents(
+						request.getContextPath(),
+						nav,
+						page,
+						directory_sizes,
+						getNextPageLink(request, sorters, page),
+						transformer,
+						output);
+			} finally {
+				RequestTrace.exit(resumed);
+			}
+			this.metrics.html_render_times.recordSince(start);
+			output.flush();
 
 		} catch (TransformerException e) {
 			e.printStackTrace();
+		} finally {
+			// Gently close streams.
+			close(output);
 		}
 	}
 
@@ -381,64 +1782,83 @@ public class FileServlet extends HttpServlet {
 
 
 	/**
-	 * Return the xsl template inputstream (if possible)
+	 * Return the compiled xsl template (if possible), in order of preference
+	 * the one in the listed directory, the context's, and the instance's.
 	 */
-	protected InputStream findXsltInputStream(File directory) {
+	protected Templates findXsltTemplates(File directory) {
 
 		if (localXsltFile!=null) {
-			try {
-				File local_xlst_file = new File(directory, localXsltFile);
-				if (local_xlst_file.isFile()) {
-					InputStream is = new FileInputStream(local_xlst_file);
-					if (is!=null)
-						return is;
+			File local_xslt_file = new File(directory, localXsltFile);
+			if (local_xslt_file.isFile()) {
+				try {
+					return getCompiledFile(local_xslt_file);
+				} catch(IOException ioe) {
+					log("FileServlet.findXsltTemplates: IO exception: " + ioe.getMessage());
+				} catch(TransformerConfigurationException tce) {
+					log("FileServlet.findXsltTemplates: can't compile " + local_xslt_file, tce);
 				}
-			} catch(IOException ioe) {
-				log("DefaultServlet.findXsltInputStream: IO exception: " + ioe.getMessage());
 			}
 		}
 
-		if (contextXsltFile != null) { 
-			InputStream is = 
-					getServletContext().getResourceAsStream(contextXsltFile); 
-			if (is != null) 
-				return is; 
-
-			if (debug > 10) 
-				log("contextXsltFile '" + contextXsltFile + "' not found"); 
-		} 		
+		if (contextXsltFile != null) {
+			try {
+				// An unpacked webapp lets us check for changes with a plain stat
+				String real_path = getServletContext().getRealPath(contextXsltFile);
+				if (real_path != null && new File(real_path).isFile())
+					return getCompiledFile(new File(real_path));
+
+				final URL url = getServletContext().getResource(contextXsltFile);
+				if (url != null) {
+					long now = System.currentTimeMillis();
+					if (now - this.context_xslt_checked_at >= CONTEXT_XSLT_CHECK_MILLIS) {
+						URLConnection connection = url.openConnection();
+						this.context_xslt_last_modified = connection.getLastModified();
+						close(connection.getInputStream());
+						this.context_xslt_checked_at = now;
+					}
+
+					return this.xslt_templates_cache.get("context:" + contextXsltFile, this.context_xslt_last_modified,
+							new XsltTemplatesCache.SourceOpener() {
+						@Override
+						public Source open() throws IOException {
+							return new StreamSource(url.openStream(), url.toExternalForm());
+						}
+					});
+				}
+			} catch(IOException ioe) {
+				log("FileServlet.findXsltTemplates: IO exception: " + ioe.getMessage());
+			} catch(TransformerConfigurationException tce) {
+				log("FileServlet.findXsltTemplates: can't compile " + contextXsltFile, tce);
+			}
 
+			if (debug > 10)
+				log("contextXsltFile '" + contextXsltFile + "' not found");
+		}
 
-		/*  Open and read in file in one fell swoop to reduce chance
-		 *  chance of leaving handle open.
-		 */
 		if (globalXsltFile!=null) {
-			FileInputStream fis = null;
-
-			try {
-				File f = new File(globalXsltFile);
-				if (f.exists()){
-					fis =new FileInputStream(f);
-					byte b[] = new byte[(int)f.length()]; /* danger! */
-					fis.read(b);
-					return new ByteArrayInputStream(b);
-				}
-			} catch(Exception e) {
-				log("DefaultServlet.findXsltInputStream: can't read "
-						+ globalXsltFile);
-				return null;
-			} finally {
+			File global_xslt_file = new File(globalXsltFile);
+			if (global_xslt_file.exists()) {
 				try {
-					if (fis!=null)
-						fis.close();
-				} catch(Exception e) {
-					log("DefaultServlet.findXsltInputStream: "
-							+ " exception closing input stream: " + e.getMessage());
+					return getCompiledFile(global_xslt_file);
+				} catch(IOException ioe) {
+					log("FileServlet.findXsltTemplates: can't read " + globalXsltFile, ioe);
+				} catch(TransformerConfigurationException tce) {
+					log("FileServlet.findXsltTemplates: can't compile " + globalXsltFile, tce);
 				}
 			}
 		}
 
 		return null;
+	}
+
+	private Templates getCompiledFile(final File xslt_file) throws IOException, TransformerConfigurationException {
 
+		return this.xslt_templates_cache.get("file:" + xslt_file.getAbsolutePath(), xslt_file.lastModified(),
+				new XsltTemplatesCache.SourceOpener() {
+			@Override
+			public Source open() {
+				return new StreamSource(xslt_file);
+			}
+		});
 	}
 }
\ No newline at end of file
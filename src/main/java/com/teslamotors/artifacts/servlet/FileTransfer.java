@@ -0,0 +1,197 @@
+package com.teslamotors.artifacts.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.teslamotors.artifacts.metrics.StripedCounter;
+
+/**
+ * Moves plain file content to the client with as little copying as the
+ * container allows.
+ *
+ * Where the container supports it (Tomcat's NIO and APR connectors), the
+ * file is handed over through the sendfile request attributes, and the
+ * connector sends it with FileChannel.transferTo() or sendfile(2) once the
+ * servlet returns. Failing that, and if the request allows it, the file is
+ * sent asynchronously so that slow clients don't each hold a request thread.
+ * Otherwise the file is simply copied to the output stream.
+ */
+class FileTransfer {
+
+	static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+	static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+	static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+	static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+	/**
+	 * Same cut-off as Tomcat's DefaultServlet; smaller files are
+	 * cheaper to just write.
+	 */
+	static final int SENDFILE_MINIMUM_SIZE = 48 * 1024;
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private final boolean use_sendfile;
+
+	/**
+	 * Runs the completions of asynchronous file reads, or null if
+	 * asynchronous downloads are disabled.
+	 */
+	private final ExecutorService async_io_executor;
+
+	private final StripedCounter sendfile_bytes = new StripedCounter();
+	private final StripedCounter copied_bytes = new StripedCounter();
+	private final StripedCounter async_bytes = new StripedCounter();
+	private final AtomicInteger active_async_downloads = new AtomicInteger();
+
+	FileTransfer(boolean use_sendfile, int async_io_threads) {
+		this.use_sendfile = use_sendfile;
+		this.async_io_executor = async_io_threads > 0
+				? Executors.newFixedThreadPool(async_io_threads,
+						new ThreadFactoryBuilder().setDaemon(true).setNameFormat("file-servlet-async-io-%d").build())
+				: null;
+	}
+
+	void shutdown() {
+		if (this.async_io_executor != null)
+			this.async_io_executor.shutdownNow();
+	}
+
+	/**
+	 * Asks the container to send the given part of the file itself.
+	 *
+	 * @return false if the container can't, in which case nothing has been done
+	 */
+	boolean trySendfile(HttpServletRequest request, File file, long start, long length) {
+
+		if (!this.use_sendfile
+				|| length < SENDFILE_MINIMUM_SIZE
+				|| !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE)))
+			return false;
+
+		request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getAbsolutePath());
+		request.setAttribute(SENDFILE_START_ATTRIBUTE, Long.valueOf(start));
+		request.setAttribute(SENDFILE_END_ATTRIBUTE, Long.valueOf(start + length));
+		this.sendfile_bytes.add(length);
+		return true;
+	}
+
+	/**
+	 * Puts the request into asynchronous mode and sends the given part of
+	 * the file from there; the calling thread returns straight away.
+	 *
+	 * @return false if the request can't be handled asynchronously, in which
+	 * case nothing has been done
+	 */
+	boolean tryAsync(HttpServletRequest request, HttpServletResponse response,
+			File file, long start, long length) throws IOException {
+
+		if (this.async_io_executor == null
+				|| length < SENDFILE_MINIMUM_SIZE
+				|| !request.isAsyncSupported())
+			return false;
+
+		AsynchronousFileChannel channel = AsynchronousFileChannel.open(file.toPath(),
+				EnumSet.of(StandardOpenOption.READ), this.async_io_executor);
+		try {
+			AsyncContext async_context = request.startAsync(request, response);
+
+			// Large files to slow clients can legitimately take a long time
+			async_context.setTimeout(0);
+
+			ServletOutputStream output = response.getOutputStream();
+			AsyncFileDownload download = new AsyncFileDownload(async_context, output,
+					channel, start, length, this.async_bytes, new Runnable() {
+						@Override
+						public void run() {
+							FileTransfer.this.active_async_downloads.decrementAndGet();
+						}
+					});
+
+			this.active_async_downloads.incrementAndGet();
+			async_context.addListener(download);
+			output.setWriteListener(download);
+			return true;
+
+		} catch (IllegalStateException e) {
+			channel.close();
+			return false;
+		}
+	}
+
+	/**
+	 * Copies the given part of the file to the output.
+	 */
+	long copy(File file, long start, long length, OutputStream output) throws IOException {
+
+		FileInputStream input = new FileInputStream(file);
+		try {
+			input.getChannel().position(start);
+			return copy(input, length, output);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Copies up to the given length from an open file, which is left open.
+	 */
+	long copy(InputStream input, long length, OutputStream output) throws IOException {
+
+		byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(1, length))];
+
+		long bytes_copied = 0;
+		while (bytes_copied < length) {
+			int bytes_read = input.read(buffer, 0, (int) Math.min(buffer.length, length - bytes_copied));
+			if (bytes_read < 0)
+				break;
+			output.write(buffer, 0, bytes_read);
+			bytes_copied += bytes_read;
+		}
+
+		this.copied_bytes.add(bytes_copied);
+		return bytes_copied;
+	}
+
+	long getSendfileBytes() {
+		return this.sendfile_bytes.sum();
+	}
+
+	long getCopiedBytes() {
+		return this.copied_bytes.sum();
+	}
+
+	long getAsyncBytes() {
+		return this.async_bytes.sum();
+	}
+
+	int getActiveAsyncDownloads() {
+		return this.active_async_downloads.get();
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("sendfile_bytes", getSendfileBytes())
+				.add("copied_bytes", getCopiedBytes())
+				.add("async_bytes", getAsyncBytes())
+				.add("active_async_downloads", getActiveAsyncDownloads())
+				.toString();
+	}
+}
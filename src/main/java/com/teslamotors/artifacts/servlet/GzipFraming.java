@@ -0,0 +1,49 @@
+package com.teslamotors.artifacts.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The fixed header and trailer that turn a raw deflate stream into
+ * a gzip member (RFC 1952).
+ *
+ * A deflated zip entry is exactly such a raw stream, and the zip's
+ * central directory already records the CRC-32 and length that the
+ * trailer needs, so an entry can be sent gzip-encoded without being
+ * inflated. (The HTTP "deflate" coding is zlib-wrapped instead, and
+ * its Adler-32 trailer could only be had by inflating.)
+ */
+class GzipFraming {
+
+	static final int HEADER_LENGTH = 10;
+	static final int TRAILER_LENGTH = 8;
+	static final int FRAMING_LENGTH = HEADER_LENGTH + TRAILER_LENGTH;
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+	private static final int DEFLATE_METHOD = 8;
+	private static final int OS_UNKNOWN = 255;
+
+	static void writeHeader(OutputStream output, long last_modified) throws IOException {
+		writeShort(output, GZIP_MAGIC);
+		output.write(DEFLATE_METHOD);
+		output.write(0); // flags
+		writeInt(output, last_modified > 0 ? last_modified / 1000 : 0);
+		output.write(0); // extra flags
+		output.write(OS_UNKNOWN);
+	}
+
+	static void writeTrailer(OutputStream output, long crc, long uncompressed_size) throws IOException {
+		writeInt(output, crc);
+		writeInt(output, uncompressed_size); // modulo 2^32
+	}
+
+	private static void writeShort(OutputStream output, int value) throws IOException {
+		output.write(value & 0xff);
+		output.write((value >> 8) & 0xff);
+	}
+
+	private static void writeInt(OutputStream output, long value) throws IOException {
+		writeShort(output, (int) (value & 0xffff));
+		writeShort(output, (int) ((value >> 16) & 0xffff));
+	}
+}
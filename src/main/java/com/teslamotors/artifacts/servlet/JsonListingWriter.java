@@ -0,0 +1,135 @@
+package com.teslamotors.artifacts.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONStyle;
+import net.minidev.json.JSONValue;
+
+/**
+ * Writes a listing as one JSON object, entry by entry as they are given,
+ * so that nothing more than the current entry is ever held in memory:
+ *
+ * <pre>
+ * {"directory": ..., "total": ..., "nextCursor": ..., "nextPageLink": ...,
+ *  "entries": [{...}, {...}]}
+ * </pre>
+ *
+ * The next page fields are present only if there is a next page.
+ *
+ * Search results take the same form, with their summary at the end
+ * since it is only known once they have all been written:
+ *
+ * <pre>
+ * {"directory": ..., "find": ..., "matches": [{...}, {...}],
+ *  "count": ..., "truncated": ..., "unreadable": ...}
+ * </pre>
+ */
+class JsonListingWriter {
+
+	/**
+	 * Strict JSON, but without escaping the slashes of every path.
+	 */
+	private static final JSONStyle STYLE = new JSONStyle(JSONStyle.FLAG_PROTECT_4WEB);
+
+	private final Writer writer;
+	private boolean is_first_entry = true;
+
+	/**
+	 * json-smart appends a character at a time, which on a Writer means a
+	 * lock and a call each, so entries are formatted here first.
+	 */
+	private final StringBuilder entry_buffer = new StringBuilder();
+
+	JsonListingWriter(Writer writer) {
+		this.writer = writer;
+	}
+
+	void startListing(String directory, int total, String next_cursor, String next_page_link) throws IOException {
+
+		this.writer.write('{');
+		JSONObject.writeJSONKV("directory", directory, this.writer, STYLE);
+		this.writer.write(',');
+		JSONObject.writeJSONKV("total", total, this.writer, STYLE);
+		if (next_cursor != null) {
+			this.writer.write(',');
+			JSONObject.writeJSONKV("nextCursor", next_cursor, this.writer, STYLE);
+			this.writer.write(',');
+			JSONObject.writeJSONKV("nextPageLink", next_page_link, this.writer, STYLE);
+		}
+		this.writer.write(",\"entries\":[");
+	}
+
+	void startSearch(String directory, String glob) throws IOException {
+
+		this.writer.write('{');
+		JSONObject.writeJSONKV("directory", directory, this.writer, STYLE);
+		this.writer.write(',');
+		JSONObject.writeJSONKV("find", glob, this.writer, STYLE);
+		this.writer.write(",\"matches\":[");
+	}
+
+	/**
+	 * @param truncation why the search stopped early, or null
+	 */
+	void endSearch(int count, String truncation, int unreadable) throws IOException {
+
+		this.writer.write("\n],");
+		JSONObject.writeJSONKV("count", count, this.writer, STYLE);
+		if (truncation != null) {
+			this.writer.write(',');
+			JSONObject.writeJSONKV("truncated", truncation, this.writer, STYLE);
+		}
+		this.writer.write(',');
+		JSONObject.writeJSONKV("unreadable", unreadable, this.writer, STYLE);
+		this.writer.write("}\n");
+		this.writer.flush();
+	}
+
+	/**
+	 * @param built_at when the name index answering the query was started
+	 */
+	void startLocate(String directory, String text, boolean is_prefix, long built_at) throws IOException {
+
+		this.writer.write('{');
+		JSONObject.writeJSONKV("directory", directory, this.writer, STYLE);
+		this.writer.write(',');
+		JSONObject.writeJSONKV("locate", text, this.writer, STYLE);
+		this.writer.write(',');
+		JSONObject.writeJSONKV("match", is_prefix ? "prefix" : "substring", this.writer, STYLE);
+		this.writer.write(',');
+		JSONObject.writeJSONKV("indexedAt", built_at, this.writer, STYLE);
+		this.writer.write(",\"matches\":[");
+	}
+
+	void endLocate(int count, boolean is_truncated) throws IOException {
+
+		this.writer.write("\n],");
+		JSONObject.writeJSONKV("count", count, this.writer, STYLE);
+		if (is_truncated) {
+			this.writer.write(',');
+			JSONObject.writeJSONKV("truncated", "results", this.writer, STYLE);
+		}
+		this.writer.write("}\n");
+		this.writer.flush();
+	}
+
+	void writeEntry(Map<String, Object> entry) throws IOException {
+
+		if (!this.is_first_entry)
+			this.writer.write(',');
+		this.is_first_entry = false;
+
+		this.entry_buffer.setLength(0);
+		this.entry_buffer.append('\n');
+		JSONValue.writeJSONString(entry, this.entry_buffer, STYLE);
+		this.writer.append(this.entry_buffer);
+	}
+
+	void endListing() throws IOException {
+		this.writer.write("\n]}\n");
+		this.writer.flush();
+	}
+}
@@ -0,0 +1,132 @@
+package com.teslamotors.artifacts.servlet;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.XMLReader;
+
+import com.google.common.collect.Maps;
+
+/**
+ * An XMLReader that, instead of parsing anything, generates its document
+ * directly as SAX events. Wrapped in a SAXSource, this feeds a Transformer
+ * without ever serializing the document to text first.
+ */
+abstract class SaxEventSource implements XMLReader {
+
+	private static final String NAMESPACES_FEATURE = "http://xml.org/sax/features/namespaces";
+
+	private ContentHandler content_handler;
+	private DTDHandler dtd_handler;
+	private EntityResolver entity_resolver;
+	private ErrorHandler error_handler;
+	private final Map<String, Boolean> features = Maps.newHashMap();
+	private final Map<String, Object> properties = Maps.newHashMap();
+
+	SaxEventSource() {
+		this.features.put(NAMESPACES_FEATURE, true);
+	}
+
+	/**
+	 * Produce the document's content, between startDocument() and endDocument().
+	 */
+	protected abstract void emit(ContentHandler handler) throws SAXException, IOException;
+
+	@Override
+	public void parse(InputSource input) throws IOException, SAXException {
+
+		if (this.content_handler == null)
+			throw new SAXException("No ContentHandler set");
+
+		this.content_handler.startDocument();
+		emit(this.content_handler);
+		this.content_handler.endDocument();
+	}
+
+	@Override
+	public void parse(String systemId) throws IOException, SAXException {
+		parse(new InputSource(systemId));
+	}
+
+	static void startElement(ContentHandler handler, String name, Attributes attributes) throws SAXException {
+		handler.startElement("", name, name, attributes);
+	}
+
+	static void endElement(ContentHandler handler, String name) throws SAXException {
+		handler.endElement("", name, name);
+	}
+
+	static void characters(ContentHandler handler, String text) throws SAXException {
+		char[] chars = text.toCharArray();
+		handler.characters(chars, 0, chars.length);
+	}
+
+	@Override
+	public boolean getFeature(String name) throws SAXNotRecognizedException {
+		Boolean value = this.features.get(name);
+		return value != null && value;
+	}
+
+	@Override
+	public void setFeature(String name, boolean value) {
+		this.features.put(name, value);
+	}
+
+	@Override
+	public Object getProperty(String name) {
+		return this.properties.get(name);
+	}
+
+	@Override
+	public void setProperty(String name, Object value) {
+		this.properties.put(name, value);
+	}
+
+	@Override
+	public void setEntityResolver(EntityResolver resolver) {
+		this.entity_resolver = resolver;
+	}
+
+	@Override
+	public EntityResolver getEntityResolver() {
+		return this.entity_resolver;
+	}
+
+	@Override
+	public void setDTDHandler(DTDHandler handler) {
+		this.dtd_handler = handler;
+	}
+
+	@Override
+	public DTDHandler getDTDHandler() {
+		return this.dtd_handler;
+	}
+
+	@Override
+	public void setContentHandler(ContentHandler handler) {
+		this.content_handler = handler;
+	}
+
+	@Override
+	public ContentHandler getContentHandler() {
+		return this.content_handler;
+	}
+
+	@Override
+	public void setErrorHandler(ErrorHandler handler) {
+		this.error_handler = handler;
+	}
+
+	@Override
+	public ErrorHandler getErrorHandler() {
+		return this.error_handler;
+	}
+}
@@ -0,0 +1,293 @@
+package com.teslamotors.artifacts.servlet;
+
+import java.util.EnumMap;
+
+import com.teslamotors.artifacts.files.DirectorySnapshotCache;
+import com.teslamotors.artifacts.files.InflatedArchiveCache;
+import com.teslamotors.artifacts.files.NameIndex;
+import com.teslamotors.artifacts.files.NameIndexer;
+import com.teslamotors.artifacts.files.NavigableObject;
+import com.teslamotors.artifacts.files.ZipIndexCache;
+import com.teslamotors.artifacts.files.ZipMemberNavigableObject;
+import com.teslamotors.artifacts.files.ZipParentNavigableObject;
+import com.teslamotors.artifacts.metrics.Gauge;
+import com.teslamotors.artifacts.metrics.Histogram;
+import com.teslamotors.artifacts.metrics.MetricsRegistry;
+import com.teslamotors.artifacts.metrics.StripedCounter;
+
+/**
+ * The FileServlet's own metrics, and the statistics its caches and
+ * FileTransfer already keep, registered under Prometheus-style names.
+ */
+class ServletMetrics {
+
+	enum RequestType {
+		FILE, ZIP_MEMBER, LISTING, ZIP_LISTING, SEARCH, ARCHIVE, OTHER;
+
+		String getLabel() {
+			return "type=\"" + name().toLowerCase() + "\"";
+		}
+	}
+
+	private final MetricsRegistry registry = new MetricsRegistry();
+
+	private final EnumMap<RequestType, Histogram> request_times = new EnumMap<RequestType, Histogram>(RequestType.class);
+
+	final Histogram html_render_times;
+	final Histogram json_render_times;
+
+	/**
+	 * Content the servlet writes itself, rather than through FileTransfer.
+	 */
+	final StripedCounter streamed_bytes;
+
+	/**
+	 * Downloads being sent on request threads; those sent asynchronously
+	 * are counted by FileTransfer.
+	 */
+	final StripedCounter active_downloads;
+
+	/**
+	 * @param directory_cache null if disabled
+	 * @param compressed_file_cache null if disabled
+	 * @param name_indexer null if disabled
+	 */
+	ServletMetrics(final FileTransfer file_transfer, final ZipIndexCache zip_index_cache,
+			final DirectorySnapshotCache directory_cache, final CompressedFileCache compressed_file_cache,
+			final NameIndexer name_indexer) {
+
+		for (RequestType type : RequestType.values())
+			this.request_times.put(type, this.registry.histogram("file_servlet_request_seconds", type.getLabel(),
+					"Time to handle a request, up to handing any asynchronous download over to the container.",
+					Histogram.forLatency()));
+
+		this.html_render_times = this.registry.histogram("file_servlet_render_seconds", "format=\"html\"",
+				"Time to render a listing page, through any stylesheet.", Histogram.forLatency());
+		this.json_render_times = this.registry.histogram("file_servlet_render_seconds", "format=\"json\"",
+				"Time to render a listing page, through any stylesheet.", Histogram.forLatency());
+
+		String sent_help = "Content bytes sent, by how they were sent.";
+		this.registry.gauge("file_servlet_sent_bytes_total", "method=\"sendfile\"", sent_help, true, new Gauge() {
+			@Override
+			public double getValue() {
+				return file_transfer.getSendfileBytes();
+			}
+		});
+		this.registry.gauge("file_servlet_sent_bytes_total", "method=\"copy\"", sent_help, true, new Gauge() {
+			@Override
+			public double getValue() {
+				return file_transfer.getCopiedBytes();
+			}
+		});
+		this.registry.gauge("file_servlet_sent_bytes_total", "method=\"async\"", sent_help, true, new Gauge() {
+			@Override
+			public double getValue() {
+				return file_transfer.getAsyncBytes();
+			}
+		});
+		this.streamed_bytes = new StripedCounter();
+		this.registry.gauge("file_servlet_sent_bytes_total", "method=\"stream\"", sent_help, true, new Gauge() {
+			@Override
+			public double getValue() {
+				return ServletMetrics.this.streamed_bytes.sum();
+			}
+		});
+
+		String active_help = "Downloads in progress.";
+		this.active_downloads = new StripedCounter();
+		this.registry.gauge("file_servlet_active_downloads", "mode=\"sync\"", active_help, false, new Gauge() {
+			@Override
+			public double getValue() {
+				return ServletMetrics.this.active_downloads.sum();
+			}
+		});
+		this.registry.gauge("file_servlet_active_downloads", "mode=\"async\"", active_help, false, new Gauge() {
+			@Override
+			public double getValue() {
+				return file_transfer.getActiveAsyncDownloads();
+			}
+		});
+
+		this.registry.histogram("zip_index_build_seconds", null,
+				"Time to build a zip index on a cache miss, including inflating an inner archive.",
+				zip_index_cache.getBuildTimes());
+		this.registry.histogram("zip_index_entries", null,
+				"Entries in each zip index built.", zip_index_cache.getBuiltEntryCounts());
+		this.registry.gauge("zip_index_cache_archives", null, "Zip indexes cached.", false, new Gauge() {
+			@Override
+			public double getValue() {
+				return zip_index_cache.getEntryCount();
+			}
+		});
+		this.registry.gauge("zip_index_cache_hits_total", null, "Zip index cache hits.", true, new Gauge() {
+			@Override
+			public double getValue() {
+				return zip_index_cache.getStats().hitCount();
+			}
+		});
+		this.registry.gauge("zip_index_cache_misses_total", null, "Zip index cache misses.", true, new Gauge() {
+			@Override
+			public double getValue() {
+				return zip_index_cache.getStats().missCount();
+			}
+		});
+		this.registry.gauge("zip_index_cache_evictions_total", null, "Zip index cache evictions.", true, new Gauge() {
+			@Override
+			public double getValue() {
+				return zip_index_cache.getStats().evictionCount();
+			}
+		});
+
+		final InflatedArchiveCache inflated_archive_cache = zip_index_cache.getInflatedArchiveCache();
+		if (inflated_archive_cache != null) {
+			this.registry.gauge("inflated_archive_cache_hits_total", null,
+					"Inner archives found already inflated on disk.", true, new Gauge() {
+				@Override
+				public double getValue() {
+					return inflated_archive_cache.getHitCount();
+				}
+			});
+			this.registry.gauge("inflated_archive_cache_misses_total", null,
+					"Inner archives inflated to disk.", true, new Gauge() {
+				@Override
+				public double getValue() {
+					return inflated_archive_cache.getMissCount();
+				}
+			});
+			this.registry.gauge("inflated_archive_cache_evictions_total", null,
+					"Inflated inner archives deleted to make room.", true, new Gauge() {
+				@Override
+				public double getValue() {
+					return inflated_archive_cache.getEvictionCount();
+				}
+			});
+		}
+
+		if (directory_cache != null) {
+			this.registry.gauge("directory_cache_directories", null, "Directory listings cached.", false, new Gauge() {
+				@Override
+				public double getValue() {
+					return directory_cache.getDirectoryCount();
+				}
+			});
+			this.registry.gauge("directory_cache_hits_total", null, "Directory listings served from memory.", true, new Gauge() {
+				@Override
+				public double getValue() {
+					return directory_cache.getHitCount();
+				}
+			});
+			this.registry.gauge("directory_cache_misses_total", null, "Directory listings read from disk.", true, new Gauge() {
+				@Override
+				public double getValue() {
+					return directory_cache.getMissCount();
+				}
+			});
+			this.registry.gauge("directory_cache_expirations_total", null,
+					"Cached listings reread for being older than their time to live.", true, new Gauge() {
+				@Override
+				public double getValue() {
+					return directory_cache.getExpirationCount();
+				}
+			});
+			this.registry.gauge("directory_cache_invalidations_total", null,
+					"Cached listings dropped on a change notification.", true, new Gauge() {
+				@Override
+				public double getValue() {
+					return directory_cache.getInvalidationCount();
+				}
+			});
+			this.registry.gauge("directory_cache_evictions_total", null,
+					"Cached listings dropped to make room.", true, new Gauge() {
+				@Override
+				public double getValue() {
+					return directory_cache.getEvictionCount();
+				}
+			});
+		}
+
+		if (compressed_file_cache != null) {
+			this.registry.gauge("compressed_file_cache_hits_total", null,
+					"Gzipped copies served from the cache.", true, new Gauge() {
+				@Override
+				public double getValue() {
+					return compressed_file_cache.getHitCount();
+				}
+			});
+			this.registry.gauge("compressed_file_cache_misses_total", null,
+					"Compressible files sent without a cached gzipped copy.", true, new Gauge() {
+				@Override
+				public double getValue() {
+					return compressed_file_cache.getMissCount();
+				}
+			});
+			this.registry.gauge("compressed_file_cache_evictions_total", null,
+					"Gzipped copies deleted to make room.", true, new Gauge() {
+				@Override
+				public double getValue() {
+					return compressed_file_cache.getEvictionCount();
+				}
+			});
+		}
+
+		if (name_indexer != null) {
+			this.registry.gauge("name_index_entries", null, "Names in the current name index.", false, new Gauge() {
+				@Override
+				public double getValue() {
+					NameIndex index = name_indexer.getIndex();
+					return index != null ? index.size() : 0;
+				}
+			});
+			this.registry.gauge("name_index_age_seconds", null,
+					"Time since the walk that produced the current name index started.", false, new Gauge() {
+				@Override
+				public double getValue() {
+					NameIndex index = name_indexer.getIndex();
+					return index != null ? (System.currentTimeMillis() - index.getBuiltAt()) / 1000.0 : 0;
+				}
+			});
+			this.registry.gauge("name_index_pass_seconds", null,
+					"Time the last name index pass took.", false, new Gauge() {
+				@Override
+				public double getValue() {
+					return name_indexer.getLastPassMillis() / 1000.0;
+				}
+			});
+			this.registry.gauge("name_index_reused_entries", null,
+					"Entries the last name index pass copied from the previous index.", false, new Gauge() {
+				@Override
+				public double getValue() {
+					return name_indexer.getLastPassReusedCount();
+				}
+			});
+		}
+	}
+
+	MetricsRegistry getRegistry() {
+		return this.registry;
+	}
+
+	/**
+	 * @param nav null if the request never got as far as resolving its path
+	 */
+	static RequestType getRequestType(NavigableObject nav, boolean is_downloading, boolean is_searching) {
+
+		if (nav == null || !nav.exists())
+			return RequestType.OTHER;
+
+		if (nav.isDirectory() && !is_downloading && is_searching)
+			return RequestType.SEARCH;
+
+		if (nav.isDirectory() && is_downloading && FileServlet.isArchivable(nav))
+			return RequestType.ARCHIVE;
+
+		if (nav.isDirectory() && !is_downloading)
+			return nav instanceof ZipParentNavigableObject || nav instanceof ZipMemberNavigableObject
+					? RequestType.ZIP_LISTING : RequestType.LISTING;
+
+		return FileServlet.isOnFilesystem(nav) ? RequestType.FILE : RequestType.ZIP_MEMBER;
+	}
+
+	void recordRequest(RequestType type, long start_nanos) {
+		this.request_times.get(type).recordSince(start_nanos);
+	}
+}
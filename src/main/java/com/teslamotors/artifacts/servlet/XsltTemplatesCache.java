@@ -0,0 +1,96 @@
+package com.teslamotors.artifacts.servlet;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Holds compiled stylesheets, which unlike Transformers are thread-safe,
+ * so that each listing only needs a cheap Templates.newTransformer().
+ *
+ * A stylesheet is recompiled when the modification time reported for
+ * its source changes.
+ */
+class XsltTemplatesCache {
+
+	/**
+	 * Supplies the stylesheet when it needs to be (re)compiled.
+	 */
+	interface SourceOpener {
+		Source open() throws IOException;
+	}
+
+	private static class CompiledStylesheet {
+
+		final Templates templates;
+		final long last_modified;
+
+		CompiledStylesheet(Templates templates, long last_modified) {
+			this.templates = templates;
+			this.last_modified = last_modified;
+		}
+	}
+
+	private final ConcurrentMap<String, CompiledStylesheet> compiled_stylesheets = Maps.newConcurrentMap();
+
+	/**
+	 * TransformerFactory is not thread-safe, so compilations are serialized on it.
+	 */
+	private final TransformerFactory transformer_factory = TransformerFactory.newInstance();
+
+	/**
+	 * @param key identifies the stylesheet, e.g. by its path
+	 * @param last_modified the source's current modification time
+	 */
+	Templates get(String key, long last_modified, SourceOpener opener)
+			throws IOException, TransformerConfigurationException {
+
+		CompiledStylesheet compiled = this.compiled_stylesheets.get(key);
+		if (compiled != null && compiled.last_modified == last_modified)
+			return compiled.templates;
+
+		synchronized (this.transformer_factory) {
+
+			// Another request may have compiled it while we waited
+			compiled = this.compiled_stylesheets.get(key);
+			if (compiled != null && compiled.last_modified == last_modified)
+				return compiled.templates;
+
+			Templates templates = this.transformer_factory.newTemplates(opener.open());
+			this.compiled_stylesheets.put(key, new CompiledStylesheet(templates, last_modified));
+			return templates;
+		}
+	}
+
+	/**
+	 * Names a compiled stylesheet by its key and source time, which unlike
+	 * the Templates object stay the same across restarts and replicas.
+	 *
+	 * @return the empty string for null, or a stylesheet not from here
+	 */
+	String getVersion(Templates templates) {
+
+		if (templates != null)
+			for (Map.Entry<String, CompiledStylesheet> entry : this.compiled_stylesheets.entrySet())
+				if (entry.getValue().templates == templates)
+					return entry.getKey() + "@" + entry.getValue().last_modified;
+		return "";
+	}
+
+	/**
+	 * Used when no stylesheet is configured, to emit the listing XML as-is.
+	 */
+	Transformer newIdentityTransformer() throws TransformerConfigurationException {
+		synchronized (this.transformer_factory) {
+			return this.transformer_factory.newTransformer();
+		}
+	}
+}
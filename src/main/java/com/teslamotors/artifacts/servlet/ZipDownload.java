@@ -0,0 +1,538 @@
+package com.teslamotors.artifacts.servlet;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import com.google.common.collect.ImmutableSet;
+import com.teslamotors.artifacts.files.StreamingZipWriter;
+
+/**
+ * Streams a directory on disk as a zip archive, compressing in parallel.
+ *
+ * Files are cut into chunks that are read and deflated by a shared pool,
+ * while the request thread writes the results out in order; at most a
+ * window of chunks per download is in flight, which bounds its memory.
+ * A file of one chunk gets its CRC and sizes in its local header, and is
+ * stored if deflating didn't shrink it. The chunks of a larger file are
+ * each deflated with the end of the previous one as their dictionary and
+ * ended with a sync flush, so that they join into one deflate stream, as
+ * in pigz; its CRC and sizes follow in a data descriptor.
+ *
+ * Files that are already compressed, by their extensions, are stored
+ * rather than deflated again. Since many readers only take a data
+ * descriptor after deflated data, the chunks of a larger one are only
+ * checksummed by the pool, through the window like any others, and the
+ * file is then copied as it is, with the combined CRC in its header, and
+ * checked against it.
+ *
+ * Hidden names are left out, as in listings, and symbolic links to
+ * directories aren't followed.
+ */
+class ZipDownload {
+
+	static final int CHUNK_BYTES = 1024 * 1024;
+
+	/**
+	 * The deflate window, which is all a chunk's dictionary can use.
+	 */
+	private static final int DICTIONARY_BYTES = 32 * 1024;
+
+	private static final int COPY_BUFFER_BYTES = 64 * 1024;
+
+	/**
+	 * Entries larger than this are given ZIP64 sizes, which leaves room
+	 * for deflate's worst case growth, and a sync flush per chunk.
+	 */
+	private static final long ZIP64_THRESHOLD = 0xF0000000L;
+
+	private static final Set<String> COMPRESSED_EXTENSIONS = ImmutableSet.of(
+			"zip", "jar", "war", "ear", "apk", "aar", "whl", "nupkg",
+			"gz", "tgz", "bz2", "tbz2", "xz", "txz", "lz4", "lzma", "zst", "7z", "rar",
+			"deb", "rpm", "dmg", "png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4", "mkv", "mov");
+
+	private final ExecutorService pool;
+	private final int window_chunks;
+	private final int level;
+
+	/**
+	 * @param window_chunks chunks each download may have in flight
+	 */
+	ZipDownload(ExecutorService pool, int window_chunks, int level) {
+		this.pool = pool;
+		this.window_chunks = Math.max(1, window_chunks);
+		this.level = level;
+	}
+
+	static boolean isCompressed(String name) {
+		int dot = name.lastIndexOf('.');
+		return dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+	}
+
+	/**
+	 * A chunk of a file, read and compressed by the pool.
+	 */
+	private static class CompressedChunk {
+
+		final byte[] bytes;
+		final int length;
+		final long crc;
+		final int input_length;
+
+		/**
+		 * Only for a file of one chunk, which is stored if deflating didn't help.
+		 */
+		final int method;
+
+		CompressedChunk(byte[] bytes, int length, long crc, int input_length, int method) {
+			this.bytes = bytes;
+			this.length = length;
+			this.crc = crc;
+			this.input_length = input_length;
+			this.method = method;
+		}
+	}
+
+	/**
+	 * The next thing to write: a directory entry, a chunk of a file, the
+	 * CRC of a chunk of a file to be stored, or that whole file, once all
+	 * its chunks' CRCs are in.
+	 */
+	private static class Part {
+
+		final String name;
+		final long time;
+
+		final Future<CompressedChunk> chunk;
+		final Future<Long> chunk_crc;
+		final int chunk_index;
+		final int chunk_count;
+		final boolean is_zip64;
+
+		/**
+		 * The file to copy, or null.
+		 */
+		final File file;
+
+		/**
+		 * Of the file to copy, or of the chunk to checksum.
+		 */
+		final long size;
+
+		private Part(String name, long time, Future<CompressedChunk> chunk, Future<Long> chunk_crc,
+				int chunk_index, int chunk_count, boolean is_zip64, File file, long size) {
+			this.name = name;
+			this.time = time;
+			this.chunk = chunk;
+			this.chunk_crc = chunk_crc;
+			this.chunk_index = chunk_index;
+			this.chunk_count = chunk_count;
+			this.is_zip64 = is_zip64;
+			this.file = file;
+			this.size = size;
+		}
+
+		static Part directory(String name, long time) {
+			return new Part(name, time, null, null, 0, 0, false, null, 0);
+		}
+
+		static Part chunk(String name, long time, Future<CompressedChunk> chunk, int chunk_index, int chunk_count,
+				boolean is_zip64) {
+			return new Part(name, time, chunk, null, chunk_index, chunk_count, is_zip64, null, 0);
+		}
+
+		static Part chunkCrc(String name, Future<Long> chunk_crc, int chunk_index, int length) {
+			return new Part(name, 0, null, chunk_crc, chunk_index, 0, false, null, length);
+		}
+
+		static Part storedFile(String name, long time, File file, long size) {
+			return new Part(name, time, null, null, 0, 0, false, file, size);
+		}
+
+		/**
+		 * The chunks this holds in memory or in the pool.
+		 */
+		int getChunks() {
+			return this.chunk != null || this.chunk_crc != null ? 1 : 0;
+		}
+	}
+
+	/**
+	 * One download's parts in flight, and the entry being written.
+	 */
+	private class Stream {
+
+		final OutputStream output;
+		final StreamingZipWriter zip_writer;
+		final Deque<Part> window = new ArrayDeque<Part>();
+		int chunks_in_window = 0;
+
+		long entry_crc;
+		long entry_size;
+		long total_size = 0;
+
+		Stream(OutputStream output) {
+			this.output = output;
+			this.zip_writer = new StreamingZipWriter(output);
+		}
+
+		void add(Part part) throws IOException {
+			while (this.chunks_in_window >= window_chunks)
+				writeNext();
+			this.window.add(part);
+			this.chunks_in_window += part.getChunks();
+		}
+
+		void writeNext() throws IOException {
+
+			Part part = this.window.remove();
+			this.chunks_in_window -= part.getChunks();
+			if (part.file != null) {
+				writeStoredFile(part);
+				return;
+			}
+			if (part.chunk_crc != null) {
+				if (part.chunk_index == 0)
+					this.entry_crc = 0;
+				this.entry_crc = combineCrc(this.entry_crc, await(part.chunk_crc, part.name), part.size);
+				return;
+			}
+			if (part.chunk == null) {
+				this.zip_writer.putDirectory(part.name, part.time);
+				return;
+			}
+
+			CompressedChunk chunk = await(part.chunk, part.name);
+
+			if (part.chunk_count == 1) {
+				this.zip_writer.putEntry(part.name, part.time, chunk.method, chunk.crc, chunk.length, chunk.input_length);
+				this.zip_writer.write(chunk.bytes, 0, chunk.length);
+				this.zip_writer.closeEntry();
+				this.total_size += chunk.input_length;
+				return;
+			}
+
+			if (part.chunk_index == 0) {
+				this.zip_writer.putEntry(part.name, part.time, ZipEntry.DEFLATED, part.is_zip64);
+				this.entry_crc = 0;
+				this.entry_size = 0;
+			}
+			this.zip_writer.write(chunk.bytes, 0, chunk.length);
+			this.entry_crc = combineCrc(this.entry_crc, chunk.crc, chunk.input_length);
+			this.entry_size += chunk.input_length;
+			if (part.chunk_index == part.chunk_count - 1) {
+				this.zip_writer.closeEntry(this.entry_crc, this.entry_size);
+				this.total_size += this.entry_size;
+			}
+		}
+
+		/**
+		 * The file's chunk CRCs, which come before it, are all combined by now.
+		 */
+		private void writeStoredFile(Part part) throws IOException {
+
+			long crc = this.entry_crc;
+			this.zip_writer.putEntry(part.name, part.time, ZipEntry.STORED, crc, part.size, part.size);
+			CRC32 copied_crc = new CRC32();
+			byte[] buffer = new byte[COPY_BUFFER_BYTES];
+			RandomAccessFile random_access_file = new RandomAccessFile(part.file, "r");
+			try {
+				for (long remaining = part.size; remaining > 0; ) {
+					int length = (int) Math.min(buffer.length, remaining);
+					random_access_file.readFully(buffer, 0, length);
+					copied_crc.update(buffer, 0, length);
+					this.zip_writer.write(buffer, 0, length);
+					remaining -= length;
+				}
+			} catch (EOFException e) {
+				throw new IOException("File shrank while being archived: " + part.file, e);
+			} finally {
+				random_access_file.close();
+			}
+			if (copied_crc.getValue() != crc)
+				throw new ZipException("File changed while being archived: " + part.file);
+			this.zip_writer.closeEntry();
+			this.total_size += part.size;
+		}
+
+		/**
+		 * Whatever is ready goes out before waiting for the pool.
+		 */
+		private <T> T await(Future<T> future, String name) throws IOException {
+
+			if (!future.isDone())
+				this.output.flush();
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while compressing " + name);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException("Couldn't compress " + name, e.getCause());
+			}
+		}
+
+		void cancel() {
+			for (Part part : this.window) {
+				if (part.chunk != null)
+					part.chunk.cancel(false);
+				if (part.chunk_crc != null)
+					part.chunk_crc.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Writes the whole archive, with the directory itself as its top folder.
+	 *
+	 * @return the total size of the files archived
+	 */
+	long write(File directory, String name, OutputStream output) throws IOException {
+
+		Stream stream = new Stream(output);
+		try {
+			addDirectory(stream, directory, name);
+			while (!stream.window.isEmpty())
+				stream.writeNext();
+			stream.zip_writer.finish();
+			output.flush();
+			return stream.total_size;
+		} finally {
+			stream.cancel();
+		}
+	}
+
+	private void addDirectory(Stream stream, File directory, String path) throws IOException {
+
+		stream.add(Part.directory(path, directory.lastModified()));
+
+		String[] names = directory.list();
+		if (names == null)
+			return;
+		Arrays.sort(names);
+		for (String name : names) {
+			if (name.startsWith("."))
+				continue;
+			File file = new File(directory, name);
+			String child_path = path + "/" + name;
+			if (Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS))
+				addDirectory(stream, file, child_path);
+			else if (file.isFile())
+				addFile(stream, file, child_path);
+		}
+	}
+
+	private void addFile(Stream stream, File file, String path) throws IOException {
+
+		// Read no further than this, even if the file grows meanwhile
+		long size = file.length();
+		long time = file.lastModified();
+		int method = isCompressed(file.getName()) ? ZipEntry.STORED : ZipEntry.DEFLATED;
+		int chunk_count = (int) Math.max(1, (size + CHUNK_BYTES - 1) / CHUNK_BYTES);
+		boolean is_zip64 = size >= ZIP64_THRESHOLD;
+
+		if (method == ZipEntry.STORED && chunk_count > 1) {
+			for (int i = 0; i < chunk_count; i++) {
+				long offset = (long) i * CHUNK_BYTES;
+				int length = (int) Math.min(CHUNK_BYTES, size - offset);
+				FutureTask<Long> task = new FutureTask<Long>(new CrcTask(file, offset, length));
+				stream.add(Part.chunkCrc(path, task, i, length));
+				this.pool.execute(task);
+			}
+			stream.add(Part.storedFile(path, time, file, size));
+			return;
+		}
+
+		for (int i = 0; i < chunk_count; i++) {
+			long offset = (long) i * CHUNK_BYTES;
+			int length = (int) Math.min(CHUNK_BYTES, size - offset);
+			FutureTask<CompressedChunk> task = new FutureTask<CompressedChunk>(
+					new ChunkTask(file, offset, length, method, chunk_count == 1, i == chunk_count - 1));
+			stream.add(Part.chunk(path, time, task, i, chunk_count, is_zip64));
+			this.pool.execute(task);
+		}
+	}
+
+	private static class CrcTask implements Callable<Long> {
+
+		private final File file;
+		private final long offset;
+		private final int length;
+
+		CrcTask(File file, long offset, int length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public Long call() throws IOException {
+
+			CRC32 crc = new CRC32();
+			byte[] buffer = new byte[COPY_BUFFER_BYTES];
+			RandomAccessFile random_access_file = new RandomAccessFile(this.file, "r");
+			try {
+				random_access_file.seek(this.offset);
+				for (int remaining = this.length; remaining > 0; ) {
+					int length = Math.min(buffer.length, remaining);
+					random_access_file.readFully(buffer, 0, length);
+					crc.update(buffer, 0, length);
+					remaining -= length;
+				}
+			} catch (EOFException e) {
+				throw new IOException("File shrank while being archived: " + this.file, e);
+			} finally {
+				random_access_file.close();
+			}
+			return crc.getValue();
+		}
+	}
+
+	private class ChunkTask implements Callable<CompressedChunk> {
+
+		private final File file;
+		private final long offset;
+		private final int length;
+		private final int method;
+		private final boolean is_whole_file;
+		private final boolean is_last;
+
+		ChunkTask(File file, long offset, int length, int method, boolean is_whole_file, boolean is_last) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+			this.method = method;
+			this.is_whole_file = is_whole_file;
+			this.is_last = is_last;
+		}
+
+		@Override
+		public CompressedChunk call() throws IOException {
+
+			// The end of the previous chunk is read again, as the dictionary
+			int dictionary_length = this.method == ZipEntry.DEFLATED
+					? (int) Math.min(DICTIONARY_BYTES, this.offset) : 0;
+			byte[] input = new byte[dictionary_length + this.length];
+			RandomAccessFile random_access_file = new RandomAccessFile(this.file, "r");
+			try {
+				random_access_file.seek(this.offset - dictionary_length);
+				random_access_file.readFully(input);
+			} catch (EOFException e) {
+				throw new IOException("File shrank while being archived: " + this.file, e);
+			} finally {
+				random_access_file.close();
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(input, dictionary_length, this.length);
+
+			if (this.method == ZipEntry.STORED)
+				return new CompressedChunk(input, this.length, crc.getValue(), this.length, ZipEntry.STORED);
+
+			Deflater deflater = new Deflater(level, true);
+			byte[] output = new byte[this.length + this.length / 8 + 64];
+			int output_length = 0;
+			try {
+				if (dictionary_length > 0)
+					deflater.setDictionary(input, 0, dictionary_length);
+				deflater.setInput(input, dictionary_length, this.length);
+				if (this.is_last)
+					deflater.finish();
+
+				// A full output buffer may mean more is pending, for either flush
+				while (true) {
+					if (output_length == output.length)
+						output = Arrays.copyOf(output, 2 * output.length);
+					int space = output.length - output_length;
+					int deflated = this.is_last
+							? deflater.deflate(output, output_length, space)
+							: deflater.deflate(output, output_length, space, Deflater.SYNC_FLUSH);
+					output_length += deflated;
+					if (this.is_last ? deflater.finished() : deflated < space)
+						break;
+				}
+			} finally {
+				deflater.end();
+			}
+
+			if (this.is_whole_file && output_length >= this.length)
+				return new CompressedChunk(input, this.length, crc.getValue(), this.length, ZipEntry.STORED);
+			return new CompressedChunk(output, output_length, crc.getValue(), this.length, ZipEntry.DEFLATED);
+		}
+	}
+
+	/**
+	 * The CRC-32 of two sequences joined, from the CRC of each and the
+	 * length of the second, as zlib's crc32_combine() does it: the first
+	 * CRC is run through that many zero bytes by repeated squaring of the
+	 * operator that appends one zero bit.
+	 */
+	static long combineCrc(long crc1, long crc2, long length2) {
+
+		if (length2 <= 0)
+			return crc1;
+
+		long[] even = new long[32];
+		long[] odd = new long[32];
+
+		// The operator for one zero bit
+		odd[0] = 0xedb88320L;
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		gf2MatrixSquare(even, odd); // two zero bits
+		gf2MatrixSquare(odd, even); // four zero bits
+
+		// Apply len2 zeros to crc1, the first square giving one zero byte
+		do {
+			gf2MatrixSquare(even, odd);
+			if ((length2 & 1) != 0)
+				crc1 = gf2MatrixTimes(even, crc1);
+			length2 >>= 1;
+			if (length2 == 0)
+				break;
+
+			gf2MatrixSquare(odd, even);
+			if ((length2 & 1) != 0)
+				crc1 = gf2MatrixTimes(odd, crc1);
+			length2 >>= 1;
+		} while (length2 != 0);
+
+		return crc1 ^ crc2;
+	}
+
+	private static long gf2MatrixTimes(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1)
+			if ((vector & 1) != 0)
+				sum ^= matrix[i];
+		return sum;
+	}
+
+	private static void gf2MatrixSquare(long[] square, long[] matrix) {
+		for (int n = 0; n < 32; n++)
+			square[n] = gf2MatrixTimes(matrix, matrix[n]);
+	}
+}